@@ -0,0 +1,103 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The AtomicFileOutputStream writes to a temporary file next to its target
+ * and only replaces the target once commit is called, so a crash in the
+ * middle of a write never leaves a partly written file behind. It also
+ * counts the bytes written through it.
+ * @author Tejas
+ */
+public class AtomicFileOutputStream extends OutputStream {
+	private File target;
+	private File temp;
+	private FileOutputStream out;
+	private long bytesWritten;
+	private boolean committed;
+	private boolean closed;
+
+	/**
+	 * Opens a temporary file which will replace filename on commit
+	 * @param filename -
+	 * Name of file to replace
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * Temporary file could not be created
+	 */
+	public AtomicFileOutputStream(String filename)
+			throws IllegalArgumentException, IOException{
+		if(filename == null || filename.isEmpty())
+			throw new IllegalArgumentException();
+		target = new File(filename).getAbsoluteFile();
+		// A prefix needs three characters, which a short name alone lacks
+		temp = File.createTempFile("." + target.getName() + ".", ".tmp",
+								   target.getParentFile());
+		out = new FileOutputStream(temp);
+	}
+
+	/**
+	 * Gets number of bytes written so far
+	 * @return
+	 * Bytes written to the temporary file
+	 */
+	public long getBytesWritten(){
+		return bytesWritten;
+	}
+
+	public void write(int b) throws IOException{
+		out.write(b);
+		bytesWritten++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException{
+		out.write(b, off, len);
+		bytesWritten += len;
+	}
+
+	public void flush() throws IOException{
+		out.flush();
+	}
+
+	/**
+	 * Forces the written data to disk and renames the temporary file over
+	 * the target
+	 * @throws IOException
+	 * Data could not be synced or the file could not be renamed
+	 */
+	public void commit() throws IOException{
+		if(closed)
+			throw new IOException("Stream already closed");
+		out.flush();
+		out.getFD().sync();
+		out.close();
+		closed = true;
+		try{
+			Files.move(temp.toPath(), target.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException e){
+			Files.move(temp.toPath(), target.toPath(),
+					   StandardCopyOption.REPLACE_EXISTING);
+		}
+		committed = true;
+	}
+
+	/**
+	 * Closes the stream, discarding the temporary file unless it was
+	 * committed
+	 */
+	public void close() throws IOException{
+		if(!closed){
+			closed = true;
+			out.close();
+		}
+		if(!committed)
+			temp.delete();
+	}
+}
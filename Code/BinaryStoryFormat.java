@@ -0,0 +1,372 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+
+/**
+ * The BinaryStoryFormat reads and writes StoryTrees in the compact .zbt
+ * format. A file starts with a header holding the magic number, the format
+ * version, the number of strings and the number of nodes. It is followed by
+ * a table of every distinct option and message, stored once, and then by
+ * the nodes in preorder. Each node is its option index, its message index
+ * and which of its children are present, so positions are implied by the
+ * order of the nodes instead of being stored. In version 1 the children
+ * are a bitmask of the first three child numbers. In version 2 they are
+ * the number of children followed by the child number of each, in order.
+ * A story whose nodes all fit in version 1 is still saved in it, so it can
+ * be read by programs which only know version 1.
+ * @author Tejas
+ */
+public class BinaryStoryFormat {
+	public static final String EXTENSION = ".zbt";
+	public static final int MAGIC = 0x5A425400;
+	public static final int VERSION = 2;
+	public static final int TERNARY_VERSION = 1;
+
+	private BinaryStoryFormat(){
+	}
+
+	/**
+	 * Checks if a file name refers to a binary story
+	 * @param filename -
+	 * Name of file to check
+	 * @return
+	 * True if filename ends with the .zbt extension
+	 */
+	public static boolean isBinary(String filename){
+		return filename != null && filename.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Reads in a binary file describing a StoryTree
+	 * @param filename -
+	 * Name of file to read from
+	 * @return
+	 * new StoryTree with data from file
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File not found or could not be read
+	 * @throws DataFormatException
+	 * File is not a binary story or is of an unsupported version
+	 */
+	public static StoryTree load(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		if(filename == null || filename.isEmpty())
+			throw new IllegalArgumentException();
+
+		long start = System.nanoTime();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(filename), 1 << 16));
+		try{
+			if(in.readInt() != MAGIC)
+				throw new DataFormatException("Not a binary story file");
+			int version = in.readUnsignedShort();
+			if(version != VERSION && version != TERNARY_VERSION)
+				throw new DataFormatException("Unsupported story version "
+						+ version);
+			in.readUnsignedShort();
+			int stringCount = in.readInt();
+			int nodeCount = in.readInt();
+			if(stringCount < 0 || nodeCount < 1)
+				throw new DataFormatException("Corrupt story header");
+
+			String[] strings = new String[stringCount];
+			byte[] bytes = new byte[256];
+			for(int i = 0; i < stringCount; i++){
+				int length = readVarInt(in);
+				if(length < 0)
+					throw new DataFormatException("Corrupt story strings");
+				if(length > bytes.length)
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				in.readFully(bytes, 0, length);
+				strings[i] = new String(bytes, 0, length,
+										StandardCharsets.UTF_8);
+			}
+
+			StoryTree tree = new StoryTree();
+			StoryTreeNode root = tree.getRoot();
+			StoryTreeNode[] stack = new StoryTreeNode[16];
+			// Number of children still to read under each node on the
+			// stack, their child numbers are on slots with the next on top
+			int[] pending = new int[16];
+			int[] slots = new int[StoryTreeNode.MAX_CHILDREN];
+			int[] children = new int[StoryTreeNode.MAX_CHILDREN];
+			int size = 1;
+			int slotCount = 0;
+			stack[0] = root;
+			pending[0] = readNode(in, version, strings, root, children);
+			for(int i = pending[0] - 1; i >= 0; i--)
+				slots[slotCount++] = children[i];
+			int read = 1;
+			while(size > 0){
+				if(pending[size - 1] == 0){
+					size--;
+					continue;
+				}
+				pending[size - 1]--;
+				if(read++ == nodeCount)
+					throw new DataFormatException("Corrupt story nodes");
+
+				StoryTreeNode child = new StoryTreeNode(null, null);
+				stack[size - 1].setChild(slots[--slotCount], child);
+
+				if(size == stack.length){
+					stack = Arrays.copyOf(stack, size * 2);
+					pending = Arrays.copyOf(pending, size * 2);
+				}
+				stack[size] = child;
+				pending[size] = readNode(in, version, strings, child,
+						children);
+				if(slotCount + pending[size] > slots.length)
+					slots = Arrays.copyOf(slots, Math.max(slots.length * 2,
+							slotCount + pending[size]));
+				for(int i = pending[size] - 1; i >= 0; i--)
+					slots[slotCount++] = children[i];
+				size++;
+			}
+			if(read != nodeCount || in.read() != -1)
+				throw new DataFormatException("Corrupt story nodes");
+			tree.recount();
+			StoryMetrics.get().recordLoad(System.nanoTime() - start,
+					nodeCount, new File(filename).length());
+			return tree;
+		}
+		catch(EOFException e){
+			throw new DataFormatException("Story file is truncated");
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the StoryTree in the binary format
+	 * @param filename -
+	 * Name of file to save to
+	 * @param tree -
+	 * Tree to save in the file
+	 * @return
+	 * Number of nodes and bytes written
+	 * @throws IllegalArgumentException
+	 * filename is empty or null or tree is null
+	 * @throws IOException
+	 * File could not be written
+	 */
+	public static SaveStatistics save(String filename, StoryTree tree)
+			throws IllegalArgumentException, IOException{
+		if(filename == null || filename.isEmpty() || tree == null)
+			throw new IllegalArgumentException();
+
+		long start = System.nanoTime();
+		HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+		ArrayList<String> strings = new ArrayList<String>();
+		ArrayList<StoryTreeNode> stack = new ArrayList<StoryTreeNode>();
+		int nodeCount = 0;
+		int version = TERNARY_VERSION;
+		stack.add(tree.getRoot());
+		while(!stack.isEmpty()){
+			StoryTreeNode node = stack.remove(stack.size() - 1);
+			nodeCount++;
+			intern(node.getOption(), indexes, strings);
+			intern(node.getMessage(), indexes, strings);
+			if(node.getChildSlots() > 3)
+				version = VERSION;
+			pushChildren(node, stack);
+		}
+
+		AtomicFileOutputStream file = new AtomicFileOutputStream(filename);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				file, 1 << 16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeShort(version);
+			out.writeShort(0);
+			out.writeInt(strings.size());
+			out.writeInt(nodeCount);
+			for(String s : strings){
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarInt(out, bytes.length);
+				out.write(bytes);
+			}
+
+			stack.add(tree.getRoot());
+			while(!stack.isEmpty()){
+				StoryTreeNode node = stack.remove(stack.size() - 1);
+				writeVarInt(out, indexes.get(node.getOption()));
+				writeVarInt(out, indexes.get(node.getMessage()));
+				if(version == TERNARY_VERSION){
+					int mask = 0;
+					for(int slot = 1; slot <= node.getChildSlots(); slot++){
+						if(node.getChild(slot) != null)
+							mask |= 1 << (slot - 1);
+					}
+					out.writeByte(mask);
+				}
+				else{
+					writeVarInt(out, node.getChildCount());
+					for(int slot = 1; slot <= node.getChildSlots(); slot++){
+						if(node.getChild(slot) != null)
+							writeVarInt(out, slot);
+					}
+				}
+				pushChildren(node, stack);
+			}
+			out.flush();
+			file.commit();
+			SaveStatistics statistics = new SaveStatistics(nodeCount,
+					file.getBytesWritten());
+			StoryMetrics.get().recordSave(System.nanoTime() - start,
+										  statistics);
+			return statistics;
+		}
+		finally{
+			file.close();
+		}
+	}
+
+	/**
+	 * Converts a text story file to the binary format
+	 * @param textFile -
+	 * Name of text file to read from
+	 * @param binaryFile -
+	 * Name of binary file to save to
+	 * @throws IOException
+	 * Either file could not be read or written
+	 * @throws DataFormatException
+	 * Text file is inconsistent with expected format
+	 */
+	public static void textToBinary(String textFile, String binaryFile)
+			throws IOException, DataFormatException{
+		save(binaryFile, StoryTreeLoader.load(textFile));
+	}
+
+	/**
+	 * Converts a binary story file to the text format
+	 * @param binaryFile -
+	 * Name of binary file to read from
+	 * @param textFile -
+	 * Name of text file to save to
+	 * @throws IOException
+	 * Either file could not be read or written
+	 * @throws DataFormatException
+	 * Binary file is not a supported story file
+	 */
+	public static void binaryToText(String binaryFile, String textFile)
+			throws IOException, DataFormatException{
+		StoryTree.saveTree(textFile, load(binaryFile));
+	}
+
+	/**
+	 * Converts the first file to the format of the second, based on which
+	 * of the two has the .zbt extension
+	 * @param args -
+	 * Source file name followed by destination file name
+	 */
+	public static void main(String[] args){
+		if(args.length != 2 || isBinary(args[0]) == isBinary(args[1])){
+			System.out.println("Usage: BinaryStoryFormat <story.txt> "
+					+ "<story.zbt> | <story.zbt> <story.txt>");
+			return;
+		}
+		try{
+			if(isBinary(args[1]))
+				textToBinary(args[0], args[1]);
+			else
+				binaryToText(args[0], args[1]);
+			System.out.println("Converted " + args[0] + " to " + args[1]);
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads one node, filling children with the child numbers it has in
+	 * order
+	 * @return
+	 * Number of children
+	 */
+	private static int readNode(DataInputStream in, int version,
+			String[] strings, StoryTreeNode node, int[] children)
+			throws IOException, DataFormatException{
+		int option = readVarInt(in);
+		int message = readVarInt(in);
+		if(option >= strings.length || message >= strings.length)
+			throw new DataFormatException("Corrupt story nodes");
+		node.setOption(strings[option]);
+		node.setMessage(strings[message]);
+
+		int count = 0;
+		if(version == TERNARY_VERSION){
+			int mask = in.readUnsignedByte();
+			if((mask & ~7) != 0)
+				throw new DataFormatException("Corrupt story nodes");
+			for(int slot = 1; slot <= 3; slot++){
+				if((mask & (1 << (slot - 1))) != 0)
+					children[count++] = slot;
+			}
+			return count;
+		}
+		int expected = readVarInt(in);
+		if(expected < 0 || expected > children.length)
+			throw new DataFormatException("Corrupt story nodes");
+		for(; count < expected; count++){
+			children[count] = readVarInt(in);
+			if(children[count] > StoryTreeNode.MAX_CHILDREN
+					|| children[count] <= (count == 0 ? 0
+											: children[count - 1]))
+				throw new DataFormatException("Corrupt story nodes");
+		}
+		return count;
+	}
+
+	private static void pushChildren(StoryTreeNode node,
+			ArrayList<StoryTreeNode> stack){
+		for(int slot = node.getChildSlots(); slot >= 1; slot--){
+			if(node.getChild(slot) != null)
+				stack.add(node.getChild(slot));
+		}
+	}
+
+	private static void intern(String s, HashMap<String, Integer> indexes,
+			ArrayList<String> strings){
+		if(!indexes.containsKey(s)){
+			indexes.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value)
+			throws IOException{
+		while((value & ~0x7F) != 0){
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in)
+			throws IOException, DataFormatException{
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7){
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new DataFormatException("Corrupt story file");
+	}
+}
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The CompactPlaySession plays a CompactStoryTree, keeping the indexes of
+ * the nodes from the root to its cursor so the tree's own cursor is never
+ * moved.
+ * @author Tejas
+ */
+public class CompactPlaySession implements PlaySession {
+	private CompactStoryTree tree;
+	private int[] path;
+	private byte[] slots;
+	private int depth;
+	private long address;
+	private GameState state;
+
+	/**
+	 * Constructor starting a game at the root of a tree
+	 * @param tree -
+	 * CompactStoryTree to play
+	 */
+	public CompactPlaySession(CompactStoryTree tree){
+		this.tree = tree;
+		path = new int[16];
+		slots = new byte[16];
+		restart();
+	}
+
+	public GameState getGameState(){
+		return state;
+	}
+
+	public String getPosition(){
+		return StoryTree.positionOf(address, slots, depth);
+	}
+
+	public long getAddress(){
+		return address;
+	}
+
+	public int getDepth(){
+		return depth;
+	}
+
+	public String getOption(){
+		return tree.getOption(path[depth]);
+	}
+
+	public String getMessage(){
+		return tree.getMessage(path[depth]);
+	}
+
+	public String[][] getOptions(){
+		return tree.getOptions(path[depth], getPosition());
+	}
+
+	public int getChildSlots(){
+		return tree.childSlots(path[depth]);
+	}
+
+	public String getChildOption(int slot){
+		return tree.childOption(path[depth], slot);
+	}
+
+	public ByteBuffer getPrompt(){
+		// Not kept, a CompactStoryTree holds nothing per node but its text
+		return StoryTreeNode.renderPrompt(getMessage(), getOptions());
+	}
+
+	public boolean isWinning(){
+		return tree.isWinning(path[depth]);
+	}
+
+	public boolean isLosing(){
+		return tree.isLosing(path[depth]);
+	}
+
+	public void selectChild(String choice)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(choice == null || choice.isEmpty())
+			throw new IllegalArgumentException();
+		selectChild(StoryTree.parseSlot(choice));
+	}
+
+	public void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException{
+		StoryTreeNode.checkSlot(slot);
+		int temp = tree.child(path[depth], slot);
+		if(temp < 0)
+			throw new NodeNotPresentException();
+		if(depth + 1 == path.length){
+			path = Arrays.copyOf(path, path.length * 2);
+			slots = Arrays.copyOf(slots, slots.length * 2);
+		}
+		path[++depth] = temp;
+		slots[depth] = (byte)slot;
+		address = NodeAddress.child(address, slot);
+		if(tree.isWinning(temp))
+			state = GameState.GAME_OVER_WIN;
+		else if(tree.isLosing(temp))
+			state = GameState.GAME_OVER_LOSE;
+	}
+
+	public double winProbability(){
+		return tree.winProbability(path[depth]);
+	}
+
+	public void restart(){
+		path[0] = CompactStoryTree.ROOT;
+		depth = 0;
+		address = NodeAddress.ROOT;
+		state = GameState.GAME_NOT_OVER;
+	}
+}
@@ -0,0 +1,836 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * The CompactStoryTree stores a Zork story in parallel primitive arrays
+ * instead of a graph of StoryTreeNode objects. A node is an index into the
+ * arrays: its children are linked through firstChild and nextSibling in
+ * order of child number, and its option and message are offsets into a
+ * shared TextArena. This keeps the structure of a node at 26 bytes with no
+ * object headers or references, which matters for stories with millions of
+ * nodes. It supports the same cursor operations as StoryTree. Edits
+ * append their text to the arena, and once most of the arena is text
+ * which no node refers to any more it is compacted, as it also is by
+ * trimToSize.
+ * @author Tejas
+ */
+public class CompactStoryTree implements Story {
+	private static final int NONE = -1;
+	static final int ROOT = 0;
+	private static final byte WIN = 1;
+	private static final byte LOSE = 2;
+
+	private int[] firstChild;
+	private int[] nextSibling;
+	private byte[] slot;
+	private int[] option;
+	private int[] message;
+	private byte[] flags;
+	private int[] nodeCount;
+	private int[] winCount;
+	private int size;
+	private int freeHead;
+	private TextArena text;
+	// Bytes of text in the arena which no node refers to any more
+	private int deadText;
+
+	private int[] path;
+	private byte[] slots;
+	private int depth;
+	private long address;
+	private GameState state;
+	private StoryListener listener;
+
+	/**
+	 * Default Constructor
+	 */
+	public CompactStoryTree(){
+		this(false);
+	}
+
+	/**
+	 * Constructor choosing where the text of the story lives
+	 * @param offHeap -
+	 * True to keep options and messages outside the Java heap
+	 */
+	public CompactStoryTree(boolean offHeap){
+		this(16, offHeap);
+	}
+
+	private CompactStoryTree(int capacity, boolean offHeap){
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		slot = new byte[capacity];
+		option = new int[capacity];
+		message = new int[capacity];
+		flags = new byte[capacity];
+		nodeCount = new int[capacity];
+		winCount = new int[capacity];
+		freeHead = NONE;
+		text = new TextArena(Math.max(64, capacity * 32), offHeap);
+		allocate(StoryTree.ROOT_OPTION, StoryTree.ROOT_MESSAGE);
+
+		path = new int[16];
+		slots = new byte[16];
+		state = GameState.GAME_NOT_OVER;
+		resetCursor();
+	}
+
+	/**
+	 * Reads in a text file describing a story
+	 * @param filename -
+	 * Name of file to read from
+	 * @param offHeap -
+	 * True to keep options and messages outside the Java heap
+	 * @return
+	 * new CompactStoryTree with data from file
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File not found or could not be read
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format, the message includes the
+	 * line number
+	 */
+	public static CompactStoryTree readTree(String filename, boolean offHeap)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		long start = System.nanoTime();
+		StoryFileReader file = new StoryFileReader(filename);
+		CompactStoryTree tree = new CompactStoryTree(1024, offHeap);
+		int[] stack = new int[16];
+		byte[] parsed = new byte[16];
+		int stackSize = 1;
+		stack[0] = ROOT;
+		try{
+			while(file.nextLine()){
+				String position = file.getPosition();
+				String option = file.getOption();
+				String message = file.getMessage();
+				if(option.isEmpty() || message.isEmpty())
+					throw file.formatError("Empty option or message");
+
+				if(position.length() == 1){
+					tree.setText(ROOT, option, message);
+					stackSize = 1;
+					continue;
+				}
+				if(parsed.length <= position.length() / 2){
+					parsed = new byte[position.length()];
+					stack = Arrays.copyOf(stack, position.length());
+				}
+				int depth = StoryTree.parsePosition(position, parsed);
+				if(depth < 1)
+					throw file.formatError("Invalid position " + position);
+
+				// Usually the parent is on the path of the line before
+				boolean onPath = depth <= stackSize;
+				for(int level = 1; onPath && level < depth; level++)
+					onPath = tree.slot[stack[level]] == parsed[level];
+				if(!onPath){
+					int node = ROOT;
+					for(int level = 1; level < depth; level++){
+						node = tree.child(node, parsed[level]);
+						if(node == NONE)
+							throw file.formatError("Parent of " + position
+									+ " not present");
+						stack[level] = node;
+					}
+				}
+
+				int parent = stack[depth - 1];
+				int childSlot = parsed[depth];
+				int old = tree.unlink(parent, childSlot);
+				if(old != NONE)
+					tree.free(old);
+				int child = tree.allocate(option, message);
+				tree.link(parent, childSlot, child);
+
+				stack[depth] = child;
+				stackSize = depth + 1;
+			}
+		}
+		finally{
+			file.close();
+		}
+		tree.recount();
+		tree.trimToSize();
+		StoryMetrics.get().recordLoad(System.nanoTime() - start,
+				tree.getNodeCount(), new File(filename).length());
+		return tree;
+	}
+
+	/**
+	 * Saves the story to a file in the text format
+	 * @param filename -
+	 * Name of file to save to
+	 * @return
+	 * Number of nodes and bytes written
+	 * @throws IllegalArgumentException
+	 * filename is empty or null, or names a binary story
+	 * @throws IOException
+	 * File could not be written
+	 */
+	public SaveStatistics save(String filename)
+			throws IllegalArgumentException, IOException{
+		if(BinaryStoryFormat.isBinary(filename))
+			throw new IllegalArgumentException("Binary stories are only "
+					+ "supported by StoryTree");
+		long start = System.nanoTime();
+		AtomicFileOutputStream out = new AtomicFileOutputStream(filename);
+		try{
+			Writer fileOut = new BufferedWriter(new OutputStreamWriter(out,
+					Charset.defaultCharset()), 1 << 16);
+			int nodes = writeDetails(fileOut);
+			fileOut.flush();
+			out.commit();
+			SaveStatistics statistics = new SaveStatistics(nodes,
+					out.getBytesWritten());
+			StoryMetrics.get().recordSave(System.nanoTime() - start,
+										  statistics);
+			return statistics;
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	public PlaySession newSession(){
+		return new CompactPlaySession(this);
+	}
+
+	public GameState getGameState(){
+		return state;
+	}
+
+	public String getCursorPosition(){
+		return StoryTree.positionOf(address, slots, depth);
+	}
+
+	public long getCursorAddress(){
+		return address;
+	}
+
+	public int getCursorDepth(){
+		return depth;
+	}
+
+	public String getCursorMessage(){
+		return text.get(message[path[depth]]);
+	}
+
+	public String getCursorOption(){
+		return text.get(option[path[depth]]);
+	}
+
+	public String[][] getOptions(){
+		return getOptions(path[depth], getCursorPosition());
+	}
+
+	public void setCursorMessage(String message){
+		if(message == null || message == "")
+			throw new IllegalArgumentException();
+		int cursor = path[depth];
+		discardText(cursor);
+		setText(cursor, text.get(option[cursor]), message);
+		updateCounts(cursor);
+		updateAncestorCounts();
+		compactTextIfWasteful();
+		if(listener != null)
+			listener.messageChanged(getCursorPosition(), message);
+	}
+
+	public void setCursorOption(String option){
+		if(option == null || option == "")
+			throw new IllegalArgumentException();
+		int cursor = path[depth];
+		deadText += text.sizeOf(this.option[cursor]);
+		this.option[cursor] = text.add(option);
+		compactTextIfWasteful();
+		if(listener != null)
+			listener.optionChanged(getCursorPosition(), option);
+	}
+
+	public boolean isCursorLeaf(){
+		return firstChild[path[depth]] == NONE;
+	}
+
+	public boolean isCursorWinning(){
+		return isWinning(path[depth]);
+	}
+
+	public boolean isCursorLosing(){
+		return isLosing(path[depth]);
+	}
+
+	public void resetCursor(){
+		path[0] = ROOT;
+		depth = 0;
+		address = NodeAddress.ROOT;
+	}
+
+	public void selectChildStartRoot(String position)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(position == null || position == "")
+			throw new IllegalArgumentException();
+		byte[] parsed = new byte[position.length() / 2 + 1];
+		int newDepth = StoryTree.parsePosition(position, parsed);
+		if(newDepth < 0)
+			throw new NodeNotPresentException();
+
+		int node = ROOT;
+		for(int level = 1; level <= newDepth; level++){
+			node = child(node, parsed[level]);
+			if(node == NONE)
+				throw new NodeNotPresentException();
+		}
+		resetCursor();
+		for(int level = 1; level <= newDepth; level++)
+			push(child(path[depth], parsed[level]));
+		updateState();
+	}
+
+	public void selectAddress(long address)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(address < 0)
+			throw new IllegalArgumentException("Not a node address");
+
+		int newDepth = NodeAddress.depth(address);
+		int node = ROOT;
+		for(int level = 1; level <= newDepth; level++){
+			node = child(node, NodeAddress.slotAt(address, level));
+			if(node == NONE)
+				throw new NodeNotPresentException();
+		}
+		resetCursor();
+		for(int level = 1; level <= newDepth; level++)
+			push(child(path[depth], NodeAddress.slotAt(address, level)));
+		updateState();
+	}
+
+	public void selectChild(String position)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(position == null || position == "")
+			throw new IllegalArgumentException();
+		selectChild(StoryTree.parseSlot(position));
+	}
+
+	public void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException{
+		StoryTreeNode.checkSlot(slot);
+		int node = child(path[depth], slot);
+		if(node == NONE)
+			throw new NodeNotPresentException();
+		push(node);
+	}
+
+	public void addChild(String option, String message)
+			throws TreeFullException, IllegalArgumentException{
+		int cursor = path[depth];
+		if(childCount(cursor) == StoryTreeNode.MAX_CHILDREN)
+			throw new TreeFullException();
+		int free = 1;
+		while(child(cursor, free) != NONE)
+			free++;
+		addChild(free, option, message);
+	}
+
+	public void addChild(int slot, String option, String message)
+			throws TreeFullException, IllegalArgumentException{
+		int cursor = path[depth];
+		if(childCount(cursor) == StoryTreeNode.MAX_CHILDREN)
+			throw new TreeFullException();
+		if(option == null || message == null || option == "" || message == "")
+			throw new IllegalArgumentException();
+		StoryTreeNode.checkSlot(slot);
+
+		int old = unlink(cursor, slot);
+		if(old != NONE)
+			free(old);
+		link(cursor, slot, allocate(option, message));
+		updateCounts(cursor);
+		updateAncestorCounts();
+		compactTextIfWasteful();
+		if(listener != null)
+			listener.childAdded(getCursorPosition(), slot, option, message);
+	}
+
+	public StoryTreeNode removeChild(String position)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(position == null || position == "")
+			throw new IllegalArgumentException();
+		return removeChild(StoryTree.parseSlot(position));
+	}
+
+	public StoryTreeNode removeChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException{
+		StoryTreeNode.checkSlot(slot);
+		int cursor = path[depth];
+		int removed = unlink(cursor, slot);
+		if(removed == NONE)
+			throw new NodeNotPresentException();
+		StoryTreeNode subtree = toNode(removed);
+		free(removed);
+		updateCounts(cursor);
+		updateAncestorCounts();
+		compactTextIfWasteful();
+		if(listener != null)
+			listener.childRemoved(getCursorPosition(), slot);
+		return subtree;
+	}
+
+	public void addListener(StoryListener listener){
+		this.listener = StoryListeners.add(this.listener, listener);
+	}
+
+	public void removeListener(StoryListener listener){
+		this.listener = StoryListeners.remove(this.listener, listener);
+	}
+
+	public void returnToParent(){
+		returnToParent(1);
+	}
+
+	public void returnToParent(int levels) throws IllegalArgumentException{
+		if(levels < 0)
+			throw new IllegalArgumentException("Levels must not be negative");
+		depth = Math.max(0, depth - levels);
+		address = depth > NodeAddress.MAX_DEPTH ? NodeAddress.NONE
+				: StoryTree.addressOf(slots, depth);
+	}
+
+	public int getNumberChildren(){
+		return childCount(path[depth]);
+	}
+
+	public int getChildSlots(){
+		return childSlots(path[depth]);
+	}
+
+	public String getChildOption(int slot){
+		return childOption(path[depth], slot);
+	}
+
+	public double winProbability(){
+		return winProbability(path[depth]);
+	}
+
+	/**
+	 * Gets number of nodes in the story
+	 * @return
+	 * Number of nodes
+	 */
+	public int getNodeCount(){
+		return nodeCount[ROOT];
+	}
+
+	/**
+	 * Gets bytes used by the arrays describing the structure of the tree,
+	 * not counting the text of options and messages
+	 * @return
+	 * Bytes reserved for the node arrays
+	 */
+	public long getStructuralBytes(){
+		return (long)firstChild.length * (6 * 4 + 2);
+	}
+
+	/**
+	 * Gets bytes reserved for the text of options and messages
+	 * @return
+	 * Capacity of the text arena
+	 */
+	public long getTextBytes(){
+		return text.getCapacity();
+	}
+
+	/**
+	 * Shrinks the node arrays and the text arena to what is in use,
+	 * dropping the text left behind by edits
+	 */
+	public void trimToSize(){
+		resize(Math.max(1, size));
+		if(deadText > 0)
+			compactText();
+		text.trimToSize();
+	}
+
+	private void push(int node){
+		if(depth + 1 == path.length){
+			path = Arrays.copyOf(path, path.length * 2);
+			slots = Arrays.copyOf(slots, slots.length * 2);
+		}
+		path[++depth] = node;
+		slots[depth] = slot[node];
+		address = NodeAddress.child(address, slot[node]);
+	}
+
+	private void updateState(){
+		int cursor = path[depth];
+		if(isWinning(cursor))
+			state = GameState.GAME_OVER_WIN;
+		if(isLosing(cursor))
+			state = GameState.GAME_OVER_LOSE;
+	}
+
+	/**
+	 * Gets option of a node
+	 * @param node -
+	 * Index of node
+	 * @return
+	 * Option of node
+	 */
+	String getOption(int node){
+		return text.get(option[node]);
+	}
+
+	/**
+	 * Gets message of a node
+	 * @param node -
+	 * Index of node
+	 * @return
+	 * Message of node
+	 */
+	String getMessage(int node){
+		return text.get(message[node]);
+	}
+
+	/**
+	 * Gets array of options for immediate child's of a node
+	 * @param node -
+	 * Index of node
+	 * @param position -
+	 * Position of node
+	 * @return
+	 * Array of options for children of node
+	 */
+	String[][] getOptions(int node, String position){
+		String[][] options = new String[childSlots(node)][2];
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c]){
+			options[slot[c] - 1][0] = position + "-" + slot[c];
+			options[slot[c] - 1][1] = text.get(option[c]);
+		}
+		return options;
+	}
+
+	/**
+	 * Gets child of a node by child number
+	 * @param node -
+	 * Index of parent
+	 * @param childSlot -
+	 * Child number, from 1
+	 * @return
+	 * Index of child, or -1 if there is none
+	 */
+	int child(int node, int childSlot){
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c]){
+			if(slot[c] == childSlot)
+				return c;
+			if(slot[c] > childSlot)
+				break;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Gets highest child number in use at a node
+	 * @param node -
+	 * Index of node
+	 * @return
+	 * Child number of the last child, or 0 for a leaf
+	 */
+	int childSlots(int node){
+		int last = 0;
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c])
+			last = slot[c];
+		return last;
+	}
+
+	/**
+	 * Gets option of a child of a node
+	 * @param node -
+	 * Index of parent
+	 * @param childSlot -
+	 * Child number, from 1
+	 * @return
+	 * Option of child, or null if there is none
+	 * @throws IllegalArgumentException
+	 * childSlot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	String childOption(int node, int childSlot)
+			throws IllegalArgumentException{
+		StoryTreeNode.checkSlot(childSlot);
+		int c = child(node, childSlot);
+		return c == NONE ? null : text.get(option[c]);
+	}
+
+	/**
+	 * Check if a node is a winning leaf
+	 * @param node -
+	 * Index of node
+	 * @return
+	 * True if node is a winning node
+	 */
+	boolean isWinning(int node){
+		return firstChild[node] == NONE && (flags[node] & WIN) != 0;
+	}
+
+	/**
+	 * Check if a node is a losing leaf
+	 * @param node -
+	 * Index of node
+	 * @return
+	 * True if node is a losing node
+	 */
+	boolean isLosing(int node){
+		return firstChild[node] == NONE && (flags[node] & LOSE) != 0;
+	}
+
+	/**
+	 * Gets probability of a win from a node
+	 * @param node -
+	 * Index of node
+	 * @return
+	 * Probability of a win as a percentage
+	 */
+	double winProbability(int node){
+		return (double)winCount[node] / (double)nodeCount[node] * 100;
+	}
+
+	private int childCount(int node){
+		int count = 0;
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c])
+			count++;
+		return count;
+	}
+
+	private void link(int parent, int childSlot, int child){
+		slot[child] = (byte)childSlot;
+		int previous = NONE;
+		int c = firstChild[parent];
+		while(c != NONE && slot[c] < childSlot){
+			previous = c;
+			c = nextSibling[c];
+		}
+		nextSibling[child] = c;
+		if(previous == NONE)
+			firstChild[parent] = child;
+		else
+			nextSibling[previous] = child;
+	}
+
+	private int unlink(int parent, int childSlot){
+		int previous = NONE;
+		for(int c = firstChild[parent]; c != NONE; c = nextSibling[c]){
+			if(slot[c] == childSlot){
+				if(previous == NONE)
+					firstChild[parent] = nextSibling[c];
+				else
+					nextSibling[previous] = nextSibling[c];
+				nextSibling[c] = NONE;
+				return c;
+			}
+			previous = c;
+		}
+		return NONE;
+	}
+
+	private int allocate(String option, String message){
+		int node;
+		if(freeHead != NONE){
+			node = freeHead;
+			freeHead = nextSibling[node];
+		}
+		else{
+			if(size == firstChild.length)
+				resize(size + (size >> 1) + 16);
+			node = size++;
+		}
+		firstChild[node] = NONE;
+		nextSibling[node] = NONE;
+		slot[node] = 0;
+		setText(node, option, message);
+		nodeCount[node] = 1;
+		winCount[node] = isWinning(node) ? 1 : 0;
+		return node;
+	}
+
+	private void free(int node){
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = node;
+		while(top > 0){
+			int n = stack[--top];
+			for(int c = firstChild[n]; c != NONE; c = nextSibling[c]){
+				if(top == stack.length)
+					stack = Arrays.copyOf(stack, top * 2);
+				stack[top++] = c;
+			}
+			discardText(n);
+			firstChild[n] = NONE;
+			nextSibling[n] = freeHead;
+			freeHead = n;
+		}
+	}
+
+	private StoryTreeNode toNode(int node){
+		StoryTreeNode copy = new StoryTreeNode(text.get(option[node]),
+											   text.get(message[node]));
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c])
+			copy.setChild(slot[c], toNode(c));
+		return copy;
+	}
+
+	private void setText(int node, String option, String message){
+		this.option[node] = text.add(option);
+		this.message[node] = text.add(message);
+		byte flag = 0;
+		if(message.contains(StoryTreeNode.WIN_MESSAGE))
+			flag |= WIN;
+		if(message.contains(StoryTreeNode.LOSE_MESSAGE))
+			flag |= LOSE;
+		flags[node] = flag;
+	}
+
+	/**
+	 * Counts the text of a node as no longer used, before it is replaced
+	 * or the node is freed
+	 */
+	private void discardText(int node){
+		deadText += text.sizeOf(option[node]) + text.sizeOf(message[node]);
+	}
+
+	/**
+	 * Compacts the text arena once most of it is text left behind by
+	 * edits, so a long editing session does not grow it without bound
+	 */
+	private void compactTextIfWasteful(){
+		if(deadText > text.getBytesUsed() / 2)
+			compactText();
+	}
+
+	/**
+	 * Copies the text of every node in the tree to a new arena, leaving
+	 * out the text no node refers to
+	 */
+	private void compactText(){
+		TextArena live = new TextArena(Math.max(64, text.getBytesUsed()
+				- deadText), text.isOffHeap());
+		int[] stack = new int[16];
+		int top = 0;
+		stack[top++] = ROOT;
+		while(top > 0){
+			int n = stack[--top];
+			option[n] = live.copy(text, option[n]);
+			message[n] = live.copy(text, message[n]);
+			for(int c = firstChild[n]; c != NONE; c = nextSibling[c]){
+				if(top == stack.length)
+					stack = Arrays.copyOf(stack, top * 2);
+				stack[top++] = c;
+			}
+		}
+		text = live;
+		deadText = 0;
+	}
+
+	private void updateCounts(int node){
+		if(firstChild[node] == NONE){
+			nodeCount[node] = 1;
+			winCount[node] = isWinning(node) ? 1 : 0;
+			return;
+		}
+		int nodes = 1;
+		int wins = 0;
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c]){
+			nodes += nodeCount[c];
+			wins += winCount[c];
+		}
+		nodeCount[node] = nodes;
+		winCount[node] = wins;
+	}
+
+	private void updateAncestorCounts(){
+		for(int i = depth - 1; i >= 0; i--)
+			updateCounts(path[i]);
+	}
+
+	private void recount(){
+		int[] order = new int[size];
+		int count = 0;
+		order[count++] = ROOT;
+		for(int i = 0; i < count; i++){
+			for(int c = firstChild[order[i]]; c != NONE; c = nextSibling[c])
+				order[count++] = c;
+		}
+		for(int i = count - 1; i >= 0; i--)
+			updateCounts(order[i]);
+	}
+
+	private void resize(int capacity){
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		nextSibling = Arrays.copyOf(nextSibling, capacity);
+		slot = Arrays.copyOf(slot, capacity);
+		option = Arrays.copyOf(option, capacity);
+		message = Arrays.copyOf(message, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		nodeCount = Arrays.copyOf(nodeCount, capacity);
+		winCount = Arrays.copyOf(winCount, capacity);
+	}
+
+	private int writeDetails(Writer out) throws IOException{
+		int[] stack = new int[64];
+		int[] levels = new int[64];
+		// Length of the position of the node last written at each depth
+		int[] lengths = new int[16];
+		StringBuilder position = new StringBuilder();
+		int top = 0;
+		int nodes = 0;
+		stack[top] = ROOT;
+		levels[top++] = 0;
+		while(top > 0){
+			int node = stack[--top];
+			int nodeDepth = levels[top];
+			if(nodeDepth == lengths.length)
+				lengths = Arrays.copyOf(lengths, nodeDepth * 2);
+			if(nodeDepth == 0){
+				position.setLength(0);
+				position.append('1');
+			}
+			else{
+				position.setLength(lengths[nodeDepth - 1]);
+				position.append('-').append(slot[node]);
+			}
+			lengths[nodeDepth] = position.length();
+
+			if(nodes++ > 0)
+				out.write('\n');
+			out.append(position);
+			out.write(" | ");
+			out.write(text.get(option[node]));
+			out.write(" | ");
+			out.write(text.get(message[node]));
+
+			int first = top;
+			for(int c = firstChild[node]; c != NONE; c = nextSibling[c]){
+				if(top == stack.length){
+					stack = Arrays.copyOf(stack, top * 2);
+					levels = Arrays.copyOf(levels, top * 2);
+				}
+				stack[top] = c;
+				levels[top++] = nodeDepth + 1;
+			}
+			// Children were pushed in order, reverse them so the first
+			// child is written next
+			for(int i = first, j = top - 1; i < j; i++, j--){
+				int temp = stack[i];
+				stack[i] = stack[j];
+				stack[j] = temp;
+			}
+		}
+		return nodes;
+	}
+}
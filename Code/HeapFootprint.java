@@ -0,0 +1,97 @@
+/**
+ * The HeapFootprint class compares the heap used by a StoryTree and a
+ * CompactStoryTree holding the same story. Each backend is filled with the
+ * given number of nodes through the Story interface, once with every node
+ * given the same string and once with unique strings, which measures the
+ * whole story. With the same string a StoryTree measures its structure
+ * alone, since its nodes refer to one String, while a CompactStoryTree
+ * still copies the text into its arena for every node, so its structure
+ * alone is printed separately.
+ * @author Tejas
+ */
+public class HeapFootprint {
+	private HeapFootprint(){
+	}
+
+	/**
+	 * Prints the heap used per node and per million nodes by each backend
+	 * @param args -
+	 * Number of nodes to build, 1000000 if not given
+	 */
+	public static void main(String[] args){
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		System.out.println("Nodes: " + nodes);
+		for(int unique = 0; unique < 2; unique++){
+			boolean uniqueText = unique == 1;
+			System.out.println(uniqueText ? "\nUnique strings:"
+					: "\nShared strings:");
+			report("StoryTree", nodes, uniqueText, false, false);
+			report("CompactStoryTree", nodes, uniqueText, true, false);
+			report("CompactStoryTree off heap", nodes, uniqueText, true, true);
+		}
+	}
+
+	private static void report(String name, int nodes, boolean uniqueText,
+			boolean compact, boolean offHeap){
+		long before = usedHeap();
+		Story story = compact ? new CompactStoryTree(offHeap)
+				: new StoryTree();
+		build(story, nodes, uniqueText);
+		if(compact)
+			((CompactStoryTree)story).trimToSize();
+		long used = usedHeap() - before;
+		System.out.printf("%-26s %8.1f bytes/node %8.1f MB/million nodes%n",
+				name, (double)used / nodes, (double)used / nodes);
+		if(compact)
+			System.out.printf("%-26s %8.1f bytes/node%n", "  of which structure",
+					(double)((CompactStoryTree)story).getStructuralBytes()
+					/ nodes);
+		story.resetCursor();
+	}
+
+	/**
+	 * Fills a story breadth first so every node but the last has three
+	 * children. Node i has node (i - 1) / 3 as its parent.
+	 */
+	private static void build(Story story, int nodes, boolean uniqueText){
+		String shared = "You see a path";
+		try{
+			for(int added = 1, parent = 0; added < nodes; parent++){
+				story.selectAddress(addressOf(parent));
+				for(int slot = 1; slot <= 3 && added < nodes; slot++){
+					String text = uniqueText ? "Path " + added : shared;
+					story.addChild(slot, text, text);
+					added++;
+				}
+			}
+		}
+		catch(NodeNotPresentException e){
+			throw new IllegalStateException(e);
+		}
+		catch(TreeFullException e){
+			throw new IllegalStateException(e);
+		}
+		story.resetCursor();
+	}
+
+	private static long addressOf(int index){
+		if(index == 0)
+			return NodeAddress.ROOT;
+		return NodeAddress.child(addressOf((index - 1) / 3),
+								 (index - 1) % 3 + 1);
+	}
+
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 4; i++){
+			System.gc();
+			try{
+				Thread.sleep(50);
+			}
+			catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
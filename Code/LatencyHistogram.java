@@ -0,0 +1,227 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The LatencyHistogram counts durations in buckets which get wider as the
+ * durations grow, so percentiles can be read with about 3% error over the
+ * whole range of a long without keeping every sample. Every power of two
+ * is split into 32 buckets. Many threads may record at once: each thread
+ * records into one of several stripes, picked by its id, holding its own
+ * buckets, total and maximum, so threads only contend when they share a
+ * stripe. A stripe is allocated the first time a thread records into it,
+ * and recording never allocates after that. Reading adds the stripes up.
+ * @author Tejas
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	// Two stripes per processor, at most 64, as a power of two
+	private static final int STRIPES = Math.min(64, Integer.highestOneBit(
+			Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+
+	// Layout of a stripe, the total and maximum come before the buckets
+	private static final int TOTAL = 0;
+	private static final int MAX = 1;
+	private static final int FIRST_BUCKET = 2;
+
+	private AtomicReferenceArray<AtomicLongArray> stripes;
+
+	/**
+	 * Default Constructor
+	 */
+	public LatencyHistogram(){
+		stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+	}
+
+	/**
+	 * Records one duration
+	 * @param nanos -
+	 * Duration in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos){
+		if(nanos < 0)
+			nanos = 0;
+		AtomicLongArray stripe = stripe();
+		stripe.incrementAndGet(FIRST_BUCKET + bucket(nanos));
+		stripe.addAndGet(TOTAL, nanos);
+		raiseMax(stripe, nanos);
+	}
+
+	/**
+	 * Gets number of durations recorded
+	 * @return
+	 * Number of durations
+	 */
+	public long getCount(){
+		long samples = 0;
+		for(int i = 0; i < STRIPES; i++){
+			AtomicLongArray stripe = stripes.get(i);
+			if(stripe == null)
+				continue;
+			for(int j = 0; j < BUCKETS; j++)
+				samples += stripe.get(FIRST_BUCKET + j);
+		}
+		return samples;
+	}
+
+	/**
+	 * Gets mean of the durations recorded
+	 * @return
+	 * Mean in nanoseconds, 0 if nothing was recorded
+	 */
+	public double getMean(){
+		long samples = getCount();
+		return samples == 0 ? 0 : (double)sum(TOTAL) / samples;
+	}
+
+	/**
+	 * Gets longest duration recorded
+	 * @return
+	 * Maximum in nanoseconds
+	 */
+	public long getMax(){
+		long max = 0;
+		for(int i = 0; i < STRIPES; i++){
+			AtomicLongArray stripe = stripes.get(i);
+			if(stripe != null)
+				max = Math.max(max, stripe.get(MAX));
+		}
+		return max;
+	}
+
+	/**
+	 * Gets duration which a share of the recorded durations do not exceed
+	 * @param percentile -
+	 * Share as a percentage, for example 99.9
+	 * @return
+	 * Upper bound of the bucket holding the percentile in nanoseconds, 0 if
+	 * nothing was recorded
+	 * @throws IllegalArgumentException
+	 * percentile is not between 0 and 100
+	 */
+	public long getPercentile(double percentile)
+			throws IllegalArgumentException{
+		if(percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be between 0 "
+					+ "and 100");
+		long[] snapshot = snapshot();
+		long samples = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			samples += snapshot[i];
+		if(samples == 0)
+			return 0;
+		long max = getMax();
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * samples));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += snapshot[i];
+			if(seen >= rank)
+				return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Adds every duration recorded by another histogram to this one
+	 * @param other -
+	 * Histogram to add
+	 */
+	public void add(LatencyHistogram other){
+		long[] snapshot = other.snapshot();
+		AtomicLongArray stripe = stripe();
+		for(int i = 0; i < BUCKETS; i++){
+			if(snapshot[i] != 0)
+				stripe.addAndGet(FIRST_BUCKET + i, snapshot[i]);
+		}
+		stripe.addAndGet(TOTAL, other.sum(TOTAL));
+		raiseMax(stripe, other.getMax());
+	}
+
+	/**
+	 * Clears every recorded duration
+	 */
+	public void reset(){
+		for(int i = 0; i < STRIPES; i++){
+			AtomicLongArray stripe = stripes.get(i);
+			if(stripe == null)
+				continue;
+			for(int j = 0; j < stripe.length(); j++)
+				stripe.set(j, 0);
+		}
+	}
+
+	/**
+	 * Gets stripe of the calling thread, adding it if it has none yet
+	 */
+	private AtomicLongArray stripe(){
+		int index = (int)Thread.currentThread().getId() & (STRIPES - 1);
+		AtomicLongArray stripe = stripes.get(index);
+		if(stripe == null){
+			// Another thread may add it first
+			stripes.compareAndSet(index, null,
+					new AtomicLongArray(FIRST_BUCKET + BUCKETS));
+			stripe = stripes.get(index);
+		}
+		return stripe;
+	}
+
+	/**
+	 * Raises the maximum of a stripe, reading it first so it is only
+	 * written when value is larger
+	 */
+	private static void raiseMax(AtomicLongArray stripe, long value){
+		long current;
+		while(value > (current = stripe.get(MAX))){
+			if(stripe.compareAndSet(MAX, current, value))
+				break;
+		}
+	}
+
+	/**
+	 * Adds up one cell of every stripe
+	 */
+	private long sum(int cell){
+		long sum = 0;
+		for(int i = 0; i < STRIPES; i++){
+			AtomicLongArray stripe = stripes.get(i);
+			if(stripe != null)
+				sum += stripe.get(cell);
+		}
+		return sum;
+	}
+
+	/**
+	 * Adds up the buckets of every stripe
+	 */
+	private long[] snapshot(){
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < STRIPES; i++){
+			AtomicLongArray stripe = stripes.get(i);
+			if(stripe == null)
+				continue;
+			for(int j = 0; j < BUCKETS; j++)
+				snapshot[j] += stripe.get(FIRST_BUCKET + j);
+		}
+		return snapshot;
+	}
+
+	private static int bucket(long value){
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket){
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		long lower = (1L << exponent) + sub * width;
+		return lower + width - 1;
+	}
+}
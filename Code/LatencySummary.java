@@ -0,0 +1,86 @@
+/**
+ * The LatencySummary is a snapshot of a LatencyHistogram, as shown over
+ * JMX. Latencies are in nanoseconds.
+ * @author Tejas
+ */
+public class LatencySummary {
+	private long count;
+	private double mean;
+	private long p50;
+	private long p99;
+	private long p999;
+	private long max;
+
+	/**
+	 * Constructor reading a histogram
+	 * @param histogram -
+	 * Histogram to summarize
+	 */
+	public LatencySummary(LatencyHistogram histogram){
+		count = histogram.getCount();
+		mean = histogram.getMean();
+		p50 = histogram.getPercentile(50);
+		p99 = histogram.getPercentile(99);
+		p999 = histogram.getPercentile(99.9);
+		max = histogram.getMax();
+	}
+
+	/**
+	 * Gets number of durations recorded
+	 * @return
+	 * Number of durations
+	 */
+	public long getCount(){
+		return count;
+	}
+
+	/**
+	 * Gets mean duration
+	 * @return
+	 * Mean in nanoseconds
+	 */
+	public double getMean(){
+		return mean;
+	}
+
+	/**
+	 * Gets median duration
+	 * @return
+	 * 50th percentile in nanoseconds
+	 */
+	public long getP50(){
+		return p50;
+	}
+
+	/**
+	 * Gets 99th percentile duration
+	 * @return
+	 * 99th percentile in nanoseconds
+	 */
+	public long getP99(){
+		return p99;
+	}
+
+	/**
+	 * Gets 99.9th percentile duration
+	 * @return
+	 * 99.9th percentile in nanoseconds
+	 */
+	public long getP999(){
+		return p999;
+	}
+
+	/**
+	 * Gets longest duration
+	 * @return
+	 * Maximum in nanoseconds
+	 */
+	public long getMax(){
+		return max;
+	}
+
+	public String toString(){
+		return String.format("%d calls, mean %.0f ns, p50 %d ns, p99 %d ns, "
+				+ "p99.9 %d ns, max %d ns", count, mean, p50, p99, p999, max);
+	}
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The LazyStoryTreeNode is a read only node of a story opened through a
+ * StoryFileIndex. It knows where its children are in the index but only
+ * reads them when they are first asked for, and holds them through soft
+ * references so subtrees nobody is standing in can be collected when
+ * memory runs low and read again later. Reaching a child also starts
+ * reading that child's children in the background. Subtree counts come
+ * from the index instead of from the children.
+ * @author Tejas
+ */
+public class LazyStoryTreeNode extends StoryTreeNode {
+	private final StoryFileIndex file;
+	private final int[] records;
+	private final AtomicReferenceArray<SoftReference<LazyStoryTreeNode>>
+			children;
+	private volatile boolean prefetched;
+
+	private final int nodeCount;
+	private final int leafCount;
+	private final int winningLeafCount;
+	private final int losingLeafCount;
+
+	LazyStoryTreeNode(StoryFileIndex file, String option, String message,
+			int left, int middle, int right, int nodeCount, int leafCount,
+			int winningLeafCount, int losingLeafCount){
+		super(option, message);
+		this.file = file;
+		records = new int[]{left, middle, right};
+		children = new AtomicReferenceArray<SoftReference<LazyStoryTreeNode>>(
+				3);
+		this.nodeCount = nodeCount;
+		this.leafCount = leafCount;
+		this.winningLeafCount = winningLeafCount;
+		this.losingLeafCount = losingLeafCount;
+	}
+
+	/**
+	 * Check if node has no children and is a leaf.
+	 * @return
+	 * True if it is a leaf
+	 */
+	public boolean isLeaf(){
+		return records[0] < 0 && records[1] < 0 && records[2] < 0;
+	}
+
+	/**
+	 * Gets child of node by child number, reading it if needed
+	 * @param slot -
+	 * Child number, from 1 to MAX_CHILDREN
+	 * @return
+	 * Child at slot, or null if there is none
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to MAX_CHILDREN
+	 * @throws UncheckedIOException
+	 * Child could not be read
+	 */
+	public StoryTreeNode getChild(int slot){
+		checkSlot(slot);
+		return slot <= records.length ? child(slot - 1) : null;
+	}
+
+	/**
+	 * Not supported, the story is read only
+	 * @param slot -
+	 * Ignored
+	 * @param child -
+	 * Ignored
+	 * @throws UnsupportedOperationException
+	 * Always
+	 */
+	public void setChild(int slot, StoryTreeNode child){
+		throw readOnly();
+	}
+
+	/**
+	 * Gets highest child number in use
+	 * @return
+	 * Highest child number with a child, or 0 for a leaf
+	 */
+	public int getChildSlots(){
+		for(int slot = records.length; slot > 0; slot--){
+			if(records[slot - 1] >= 0)
+				return slot;
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets number of children of node without reading them
+	 * @return
+	 * Number of child numbers with a child
+	 */
+	public int getChildCount(){
+		int count = 0;
+		for(int record : records){
+			if(record >= 0)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Not supported, the story is read only
+	 * @param message -
+	 * Ignored
+	 * @throws UnsupportedOperationException
+	 * Always
+	 */
+	public void setMessage(String message){
+		throw readOnly();
+	}
+
+	/**
+	 * Not supported, the story is read only
+	 * @param option -
+	 * Ignored
+	 * @throws UnsupportedOperationException
+	 * Always
+	 */
+	public void setOption(String option){
+		throw readOnly();
+	}
+
+	/**
+	 * Gets number of nodes in the subtree rooted at this node
+	 * @return
+	 * Number of nodes including this node
+	 */
+	public int getNodeCount(){
+		return nodeCount;
+	}
+
+	/**
+	 * Gets number of leaves in the subtree rooted at this node
+	 * @return
+	 * Number of leaves
+	 */
+	public int getLeafCount(){
+		return leafCount;
+	}
+
+	/**
+	 * Gets number of winning leaves in the subtree rooted at this node
+	 * @return
+	 * Number of winning leaves
+	 */
+	public int getWinningLeafCount(){
+		return winningLeafCount;
+	}
+
+	/**
+	 * Gets number of losing leaves in the subtree rooted at this node
+	 * @return
+	 * Number of losing leaves
+	 */
+	public int getLosingLeafCount(){
+		return losingLeafCount;
+	}
+
+	/**
+	 * The counts were worked out when the index was built
+	 */
+	void updateCounts(){
+	}
+
+	/**
+	 * Checks the subtree counts of this node against those of its children
+	 * @return
+	 * Always true, the counts were worked out when the index was built
+	 */
+	boolean hasConsistentCounts(){
+		return true;
+	}
+
+	private StoryTreeNode child(int slot){
+		if(records[slot] < 0)
+			return null;
+		LazyStoryTreeNode child = resident(slot);
+		if(child == null){
+			synchronized(this){
+				child = resident(slot);
+				if(child == null){
+					try{
+						child = file.node(records[slot]);
+					}
+					catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+					children.set(slot, new SoftReference<LazyStoryTreeNode>(
+							child));
+				}
+			}
+		}
+		if(!child.prefetched)
+			child.prefetched = file.prefetch(child);
+		return child;
+	}
+
+	private LazyStoryTreeNode resident(int slot){
+		SoftReference<LazyStoryTreeNode> reference = children.get(slot);
+		return reference == null ? null : reference.get();
+	}
+
+	private static UnsupportedOperationException readOnly(){
+		return new UnsupportedOperationException("The story was opened read "
+				+ "only");
+	}
+}
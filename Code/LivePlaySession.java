@@ -0,0 +1,129 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The LivePlaySession plays a LiveStory. It starts every game on the
+ * newest version, and with the MIGRATE policy moves to a newer version
+ * after each choice if the position reached is also there. Checking for a
+ * newer version is a single read of the current version.
+ * @author Tejas
+ */
+public class LivePlaySession implements PlaySession {
+	private LiveStory story;
+	private LiveStory.Policy policy;
+	private LiveStory.Snapshot snapshot;
+	private NodePlaySession session;
+
+	// Newest version the position was missing from. Every later position
+	// of the game extends this one, so that version is not tried again.
+	private LiveStory.Snapshot missing;
+
+	LivePlaySession(LiveStory story, LiveStory.Policy policy){
+		this.story = story;
+		this.policy = policy;
+		restart();
+	}
+
+	/**
+	 * Gets version being played
+	 * @return
+	 * Version number of the story the session is on
+	 */
+	public long getVersion(){
+		return snapshot.version;
+	}
+
+	public GameState getGameState(){
+		return session.getGameState();
+	}
+
+	public String getPosition(){
+		return session.getPosition();
+	}
+
+	public long getAddress(){
+		return session.getAddress();
+	}
+
+	public int getDepth(){
+		return session.getDepth();
+	}
+
+	public String getOption(){
+		return session.getOption();
+	}
+
+	public String getMessage(){
+		return session.getMessage();
+	}
+
+	public String[][] getOptions(){
+		return session.getOptions();
+	}
+
+	public int getChildSlots(){
+		return session.getChildSlots();
+	}
+
+	public String getChildOption(int slot){
+		return session.getChildOption(slot);
+	}
+
+	public ByteBuffer getPrompt(){
+		return session.getPrompt();
+	}
+
+	public boolean isWinning(){
+		return session.isWinning();
+	}
+
+	public boolean isLosing(){
+		return session.isLosing();
+	}
+
+	public void selectChild(String choice)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(choice == null || choice.isEmpty())
+			throw new IllegalArgumentException();
+		selectChild(StoryTree.parseSlot(choice));
+	}
+
+	public void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException{
+		session.selectChild(slot);
+		if(policy == LiveStory.Policy.MIGRATE)
+			migrate();
+	}
+
+	public double winProbability(){
+		return session.winProbability();
+	}
+
+	public void restart(){
+		snapshot = story.snapshot();
+		session = new NodePlaySession(snapshot.root);
+		missing = null;
+	}
+
+	/**
+	 * Moves to the newest version at the same position, if it is there
+	 */
+	private void migrate(){
+		LiveStory.Snapshot latest = story.snapshot();
+		if(latest == snapshot || latest == missing)
+			return;
+		String position = session.getPosition();
+		byte[] slots = new byte[position.length() / 2 + 1];
+		int depth = StoryTree.parsePosition(position, slots);
+		NodePlaySession moved = new NodePlaySession(latest.root);
+		try{
+			for(int level = 1; level <= depth; level++)
+				moved.selectChild(slots[level]);
+		}
+		catch(NodeNotPresentException e){
+			missing = latest;
+			return;
+		}
+		snapshot = latest;
+		session = moved;
+	}
+}
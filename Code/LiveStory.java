@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The LiveStory publishes versions of a story to players while it keeps
+ * changing. Each version is a snapshot which is never changed again, and
+ * the current one is swapped in atomically, so players never wait for a
+ * writer and never see a version half built. Sessions started through the
+ * LiveStory begin on the newest version, and either finish their game on
+ * the version they started on or move to a newer one as they play,
+ * depending on their Policy.
+ * @author Tejas
+ */
+public class LiveStory {
+	/**
+	 * The Policy decides what a session does when a new version is
+	 * published in the middle of its game
+	 */
+	public enum Policy {
+		/**
+		 * Finish the game on the version it started on
+		 */
+		FINISH,
+		/**
+		 * Move to the newest version after each choice, as long as the
+		 * position reached is also in the newest version
+		 */
+		MIGRATE
+	}
+
+	private AtomicReference<Snapshot> current;
+	private long versions;
+
+	/**
+	 * Constructor publishing the first version
+	 * @param story -
+	 * Story to publish
+	 * @throws IllegalArgumentException
+	 * story is null
+	 */
+	public LiveStory(StoryTree story) throws IllegalArgumentException{
+		current = new AtomicReference<Snapshot>();
+		publish(story);
+	}
+
+	/**
+	 * Publishes the story as it is now as the newest version. Unless the
+	 * story is read only, it is switched to copying the nodes it edits from
+	 * then on, so it can keep being edited without changing any version
+	 * already published.
+	 * @param story -
+	 * Story to publish, either the one published before after more edits
+	 * or a new one
+	 * @return
+	 * Number of the new version, counting from 1
+	 * @throws IllegalArgumentException
+	 * story is null
+	 */
+	public synchronized long publish(StoryTree story)
+			throws IllegalArgumentException{
+		if(story == null)
+			throw new IllegalArgumentException();
+		if(!story.isReadOnly() && story.getHistory() == null)
+			story.enableHistory(0);
+		Snapshot next = new Snapshot(story.getRoot(), ++versions);
+		current.set(next);
+		return next.version;
+	}
+
+	/**
+	 * Gets number of the newest version
+	 * @return
+	 * Version number, counting from 1
+	 */
+	public long getVersion(){
+		return current.get().version;
+	}
+
+	/**
+	 * Starts a new game on the newest version
+	 * @param policy -
+	 * What the session does when a newer version is published
+	 * @return
+	 * New session for one player
+	 * @throws IllegalArgumentException
+	 * policy is null
+	 */
+	public LivePlaySession newSession(Policy policy)
+			throws IllegalArgumentException{
+		if(policy == null)
+			throw new IllegalArgumentException();
+		return new LivePlaySession(this, policy);
+	}
+
+	/**
+	 * Gets newest version, without waiting for any writer
+	 */
+	Snapshot snapshot(){
+		return current.get();
+	}
+
+	/**
+	 * The Snapshot is the root of one published version
+	 */
+	static class Snapshot {
+		final StoryTreeNode root;
+		final long version;
+
+		Snapshot(StoryTreeNode root, long version){
+			this.root = root;
+			this.version = version;
+		}
+	}
+}
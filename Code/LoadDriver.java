@@ -0,0 +1,458 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.DataFormatException;
+
+/**
+ * The LoadDriver simulates many players making random choices at the same
+ * time and reports how many decisions were made per second and how long
+ * they took. Players either share one Story loaded in this process, each
+ * through its own PlaySession, or connect to a running ZorkServer. A
+ * decision is timed from reading the options to having the next options,
+ * and a game which ends is started again.
+ * @author Tejas
+ */
+public class LoadDriver {
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final String CHOICE_PROMPT = "Please make a choice: ";
+	private static final String AGAIN_PROMPT = "Play again (R) or quit (Q)? ";
+
+	// Counters of a player, each player's kept STRIDE longs apart so no two
+	// players write to the same cache line
+	private static final int DECISIONS = 0;
+	private static final int GAMES = 1;
+	private static final int ERRORS = 2;
+	private static final int STRIDE = 16;
+
+	private int players;
+	private long durationNanos;
+	private long thinkMillis;
+	private LatencyHistogram latency;
+	private StoryTelemetry telemetry;
+	private volatile boolean running;
+	private long[] counters;
+	private long elapsedNanos;
+
+	/**
+	 * Constructor with specific parameters for member variables
+	 * @param players -
+	 * Number of players playing at once
+	 * @param seconds -
+	 * How long to play for
+	 * @param thinkMillis -
+	 * Pause of each player between decisions
+	 * @throws IllegalArgumentException
+	 * players or seconds are not positive, or thinkMillis is negative
+	 */
+	public LoadDriver(int players, int seconds, long thinkMillis)
+			throws IllegalArgumentException{
+		if(players <= 0 || seconds <= 0 || thinkMillis < 0)
+			throw new IllegalArgumentException();
+		this.players = players;
+		this.durationNanos = seconds * 1000000000L;
+		this.thinkMillis = thinkMillis;
+		latency = new LatencyHistogram();
+	}
+
+	/**
+	 * Sets counters the players of a story loaded in this process record
+	 * their visits, choices and endings in. Their sessions are then played
+	 * through a MeteredPlaySession, which is included in the latency.
+	 * @param telemetry -
+	 * Counters to record in, or null to stop recording
+	 */
+	public void setTelemetry(StoryTelemetry telemetry){
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Plays a story loaded in this process
+	 * @param story -
+	 * Story shared by every player
+	 * @throws InterruptedException
+	 * Interrupted while waiting for the players
+	 */
+	public void run(final Story story) throws InterruptedException{
+		run(new Player(){
+			public void play(int player, Random random){
+				PlaySession session = story.newSession();
+				if(telemetry != null)
+					session = new MeteredPlaySession(session, telemetry);
+				playLocal(session, player, random);
+			}
+		});
+	}
+
+	/**
+	 * Plays against a ZorkServer on localhost, one connection per player
+	 * @param port -
+	 * Port of the server
+	 * @throws InterruptedException
+	 * Interrupted while waiting for the players
+	 */
+	public void run(final int port) throws InterruptedException{
+		run(new Player(){
+			public void play(int player, Random random){
+				playRemote(port, player, random);
+			}
+		});
+	}
+
+	/**
+	 * Gets histogram of decision times of the last run
+	 * @return
+	 * Decision latencies in nanoseconds
+	 */
+	public LatencyHistogram getLatency(){
+		return latency;
+	}
+
+	/**
+	 * Gets summary of the last run
+	 * @return
+	 * Throughput, games, errors and latency percentiles
+	 */
+	public String report(){
+		long totalDecisions = sum(DECISIONS);
+		double seconds = elapsedNanos / 1e9;
+		return String.format("Players: %d%nDecisions: %d (%.0f per second)%n"
+				+ "Games finished: %d%nErrors: %d%n"
+				+ "Decision latency (microseconds): mean %.1f, p50 %.1f, "
+				+ "p99 %.1f, p99.9 %.1f, max %.1f", players, totalDecisions,
+				totalDecisions / seconds, sum(GAMES), sum(ERRORS),
+				latency.getMean() / 1000, latency.getPercentile(50) / 1000.0,
+				latency.getPercentile(99) / 1000.0,
+				latency.getPercentile(99.9) / 1000.0,
+				latency.getMax() / 1000.0);
+	}
+
+	private void run(final Player player) throws InterruptedException{
+		latency.reset();
+		// The first stride is left out, it would share a line with the
+		// length of the array
+		counters = new long[(players + 1) * STRIDE];
+		running = true;
+		final CountDownLatch done = new CountDownLatch(players);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < players; i++){
+			final int id = i;
+			Thread thread = new Thread(new Runnable(){
+				public void run(){
+					try{
+						player.play(id, new Random(id));
+					}
+					finally{
+						done.countDown();
+					}
+				}
+			}, "player-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+		long start = System.nanoTime();
+		for(Thread thread : threads)
+			thread.start();
+		Thread.sleep(durationNanos / 1000000);
+		running = false;
+		done.await();
+		// Players finish their last decision after running is cleared
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	private void playLocal(PlaySession session, int player, Random random){
+		int at = (player + 1) * STRIDE;
+		while(running){
+			long start = System.nanoTime();
+			int slot = pick(session, random);
+			if(slot == 0){
+				session.restart();
+				counters[at + GAMES]++;
+				continue;
+			}
+			try{
+				session.selectChild(slot);
+			}
+			catch(NodeNotPresentException e){
+				counters[at + ERRORS]++;
+				continue;
+			}
+			session.getOptions();
+			latency.record(System.nanoTime() - start);
+			counters[at + DECISIONS]++;
+			if(session.getGameState() != GameState.GAME_NOT_OVER){
+				session.restart();
+				counters[at + GAMES]++;
+			}
+			think();
+		}
+	}
+
+	private void playRemote(int port, int player, Random random){
+		int at = (player + 1) * STRIDE;
+		Socket socket = null;
+		try{
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String screen = readUntilPrompt(in);
+			while(running && screen != null){
+				long start = System.nanoTime();
+				String reply;
+				if(screen.endsWith(AGAIN_PROMPT)){
+					counters[at + GAMES]++;
+					reply = "R\n";
+				}
+				else{
+					int slot = pick(parseOptions(screen), random);
+					if(slot == 0){
+						// A dead end, start the game again
+						counters[at + GAMES]++;
+						reply = "R\n";
+					}
+					else
+						reply = slot + "\n";
+				}
+				out.write(reply.getBytes(CHARSET));
+				out.flush();
+				screen = readUntilPrompt(in);
+				if(reply.charAt(0) != 'R'){
+					latency.record(System.nanoTime() - start);
+					counters[at + DECISIONS]++;
+				}
+				think();
+			}
+			if(screen == null)
+				counters[at + ERRORS]++;
+			else
+				out.write("Q\n".getBytes(CHARSET));
+		}
+		catch(IOException e){
+			counters[at + ERRORS]++;
+		}
+		finally{
+			if(socket != null){
+				try{
+					socket.close();
+				}
+				catch(IOException e){
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the server's output up to the next prompt
+	 * @return
+	 * Text read, or null if the connection was closed first
+	 */
+	private static String readUntilPrompt(InputStream in) throws IOException{
+		StringBuilder text = new StringBuilder();
+		int b;
+		while((b = in.read()) >= 0){
+			text.append((char)b);
+			if(b == ' ' && (endsWith(text, CHOICE_PROMPT)
+					|| endsWith(text, AGAIN_PROMPT)))
+				return text.toString();
+		}
+		return null;
+	}
+
+	private static boolean endsWith(StringBuilder text, String suffix){
+		int start = text.length() - suffix.length();
+		return start >= 0 && text.indexOf(suffix, start) == start;
+	}
+
+	/**
+	 * Finds the options listed on a screen as lines such as "2) Go north"
+	 */
+	private static String[][] parseOptions(String screen){
+		String[][] options = new String[0][];
+		for(String line : screen.split("\n")){
+			int end = 0;
+			while(end < line.length() && line.charAt(end) >= '0'
+					&& line.charAt(end) <= '9')
+				end++;
+			if(end == 0 || end + 1 >= line.length() || line.charAt(end) != ')')
+				continue;
+			int slot;
+			try{
+				slot = StoryTree.parseSlot(line);
+			}
+			catch(IllegalArgumentException e){
+				continue;
+			}
+			if(slot > options.length){
+				int old = options.length;
+				options = Arrays.copyOf(options, slot);
+				for(int i = old; i < slot; i++)
+					options[i] = new String[2];
+			}
+			options[slot - 1][1] = line.substring(end + 2);
+		}
+		return options;
+	}
+
+	/**
+	 * Picks one of the options at random
+	 * @return
+	 * Child number picked, or 0 if there are no options
+	 */
+	private static int pick(String[][] options, Random random){
+		int count = 0;
+		for(int i = 0; i < options.length; i++){
+			if(options[i][1] != null)
+				count++;
+		}
+		if(count == 0)
+			return 0;
+		int pick = random.nextInt(count);
+		for(int i = 0; i < options.length; i++){
+			if(options[i][1] != null && pick-- == 0)
+				return i + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Picks one of the options of a session at random, reading them in
+	 * place instead of listing them in an array
+	 * @return
+	 * Child number picked, or 0 if there are no options
+	 */
+	private static int pick(PlaySession session, Random random){
+		int count = 0;
+		for(int slot = 1; slot <= session.getChildSlots(); slot++){
+			if(session.getChildOption(slot) != null)
+				count++;
+		}
+		if(count == 0)
+			return 0;
+		int pick = random.nextInt(count);
+		for(int slot = 1; slot <= session.getChildSlots(); slot++){
+			if(session.getChildOption(slot) != null && pick-- == 0)
+				return slot;
+		}
+		return 0;
+	}
+
+	private void think(){
+		if(thinkMillis == 0)
+			return;
+		try{
+			Thread.sleep(thinkMillis);
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			running = false;
+		}
+	}
+
+	/**
+	 * Adds up one counter of every player
+	 */
+	private long sum(int counter){
+		long total = 0;
+		for(int player = 1; player <= players; player++)
+			total += counters[player * STRIDE + counter];
+		return total;
+	}
+
+	/**
+	 * Runs a load test from the command line
+	 * @param args -
+	 * Story file, or --server followed by a port, then optionally
+	 * --players, --seconds, --think in milliseconds and, for a story file,
+	 * --heatmap followed by a file to write the choices made to
+	 */
+	public static void main(String[] args){
+		String filename = null;
+		int port = -1;
+		int players = 100;
+		int seconds = 10;
+		long think = 0;
+		String heatmap = null;
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].startsWith("--") && i + 1 == args.length){
+					System.out.println("Missing value for " + args[i]);
+					return;
+				}
+				switch(args[i]){
+				case "--server":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "--players":
+					players = Integer.parseInt(args[++i]);
+					break;
+				case "--seconds":
+					seconds = Integer.parseInt(args[++i]);
+					break;
+				case "--think":
+					think = Long.parseLong(args[++i]);
+					break;
+				case "--heatmap":
+					heatmap = args[++i];
+					break;
+				default:
+					filename = args[i];
+				}
+			}
+			if(filename == null && port < 0){
+				System.out.println("Usage: java LoadDriver <story file> | "
+						+ "--server port [--players n] [--seconds s] "
+						+ "[--think ms] [--heatmap file]");
+				return;
+			}
+
+			LoadDriver driver = new LoadDriver(players, seconds, think);
+			if(port >= 0)
+				driver.run(port);
+			else{
+				Story story;
+				if(BinaryStoryFormat.isBinary(filename))
+					story = BinaryStoryFormat.load(filename);
+				else
+					story = StoryTreeLoader.load(filename);
+				StoryTelemetry telemetry = null;
+				if(heatmap != null){
+					telemetry = new StoryTelemetry();
+					driver.setTelemetry(telemetry);
+				}
+				driver.run(story);
+				if(telemetry != null)
+					System.out.println(telemetry.writeHeatmap(heatmap,
+							story.newSession()) + " positions written to "
+							+ heatmap);
+			}
+			System.out.println(driver.report());
+		}
+		catch(IllegalArgumentException e){
+			System.out.println("Invalid argument: " + e.getMessage());
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+		catch(InterruptedException e){
+			System.out.println("Interrupted");
+		}
+	}
+
+	/**
+	 * A Player plays until the run is over
+	 */
+	private interface Player {
+		void play(int player, Random random);
+	}
+}
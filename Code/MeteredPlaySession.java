@@ -0,0 +1,157 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The MeteredPlaySession plays through another PlaySession, recording in
+ * StoryMetrics how long each move, list of options and chance of a win
+ * takes and how each game ends. Given a StoryTelemetry it also counts
+ * there which nodes are visited and chosen and how the games through them
+ * end.
+ * @author Tejas
+ */
+public class MeteredPlaySession implements PlaySession {
+	private PlaySession session;
+	private StoryMetrics metrics;
+	private StoryTelemetry telemetry;
+
+	/**
+	 * Constructor wrapping a session
+	 * @param session -
+	 * Session to play through
+	 * @throws IllegalArgumentException
+	 * session is null
+	 */
+	public MeteredPlaySession(PlaySession session)
+			throws IllegalArgumentException{
+		this(session, null);
+	}
+
+	/**
+	 * Constructor wrapping a session and counting its moves per node
+	 * @param session -
+	 * Session to play through, at the start of a game
+	 * @param telemetry -
+	 * Counters to record visits, choices and endings in, or null for none
+	 * @throws IllegalArgumentException
+	 * session is null
+	 */
+	public MeteredPlaySession(PlaySession session, StoryTelemetry telemetry)
+			throws IllegalArgumentException{
+		if(session == null)
+			throw new IllegalArgumentException();
+		this.session = session;
+		this.telemetry = telemetry;
+		metrics = StoryMetrics.get();
+		if(telemetry != null)
+			telemetry.recordStart();
+	}
+
+	public GameState getGameState(){
+		return session.getGameState();
+	}
+
+	public String getPosition(){
+		return session.getPosition();
+	}
+
+	public long getAddress(){
+		return session.getAddress();
+	}
+
+	public int getDepth(){
+		return session.getDepth();
+	}
+
+	public String getOption(){
+		return session.getOption();
+	}
+
+	public String getMessage(){
+		return session.getMessage();
+	}
+
+	public String[][] getOptions(){
+		long start = System.nanoTime();
+		try{
+			return session.getOptions();
+		}
+		finally{
+			metrics.recordOptions(System.nanoTime() - start);
+		}
+	}
+
+	public int getChildSlots(){
+		return session.getChildSlots();
+	}
+
+	public String getChildOption(int slot){
+		return session.getChildOption(slot);
+	}
+
+	public ByteBuffer getPrompt(){
+		long start = System.nanoTime();
+		try{
+			return session.getPrompt();
+		}
+		finally{
+			metrics.recordOptions(System.nanoTime() - start);
+		}
+	}
+
+	public boolean isWinning(){
+		return session.isWinning();
+	}
+
+	public boolean isLosing(){
+		return session.isLosing();
+	}
+
+	public void selectChild(String choice)
+			throws NodeNotPresentException, IllegalArgumentException{
+		long start = System.nanoTime();
+		try{
+			session.selectChild(choice);
+		}
+		finally{
+			metrics.recordSelectChild(System.nanoTime() - start);
+		}
+		recordMove();
+	}
+
+	public void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException{
+		long start = System.nanoTime();
+		try{
+			session.selectChild(slot);
+		}
+		finally{
+			metrics.recordSelectChild(System.nanoTime() - start);
+		}
+		recordMove();
+	}
+
+	public double winProbability(){
+		long start = System.nanoTime();
+		try{
+			return session.winProbability();
+		}
+		finally{
+			metrics.recordWinProbability(System.nanoTime() - start);
+		}
+	}
+
+	public void restart(){
+		session.restart();
+		if(telemetry != null)
+			telemetry.recordStart();
+	}
+
+	private void recordMove(){
+		GameState state = session.getGameState();
+		metrics.recordOutcome(state);
+		if(telemetry != null){
+			long address = session.getAddress();
+			telemetry.recordChoice(address);
+			telemetry.recordOutcome(address, state);
+		}
+	}
+}
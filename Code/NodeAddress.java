@@ -0,0 +1,170 @@
+/**
+ * The NodeAddress packs the position of a node into a single long instead
+ * of a string such as "1-2-3". Every level below the root takes two bits
+ * holding the child number 1, 2 or 3, with the deepest level in the lowest
+ * bits. The root is 0, and since a child number is never 0 the depth of an
+ * address can be read from its highest set bit. A position which takes a
+ * child number above MAX_SLOT anywhere on its path has no address, just
+ * like one deeper than MAX_DEPTH.
+ * @author Tejas
+ */
+public final class NodeAddress {
+	/**
+	 * Address of the root node
+	 */
+	public static final long ROOT = 0L;
+
+	/**
+	 * Value used for a position which can not be packed into an address
+	 */
+	public static final long NONE = -1L;
+
+	/**
+	 * Deepest level which fits in an address
+	 */
+	public static final int MAX_DEPTH = 31;
+
+	/**
+	 * Highest child number which fits in an address
+	 */
+	public static final int MAX_SLOT = 3;
+
+	private NodeAddress(){
+	}
+
+	/**
+	 * Parses a position such as "1-2-3"
+	 * @param position -
+	 * Position to parse
+	 * @return
+	 * Address of position
+	 * @throws IllegalArgumentException
+	 * position is null, malformed, deeper than MAX_DEPTH or takes a child
+	 * number above MAX_SLOT
+	 */
+	public static long parse(String position) throws IllegalArgumentException{
+		if(position == null || position.length() % 2 == 0
+				|| position.charAt(0) != '1')
+			throw new IllegalArgumentException("Invalid position " + position);
+		if(position.length() / 2 > MAX_DEPTH)
+			throw new IllegalArgumentException("Position " + position
+					+ " is too deep");
+		long address = ROOT;
+		for(int i = 1; i < position.length(); i += 2){
+			int slot = position.charAt(i + 1) - '0';
+			if(position.charAt(i) != '-' || slot < 1 || slot > MAX_SLOT)
+				throw new IllegalArgumentException("Invalid position "
+						+ position);
+			address = (address << 2) | slot;
+		}
+		return address;
+	}
+
+	/**
+	 * Formats an address as a position such as "1-2-3"
+	 * @param address -
+	 * Address to format
+	 * @return
+	 * Position of address
+	 * @throws IllegalArgumentException
+	 * address is NONE
+	 */
+	public static String toString(long address)
+			throws IllegalArgumentException{
+		if(address < 0)
+			throw new IllegalArgumentException("Not a node address");
+		int depth = depth(address);
+		char[] position = new char[depth * 2 + 1];
+		position[0] = '1';
+		for(int level = 1; level <= depth; level++){
+			position[level * 2 - 1] = '-';
+			position[level * 2] = (char)('0' + slotAt(address, level));
+		}
+		return new String(position);
+	}
+
+	/**
+	 * Gets number of levels between the root and an address
+	 * @param address -
+	 * Address to measure
+	 * @return
+	 * Depth of address, 0 for the root
+	 */
+	public static int depth(long address){
+		return (65 - Long.numberOfLeadingZeros(address)) / 2;
+	}
+
+	/**
+	 * Gets address of a child
+	 * @param address -
+	 * Address of parent
+	 * @param slot -
+	 * Child number, from 1
+	 * @return
+	 * Address of child, or NONE if it is deeper than MAX_DEPTH or slot is
+	 * above MAX_SLOT
+	 * @throws IllegalArgumentException
+	 * slot is less than 1
+	 */
+	public static long child(long address, int slot)
+			throws IllegalArgumentException{
+		if(slot < 1)
+			throw new IllegalArgumentException("Did not select a child");
+		if(address < 0 || slot > MAX_SLOT || depth(address) == MAX_DEPTH)
+			return NONE;
+		return (address << 2) | slot;
+	}
+
+	/**
+	 * Gets address of a parent
+	 * @param address -
+	 * Address of child
+	 * @return
+	 * Address of parent, or NONE for the root
+	 */
+	public static long parent(long address){
+		if(address <= ROOT)
+			return NONE;
+		return address >>> 2;
+	}
+
+	/**
+	 * Gets child number of the deepest level of an address
+	 * @param address -
+	 * Address to read
+	 * @return
+	 * Child number, 1, 2 or 3, or 0 for the root
+	 */
+	public static int slot(long address){
+		return (int)(address & 3);
+	}
+
+	/**
+	 * Gets child number taken at a level of an address
+	 * @param address -
+	 * Address to read
+	 * @param level -
+	 * Level to read, from 1 to the depth of the address
+	 * @return
+	 * Child number, 1, 2 or 3
+	 */
+	public static int slotAt(long address, int level){
+		return (int)(address >>> ((depth(address) - level) * 2)) & 3;
+	}
+
+	/**
+	 * Checks if one address is an ancestor of or equal to another
+	 * @param ancestor -
+	 * Possible ancestor
+	 * @param address -
+	 * Address to check
+	 * @return
+	 * True if ancestor is on the path from the root to address
+	 */
+	public static boolean isAncestor(long ancestor, long address){
+		if(ancestor < 0 || address < 0)
+			return false;
+		int levels = depth(address) - depth(ancestor);
+		return levels >= 0 && (address >>> (levels * 2)) == ancestor;
+	}
+}
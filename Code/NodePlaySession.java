@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The NodePlaySession plays a StoryTree, keeping the path from the root to
+ * its cursor so the tree's own cursor is never moved.
+ * @author Tejas
+ */
+public class NodePlaySession implements PlaySession {
+	private StoryTreeNode root;
+	private StoryTreeNode[] path;
+	private byte[] slots;
+	private int depth;
+	private long address;
+	private GameState state;
+
+	/**
+	 * Constructor starting a game at the root of a tree
+	 * @param tree -
+	 * StoryTree to play
+	 */
+	public NodePlaySession(StoryTree tree){
+		this(tree.getRoot());
+	}
+
+	/**
+	 * Constructor starting a game at a node which is never changed
+	 * @param root -
+	 * Root of the version to play
+	 */
+	NodePlaySession(StoryTreeNode root){
+		this.root = root;
+		path = new StoryTreeNode[16];
+		slots = new byte[16];
+		restart();
+	}
+
+	public GameState getGameState(){
+		return state;
+	}
+
+	public String getPosition(){
+		return StoryTree.positionOf(address, slots, depth);
+	}
+
+	public long getAddress(){
+		return address;
+	}
+
+	public int getDepth(){
+		return depth;
+	}
+
+	public String getOption(){
+		return path[depth].getOption();
+	}
+
+	public String getMessage(){
+		return path[depth].getMessage();
+	}
+
+	public String[][] getOptions(){
+		return StoryTree.getOptions(path[depth], getPosition());
+	}
+
+	public int getChildSlots(){
+		return path[depth].getChildSlots();
+	}
+
+	public String getChildOption(int slot){
+		StoryTreeNode child = path[depth].getChild(slot);
+		return child == null ? null : child.getOption();
+	}
+
+	public ByteBuffer getPrompt(){
+		return path[depth].getPrompt();
+	}
+
+	public boolean isWinning(){
+		return path[depth].isWinningNode();
+	}
+
+	public boolean isLosing(){
+		return path[depth].isLosingNode();
+	}
+
+	public void selectChild(String choice)
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(choice == null || choice.isEmpty())
+			throw new IllegalArgumentException();
+		selectChild(StoryTree.parseSlot(choice));
+	}
+
+	public void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException{
+		StoryTreeNode temp = path[depth].getChild(slot);
+		if(temp == null)
+			throw new NodeNotPresentException();
+		if(depth + 1 == path.length){
+			path = Arrays.copyOf(path, path.length * 2);
+			slots = Arrays.copyOf(slots, slots.length * 2);
+		}
+		path[++depth] = temp;
+		slots[depth] = (byte)slot;
+		address = NodeAddress.child(address, slot);
+		if(temp.isWinningNode())
+			state = GameState.GAME_OVER_WIN;
+		else if(temp.isLosingNode())
+			state = GameState.GAME_OVER_LOSE;
+	}
+
+	public double winProbability(){
+		return (double)path[depth].getWinningLeafCount()
+				/ (double)path[depth].getNodeCount() * 100;
+	}
+
+	public void restart(){
+		path[0] = root;
+		depth = 0;
+		address = NodeAddress.ROOT;
+		state = GameState.GAME_NOT_OVER;
+	}
+}
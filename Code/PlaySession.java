@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The PlaySession interface describes one player's game of a Story. It
+ * holds the player's cursor and GameState while the story itself is shared,
+ * so many sessions can play the same loaded story at once. A session is
+ * used by one thread at a time.
+ * @author Tejas
+ */
+public interface PlaySession {
+	/**
+	 * Gets state of game
+	 * @return
+	 * Current state of the game
+	 */
+	GameState getGameState();
+
+	/**
+	 * Gets position of cursor
+	 * @return
+	 * Position of cursor
+	 */
+	String getPosition();
+
+	/**
+	 * Gets packed address of cursor
+	 * @return
+	 * Address of cursor, or NodeAddress.NONE if the cursor is deeper than
+	 * NodeAddress.MAX_DEPTH
+	 */
+	long getAddress();
+
+	/**
+	 * Gets depth of cursor
+	 * @return
+	 * Number of levels between the root and the cursor
+	 */
+	int getDepth();
+
+	/**
+	 * Gets option of cursor
+	 * @return
+	 * Option of cursor
+	 */
+	String getOption();
+
+	/**
+	 * Gets message of cursor
+	 * @return
+	 * Message of cursor
+	 */
+	String getMessage();
+
+	/**
+	 * Gets array of options for immediate child's of cursor
+	 * @return
+	 * Array of options for children of cursor
+	 */
+	String[][] getOptions();
+
+	/**
+	 * Gets highest child number in use at the cursor, so the options can
+	 * be read one at a time through getChildOption without building the
+	 * array getOptions returns
+	 * @return
+	 * Highest child number with a child, or 0 at a leaf
+	 */
+	int getChildSlots();
+
+	/**
+	 * Gets option of a child of the cursor
+	 * @param slot -
+	 * Child number, from 1
+	 * @return
+	 * Option of child, or null if there is no child at slot
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	String getChildOption(int slot) throws IllegalArgumentException;
+
+	/**
+	 * Gets message of cursor and the numbered options of its children as
+	 * they are shown to a player, ready to be written out
+	 * @return
+	 * Read only buffer of the prompt in the default charset, positioned at
+	 * its start
+	 */
+	ByteBuffer getPrompt();
+
+	/**
+	 * Check if cursor is a winning leaf
+	 * @return
+	 * True if cursor is a winning node
+	 */
+	boolean isWinning();
+
+	/**
+	 * Check if cursor is a losing leaf
+	 * @return
+	 * True if cursor is a losing node
+	 */
+	boolean isLosing();
+
+	/**
+	 * Selects child with indicated position
+	 * @param choice -
+	 * Choice made by the player, starting with a child number
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * choice is null or empty, or does not start with a child number
+	 */
+	void selectChild(String choice)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Selects child with indicated child number
+	 * @param slot -
+	 * Child number of node to move to, from 1
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Gets probability of a win from current node
+	 * @return
+	 * Probability of a win as a percentage
+	 */
+	double winProbability();
+
+	/**
+	 * Starts the game again from the root
+	 */
+	void restart();
+}
@@ -0,0 +1,206 @@
+import java.util.Arrays;
+
+/**
+ * The PositionIndex maps the packed NodeAddress of every node of a tree to
+ * the node, so a node can be found with one hash lookup instead of a walk
+ * from the root. It is an open addressing hash table with linear probing,
+ * and deleting shifts the following entries back instead of leaving
+ * markers, so removing a whole subtree leaves the table as if it had never
+ * been added. Nodes deeper than NodeAddress.MAX_DEPTH have no address and
+ * are not indexed.
+ * @author Tejas
+ */
+public class PositionIndex {
+	private static final long EMPTY = NodeAddress.NONE;
+
+	private long[] keys;
+	private StoryTreeNode[] values;
+	private int size;
+	private int mask;
+
+	/**
+	 * Default Constructor
+	 */
+	public PositionIndex(){
+		this(16);
+	}
+
+	/**
+	 * Constructor sized for a number of nodes
+	 * @param expected -
+	 * Number of nodes expected in the index
+	 */
+	public PositionIndex(int expected){
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1))
+					   << 1;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new StoryTreeNode[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Gets node at an address
+	 * @param address -
+	 * Address to look up
+	 * @return
+	 * Node at address, or null if there is none
+	 */
+	public StoryTreeNode get(long address){
+		if(address < 0)
+			return null;
+		for(int i = slotOf(address); ; i = (i + 1) & mask){
+			if(keys[i] == address)
+				return values[i];
+			if(keys[i] == EMPTY)
+				return null;
+		}
+	}
+
+	/**
+	 * Sets node at an address
+	 * @param address -
+	 * Address of node, nothing is stored if it is NodeAddress.NONE
+	 * @param node -
+	 * Node at address
+	 */
+	public void put(long address, StoryTreeNode node){
+		if(address < 0)
+			return;
+		if((size + 1) * 4 > keys.length * 3)
+			resize(keys.length * 2);
+		int i = slotOf(address);
+		while(keys[i] != EMPTY && keys[i] != address)
+			i = (i + 1) & mask;
+		if(keys[i] == EMPTY)
+			size++;
+		keys[i] = address;
+		values[i] = node;
+	}
+
+	/**
+	 * Removes the node at an address
+	 * @param address -
+	 * Address to remove
+	 * @return
+	 * Node which was removed, or null if there was none
+	 */
+	public StoryTreeNode remove(long address){
+		if(address < 0)
+			return null;
+		int i = slotOf(address);
+		while(keys[i] != address){
+			if(keys[i] == EMPTY)
+				return null;
+			i = (i + 1) & mask;
+		}
+		StoryTreeNode removed = values[i];
+		// Move back every following entry which could no longer be found
+		// once this slot is empty
+		int hole = i;
+		for(int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask){
+			int home = slotOf(keys[j]);
+			if(((j - home) & mask) >= ((j - hole) & mask)){
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		keys[hole] = EMPTY;
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Adds a node and everything below it
+	 * @param address -
+	 * Address of node
+	 * @param node -
+	 * Root of subtree to add
+	 */
+	public void putSubtree(long address, StoryTreeNode node){
+		walk(address, node, true);
+	}
+
+	/**
+	 * Removes a node and everything below it
+	 * @param address -
+	 * Address of node
+	 * @param node -
+	 * Root of subtree to remove
+	 */
+	public void removeSubtree(long address, StoryTreeNode node){
+		walk(address, node, false);
+	}
+
+	/**
+	 * Gets number of nodes indexed
+	 * @return
+	 * Number of nodes
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Removes every node
+	 */
+	public void clear(){
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private void walk(long address, StoryTreeNode node, boolean add){
+		if(address < 0 || node == null)
+			return;
+		StoryTreeNode[] stack = new StoryTreeNode[64];
+		long[] addresses = new long[64];
+		int top = 0;
+		stack[top] = node;
+		addresses[top++] = address;
+		while(top > 0){
+			StoryTreeNode next = stack[--top];
+			long nextAddress = addresses[top];
+			if(add)
+				put(nextAddress, next);
+			else
+				remove(nextAddress);
+			if(NodeAddress.depth(nextAddress) == NodeAddress.MAX_DEPTH)
+				continue;
+			if(top + NodeAddress.MAX_SLOT > stack.length){
+				stack = Arrays.copyOf(stack, stack.length * 2);
+				addresses = Arrays.copyOf(addresses, addresses.length * 2);
+			}
+			int last = Math.min(next.getChildSlots(), NodeAddress.MAX_SLOT);
+			for(int slot = 1; slot <= last; slot++){
+				StoryTreeNode child = next.getChild(slot);
+				if(child != null){
+					stack[top] = child;
+					addresses[top++] = (nextAddress << 2) | slot;
+				}
+			}
+		}
+	}
+
+	private void resize(int capacity){
+		long[] oldKeys = keys;
+		StoryTreeNode[] oldValues = values;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new StoryTreeNode[capacity];
+		mask = capacity - 1;
+		size = 0;
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldKeys[i] != EMPTY)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	private int slotOf(long address){
+		// Spread the bits, the low bits of nearby addresses are too alike
+		long hash = address * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+}
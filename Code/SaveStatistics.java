@@ -0,0 +1,42 @@
+/**
+ * The SaveStatistics describes what was written when saving a StoryTree.
+ * @author Tejas
+ */
+public class SaveStatistics {
+	private int nodesWritten;
+	private long bytesWritten;
+
+	/**
+	 * Constructor with specific parameters for member variables
+	 * @param nodesWritten -
+	 * Number of nodes written
+	 * @param bytesWritten -
+	 * Number of bytes written
+	 */
+	public SaveStatistics(int nodesWritten, long bytesWritten){
+		this.nodesWritten = nodesWritten;
+		this.bytesWritten = bytesWritten;
+	}
+
+	/**
+	 * Gets number of nodes written
+	 * @return
+	 * Number of nodes written
+	 */
+	public int getNodesWritten(){
+		return nodesWritten;
+	}
+
+	/**
+	 * Gets number of bytes written
+	 * @return
+	 * Number of bytes written
+	 */
+	public long getBytesWritten(){
+		return bytesWritten;
+	}
+
+	public String toString(){
+		return nodesWritten + " nodes, " + bytesWritten + " bytes";
+	}
+}
@@ -0,0 +1,434 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+/**
+ * The ScriptedReplay plays scripted games against a story without a
+ * console, to check that a story still plays the way it did before it was
+ * edited. A script file holds one game per line,
+ * <pre>
+ * name | choices | expected position | expected state
+ * </pre>
+ * where the choices are child numbers separated by spaces and the state is
+ * a GameState such as GAME_OVER_WIN. An expected position or state left
+ * empty is not checked, and blank lines and lines starting with # are
+ * skipped. Scripts are shared out between threads, each playing its own
+ * PlaySession of the one story, so the story must not be edited while
+ * they run.
+ * @author Tejas
+ */
+public class ScriptedReplay {
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final int MAX_FAILURES_SHOWN = 20;
+
+	private Story story;
+	private int threads;
+
+	/**
+	 * Constructor with specific parameters for member variables
+	 * @param story -
+	 * Story to play the scripts against
+	 * @param threads -
+	 * Number of threads playing at once
+	 * @throws IllegalArgumentException
+	 * story is null or threads is not positive
+	 */
+	public ScriptedReplay(Story story, int threads)
+			throws IllegalArgumentException{
+		if(story == null || threads <= 0)
+			throw new IllegalArgumentException();
+		this.story = story;
+		this.threads = threads;
+	}
+
+	/**
+	 * Reads the scripts in a file
+	 * @param filename -
+	 * Name of the script file
+	 * @return
+	 * Scripts in the order of the file
+	 * @throws IOException
+	 * File could not be read
+	 * @throws DataFormatException
+	 * A line is not a valid script
+	 */
+	public static ArrayList<Script> readScripts(String filename)
+			throws IOException, DataFormatException{
+		ArrayList<Script> scripts = new ArrayList<Script>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(filename), CHARSET), 1 << 16);
+		try{
+			String line;
+			for(int number = 1; (line = in.readLine()) != null; number++){
+				String trimmed = line.trim();
+				if(trimmed.isEmpty() || trimmed.startsWith("#"))
+					continue;
+				try{
+					scripts.add(Script.parse(trimmed));
+				}
+				catch(IllegalArgumentException e){
+					throw new DataFormatException(filename + " line "
+							+ number + ": " + e.getMessage());
+				}
+			}
+		}
+		finally{
+			in.close();
+		}
+		return scripts;
+	}
+
+	/**
+	 * Writes scripts to a file in the format readScripts reads
+	 * @param filename -
+	 * Name of file to write
+	 * @param scripts -
+	 * Scripts to write
+	 * @throws IOException
+	 * File could not be written
+	 */
+	public static void writeScripts(String filename, List<Script> scripts)
+			throws IOException{
+		AtomicFileOutputStream out = new AtomicFileOutputStream(filename);
+		try{
+			Writer fileOut = new BufferedWriter(new OutputStreamWriter(out,
+					CHARSET), 1 << 16);
+			for(Script script : scripts){
+				fileOut.write(script.toString());
+				fileOut.write('\n');
+			}
+			fileOut.flush();
+			out.commit();
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Records random games played through the story as scripts expecting
+	 * the positions and states they reach now
+	 * @param count -
+	 * Number of games to record
+	 * @param random -
+	 * Source of the choices
+	 * @return
+	 * Scripts of the games
+	 */
+	public ArrayList<Script> record(int count, Random random){
+		ArrayList<Script> scripts = new ArrayList<Script>(count);
+		PlaySession session = story.newSession();
+		int[] slots = new int[16];
+		int[] options = new int[StoryTreeNode.MAX_CHILDREN];
+		for(int i = 0; i < count; i++){
+			session.restart();
+			int length = 0;
+			while(session.getGameState() == GameState.GAME_NOT_OVER){
+				int available = 0;
+				for(int slot = 1; slot <= session.getChildSlots(); slot++){
+					if(session.getChildOption(slot) != null)
+						options[available++] = slot;
+				}
+				if(available == 0)
+					break;
+				if(length == slots.length)
+					slots = Arrays.copyOf(slots, length * 2);
+				slots[length] = options[random.nextInt(available)];
+				try{
+					session.selectChild(slots[length++]);
+				}
+				catch(NodeNotPresentException e){
+					// Listed as an option, so it is there
+					throw new IllegalStateException(e);
+				}
+			}
+			scripts.add(new Script("game-" + (i + 1),
+					Arrays.copyOf(slots, length),
+					session.getPosition(), session.getGameState()));
+		}
+		return scripts;
+	}
+
+	/**
+	 * Plays every script, sharing them out between the threads
+	 * @param scripts -
+	 * Scripts to play
+	 * @return
+	 * What went wrong in each script, null for each which passed. A script
+	 * which threw, or was never played, counts as failed.
+	 * @throws InterruptedException
+	 * Interrupted while waiting for the threads
+	 */
+	public String[] replay(final List<Script> scripts)
+			throws InterruptedException{
+		final String[] failures = new String[scripts.size()];
+		// A script whose worker dies before playing it must not pass
+		for(int i = 0; i < failures.length; i++)
+			failures[i] = scripts.get(i).getName() + ": not run";
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		final int count = Math.min(threads, Math.max(1, scripts.size()));
+		for(int i = 0; i < count; i++){
+			final int first = i;
+			Thread worker = new Thread(new Runnable(){
+				public void run(){
+					PlaySession session = story.newSession();
+					for(int j = first; j < failures.length; j += count){
+						try{
+							failures[j] = replay(session, scripts.get(j));
+						}
+						catch(RuntimeException e){
+							failures[j] = scripts.get(j).getName() + ": " + e;
+						}
+					}
+				}
+			}, "replay-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		for(Thread worker : workers)
+			worker.start();
+		for(Thread worker : workers)
+			worker.join();
+		return failures;
+	}
+
+	/**
+	 * Plays one script from the start of a game
+	 * @param session -
+	 * Session to play in
+	 * @param script -
+	 * Script to play
+	 * @return
+	 * What went wrong, or null if the script passed
+	 */
+	public static String replay(PlaySession session, Script script){
+		session.restart();
+		int[] slots = script.slots;
+		for(int i = 0; i < slots.length; i++){
+			if(session.getGameState() != GameState.GAME_NOT_OVER)
+				return script.name + ": game over at "
+						+ session.getPosition() + " after " + i + " of "
+						+ slots.length + " choices";
+			try{
+				session.selectChild(slots[i]);
+			}
+			catch(NodeNotPresentException e){
+				return script.name + ": no choice " + slots[i] + " at "
+						+ session.getPosition();
+			}
+			catch(IllegalArgumentException e){
+				return script.name + ": invalid choice " + slots[i] + " at "
+						+ session.getPosition();
+			}
+		}
+		GameState state = session.getGameState();
+		boolean position = script.position == null
+				|| (script.address != NodeAddress.NONE
+					? session.getAddress() == script.address
+					: session.getPosition().equals(script.position));
+		if(position && (script.state == null || script.state == state))
+			return null;
+		return script.name + ": expected "
+				+ (script.position == null ? "any" : script.position) + " "
+				+ (script.state == null ? "any" : script.state)
+				+ ", reached " + session.getPosition() + " " + state;
+	}
+
+	/**
+	 * Replays or records a script file from the command line
+	 * @param args -
+	 * Optionally --threads followed by a number, or --record followed by
+	 * the number of games and optionally --seed, then the story file and
+	 * the script file
+	 */
+	public static void main(String[] args){
+		int threads = Runtime.getRuntime().availableProcessors();
+		int record = 0;
+		long seed = 0;
+		ArrayList<String> files = new ArrayList<String>();
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].startsWith("--") && i + 1 == args.length){
+					System.out.println("Missing value for " + args[i]);
+					return;
+				}
+				switch(args[i]){
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "--record":
+					record = Integer.parseInt(args[++i]);
+					break;
+				case "--seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				default:
+					files.add(args[i]);
+				}
+			}
+			if(files.size() != 2){
+				System.out.println("Usage: java ScriptedReplay [--threads n] "
+						+ "<story file> <script file>\n"
+						+ "       java ScriptedReplay --record <games> "
+						+ "[--seed s] <story file> <script file>");
+				return;
+			}
+			Story story = StoryJournal.load(files.get(0));
+			ScriptedReplay replay = new ScriptedReplay(story, threads);
+			if(record > 0){
+				writeScripts(files.get(1),
+						replay.record(record, new Random(seed)));
+				System.out.println(record + " games recorded to "
+						+ files.get(1));
+				return;
+			}
+
+			ArrayList<Script> scripts = readScripts(files.get(1));
+			long start = System.nanoTime();
+			String[] failures = replay.replay(scripts);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			int failed = 0;
+			for(String failure : failures){
+				if(failure == null)
+					continue;
+				if(failed++ < MAX_FAILURES_SHOWN)
+					System.out.println(failure);
+			}
+			if(failed > MAX_FAILURES_SHOWN)
+				System.out.println("... and " + (failed - MAX_FAILURES_SHOWN)
+						+ " more");
+			System.out.println(String.format("%d scripts, %d passed, "
+					+ "%d failed in %.2f seconds (%.0f per second)",
+					scripts.size(), scripts.size() - failed, failed, seconds,
+					scripts.size() / seconds));
+		}
+		catch(IllegalArgumentException e){
+			System.out.println("Invalid argument: " + e.getMessage());
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+		catch(InterruptedException e){
+			System.out.println("Interrupted");
+		}
+	}
+
+	/**
+	 * The Script is one game to replay, its choices and where it should
+	 * end up
+	 */
+	public static class Script {
+		private String name;
+		private int[] slots;
+		private String position;
+		private long address;
+		private GameState state;
+
+		/**
+		 * Constructor with specific parameters for member variables
+		 * @param name -
+		 * Name reported when the script fails
+		 * @param slots -
+		 * Child chosen at each step, from 1
+		 * @param position -
+		 * Position the game should reach, or null to not check it
+		 * @param state -
+		 * State the game should be in, or null to not check it
+		 * @throws IllegalArgumentException
+		 * name or slots is null
+		 */
+		public Script(String name, int[] slots, String position,
+				GameState state) throws IllegalArgumentException{
+			if(name == null || slots == null)
+				throw new IllegalArgumentException();
+			this.name = name;
+			this.slots = slots.clone();
+			this.position = position;
+			this.state = state;
+			address = NodeAddress.NONE;
+			if(position != null){
+				try{
+					address = NodeAddress.parse(position);
+				}
+				catch(IllegalArgumentException e){
+					// Deeper than an address reaches, compared as text
+				}
+			}
+		}
+
+		/**
+		 * Reads a script from a line of a script file
+		 * @param line -
+		 * name | choices | expected position | expected state
+		 * @return
+		 * Script on the line
+		 * @throws IllegalArgumentException
+		 * line is not a valid script
+		 */
+		public static Script parse(String line)
+				throws IllegalArgumentException{
+			String[] fields = line.split("\\|", -1);
+			if(fields.length != 4)
+				throw new IllegalArgumentException("Expected 4 fields "
+						+ "separated by |");
+			String choices = fields[1].trim();
+			String[] tokens = choices.isEmpty() ? new String[0]
+					: choices.split("\\s+");
+			int[] slots = new int[tokens.length];
+			for(int i = 0; i < tokens.length; i++){
+				try{
+					slots[i] = Integer.parseInt(tokens[i]);
+				}
+				catch(NumberFormatException e){
+					throw new IllegalArgumentException("Invalid choice "
+							+ tokens[i]);
+				}
+			}
+			String position = fields[2].trim();
+			String state = fields[3].trim();
+			return new Script(fields[0].trim(), slots,
+					position.isEmpty() ? null : position,
+					state.isEmpty() ? null : GameState.valueOf(state));
+		}
+
+		/**
+		 * Gets name of the script
+		 * @return
+		 * Name reported when the script fails
+		 */
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * Gets the script as a line of a script file
+		 * @return
+		 * name | choices | expected position | expected state
+		 */
+		public String toString(){
+			StringBuilder line = new StringBuilder(name).append(" |");
+			for(int slot : slots)
+				line.append(' ').append(slot);
+			line.append(" | ");
+			if(position != null)
+				line.append(position);
+			line.append(" | ");
+			if(state != null)
+				line.append(state);
+			return line.toString();
+		}
+	}
+}
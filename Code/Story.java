@@ -0,0 +1,295 @@
+import java.io.IOException;
+
+/**
+ * The Story interface describes a Zork story which is navigated and edited
+ * through a cursor. It is implemented by StoryTree, which links StoryTreeNode
+ * objects together, and by CompactStoryTree, which keeps the tree in arrays.
+ * @author Tejas
+ */
+public interface Story {
+	/**
+	 * Starts a new game at the root which keeps its own cursor, leaving
+	 * the cursor of the story where it is. Sessions only read the story, so
+	 * any number of them may play at once from different threads as long
+	 * as the story is not edited while they do.
+	 * @return
+	 * New session for one player
+	 */
+	PlaySession newSession();
+
+	/**
+	 * Gets state of game
+	 * @return
+	 * Current state of the game
+	 */
+	GameState getGameState();
+
+	/**
+	 * Gets position of cursor
+	 * @return
+	 * Position of cursor
+	 */
+	String getCursorPosition();
+
+	/**
+	 * Gets packed address of cursor
+	 * @return
+	 * Address of cursor, or NodeAddress.NONE if the cursor is deeper than
+	 * NodeAddress.MAX_DEPTH
+	 */
+	long getCursorAddress();
+
+	/**
+	 * Gets depth of cursor
+	 * @return
+	 * Number of levels between the root and the cursor
+	 */
+	int getCursorDepth();
+
+	/**
+	 * Gets message of cursor
+	 * @return
+	 * Message of cursor
+	 */
+	String getCursorMessage();
+
+	/**
+	 * Gets option of cursor
+	 * @return
+	 * Option of Cursor
+	 */
+	String getCursorOption();
+
+	/**
+	 * Gets array of options for immediate child's of cursor
+	 * @return
+	 * Array of options for children of cursor
+	 */
+	String[][] getOptions();
+
+	/**
+	 * Gets highest child number in use at the cursor, so the options can
+	 * be read one at a time through getChildOption without building the
+	 * array getOptions returns
+	 * @return
+	 * Highest child number with a child, or 0 at a leaf
+	 */
+	int getChildSlots();
+
+	/**
+	 * Gets option of a child of the cursor
+	 * @param slot -
+	 * Child number, from 1
+	 * @return
+	 * Option of child, or null if there is no child at slot
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	String getChildOption(int slot) throws IllegalArgumentException;
+
+	/**
+	 * Sets message for cursor
+	 * @param message -
+	 * Message to set cursor to
+	 */
+	void setCursorMessage(String message);
+
+	/**
+	 * Sets option for cursor
+	 * @param option -
+	 * Option to set cursor to
+	 */
+	void setCursorOption(String option);
+
+	/**
+	 * Check if cursor has no children
+	 * @return
+	 * True if cursor is a leaf
+	 */
+	boolean isCursorLeaf();
+
+	/**
+	 * Check if cursor is a winning leaf
+	 * @return
+	 * True if cursor is a winning node
+	 */
+	boolean isCursorWinning();
+
+	/**
+	 * Check if cursor is a losing leaf
+	 * @return
+	 * True if cursor is a losing node
+	 */
+	boolean isCursorLosing();
+
+	/**
+	 * Resets cursor to root
+	 */
+	void resetCursor();
+
+	/**
+	 * Selects node starting from root based on position
+	 * @param position -
+	 * Position of node to look for
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * position is null or empty
+	 */
+	void selectChildStartRoot(String position)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Selects node starting from root based on packed address
+	 * @param address -
+	 * Address of node to look for
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * address is NodeAddress.NONE
+	 */
+	void selectAddress(long address)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Selects child with indicated position
+	 * @param position -
+	 * position of node to set cursor to
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * position is null or empty
+	 */
+	void selectChild(String position)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Selects child with indicated child number
+	 * @param slot -
+	 * Child number of node to set cursor to, from 1
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	void selectChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Adds a child under current cursor with specified option and message
+	 * @param option -
+	 * Option to set new node to
+	 * @param message -
+	 * Message to set new node to
+	 * @throws TreeFullException
+	 * All StoryTreeNode.MAX_CHILDREN child spots are full
+	 * @throws IllegalArgumentException
+	 * option or message are null or empty
+	 */
+	void addChild(String option, String message)
+			throws TreeFullException, IllegalArgumentException;
+
+	/**
+	 * Adds new child under the current cursor, replacing any child already
+	 * at that child number
+	 * @param slot -
+	 * Child number of node to add, from 1
+	 * @param option -
+	 * Option of new node
+	 * @param message -
+	 * Message of new node
+	 * @throws TreeFullException
+	 * All StoryTreeNode.MAX_CHILDREN child spots are full
+	 * @throws IllegalArgumentException
+	 * Parameters are null or empty, or slot is not from 1 to
+	 * StoryTreeNode.MAX_CHILDREN
+	 */
+	void addChild(int slot, String option, String message)
+			throws TreeFullException, IllegalArgumentException;
+
+	/**
+	 * Removes a child under the cursor
+	 * @param position -
+	 * Position of child to remove
+	 * @return
+	 * Child which was removed
+	 * @throws NodeNotPresentException
+	 * Node with indicated position not found
+	 * @throws IllegalArgumentException
+	 * position is null or empty
+	 */
+	StoryTreeNode removeChild(String position)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Removes a child under the cursor
+	 * @param slot -
+	 * Child number of child to remove, from 1
+	 * @return
+	 * Child which was removed
+	 * @throws NodeNotPresentException
+	 * Node with indicated child number not found
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	StoryTreeNode removeChild(int slot)
+			throws NodeNotPresentException, IllegalArgumentException;
+
+	/**
+	 * Returns cursor to parent node. The cursor stays at the root if it is
+	 * already there.
+	 */
+	void returnToParent();
+
+	/**
+	 * Moves the cursor up the indicated number of levels, stopping at the
+	 * root
+	 * @param levels -
+	 * Number of levels to move up
+	 * @throws IllegalArgumentException
+	 * levels is negative
+	 */
+	void returnToParent(int levels) throws IllegalArgumentException;
+
+	/**
+	 * Gets number of children of the cursor
+	 * @return
+	 * Number of children
+	 */
+	int getNumberChildren();
+
+	/**
+	 * Gets probability of a win from current node
+	 * @return
+	 * Probability of a win as a percentage
+	 */
+	double winProbability();
+
+	/**
+	 * Adds a listener to tell about every edit, after those added before
+	 * @param listener -
+	 * Listener to tell
+	 */
+	void addListener(StoryListener listener);
+
+	/**
+	 * Stops telling a listener about edits
+	 * @param listener -
+	 * Listener added before
+	 */
+	void removeListener(StoryListener listener);
+
+	/**
+	 * Saves the story to a file
+	 * @param filename -
+	 * Name of file to save to
+	 * @return
+	 * Number of nodes and bytes written
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File could not be written
+	 */
+	SaveStatistics save(String filename)
+			throws IllegalArgumentException, IOException;
+}
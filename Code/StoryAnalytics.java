@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The StoryAnalytics gathers statistics about a subtree of a StoryTree in
+ * one pass spread over a ForkJoinPool. Where a node has more than one
+ * child subtree large enough to be worth it, each is analyzed by its own
+ * task, using the node counts cached on each node to decide, and smaller
+ * subtrees are walked in the task which reaches them. A single large child
+ * is followed down in the same task, so a long chain of nodes does not nest
+ * one task inside another for every node. The tree must not be edited
+ * while it is being analyzed.
+ * @author Tejas
+ */
+public class StoryAnalytics {
+	/**
+	 * Most dead end positions listed in a report by default
+	 */
+	public static final int DEFAULT_DEAD_END_LIMIT = 100;
+
+	private static final int FORK_THRESHOLD = 8192;
+
+	private StoryAnalytics(){
+	}
+
+	/**
+	 * Analyzes the subtree at the cursor of a tree in the common pool
+	 * @param tree -
+	 * Tree to analyze
+	 * @return
+	 * Statistics of the subtree at the cursor
+	 */
+	public static StoryReport analyze(StoryTree tree){
+		return analyze(tree.getCursor(), tree.getCursorPosition(),
+					   DEFAULT_DEAD_END_LIMIT, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Analyzes a subtree
+	 * @param root -
+	 * Root of the subtree
+	 * @param position -
+	 * Position of root, used to name the positions in the report
+	 * @param deadEndLimit -
+	 * Most dead end positions to list
+	 * @param pool -
+	 * Pool to run the analysis in
+	 * @return
+	 * Statistics of the subtree
+	 * @throws IllegalArgumentException
+	 * root, position or pool is null, or deadEndLimit is negative
+	 */
+	public static StoryReport analyze(StoryTreeNode root, String position,
+			int deadEndLimit, ForkJoinPool pool)
+			throws IllegalArgumentException{
+		if(root == null || position == null || pool == null
+				|| deadEndLimit < 0)
+			throw new IllegalArgumentException();
+		Counts counts = pool.invoke(new SubtreeTask(root, position, 0,
+													deadEndLimit));
+		return new StoryReport(counts.nodes, counts.leaves, counts.wins,
+				counts.losses, counts.deadEnds,
+				Arrays.copyOf(counts.depths, counts.deepest + 1),
+				counts.deepest, counts.deepestPosition, counts.deadEndPositions);
+	}
+
+	/**
+	 * The Counts are the statistics of one subtree, with depths counted
+	 * from the root of the whole analysis
+	 */
+	private static class Counts {
+		private long nodes;
+		private long leaves;
+		private long wins;
+		private long losses;
+		private long deadEnds;
+		private long[] depths = new long[16];
+		private int deepest = -1;
+		private String deepestPosition;
+		private ArrayList<String> deadEndPositions = new ArrayList<String>();
+
+		private void countDepth(int depth){
+			if(depth >= depths.length)
+				depths = Arrays.copyOf(depths, Math.max(depth + 1,
+														depths.length * 2));
+			depths[depth]++;
+		}
+
+		/**
+		 * Adds the counts of a subtree which comes after this one in
+		 * preorder
+		 */
+		private void add(Counts other, int deadEndLimit){
+			nodes += other.nodes;
+			leaves += other.leaves;
+			wins += other.wins;
+			losses += other.losses;
+			deadEnds += other.deadEnds;
+			if(other.depths.length > depths.length)
+				depths = Arrays.copyOf(depths, other.depths.length);
+			for(int i = 0; i < other.depths.length; i++)
+				depths[i] += other.depths[i];
+			if(other.deepest > deepest){
+				deepest = other.deepest;
+				deepestPosition = other.deepestPosition;
+			}
+			for(String position : other.deadEndPositions){
+				if(deadEndPositions.size() == deadEndLimit)
+					break;
+				deadEndPositions.add(position);
+			}
+		}
+	}
+
+	/**
+	 * The SubtreeTask analyzes one subtree, forking tasks where it splits
+	 * into more than one large subtree
+	 */
+	private static class SubtreeTask extends RecursiveTask<Counts> {
+		private static final long serialVersionUID = 1L;
+
+		private StoryTreeNode root;
+		private String position;
+		private int depth;
+		private int deadEndLimit;
+		// Child numbers from root down to the node being counted, slot i
+		// taken at depth + i
+		private byte[] slots = new byte[64];
+
+		private SubtreeTask(StoryTreeNode root, String position, int depth,
+				int deadEndLimit){
+			this.root = root;
+			this.position = position;
+			this.depth = depth;
+			this.deadEndLimit = deadEndLimit;
+		}
+
+		protected Counts compute(){
+			Counts counts = new Counts();
+			// Counts of the small children after the large one at each
+			// level followed down, added back once the levels below are
+			ArrayList<Counts> later = new ArrayList<Counts>();
+			StoryTreeNode node = root;
+			int nodeDepth = depth;
+			while(true){
+				int relative = nodeDepth - depth;
+				countNode(counts, node, node.isLeaf()
+						? positionOf(slots, relative) : null, nodeDepth);
+				int large = 0;
+				int largeSlot = 0;
+				for(int slot = 1; slot <= node.getChildSlots(); slot++){
+					StoryTreeNode child = node.getChild(slot);
+					if(child != null && child.getNodeCount() >= FORK_THRESHOLD){
+						large++;
+						largeSlot = slot;
+					}
+				}
+				if(large != 1){
+					fork(counts, node, nodeDepth);
+					break;
+				}
+
+				// A single large child is followed down here rather than
+				// forked, so a long chain does not nest a task per node
+				Counts after = new Counts();
+				for(int slot = 1; slot <= node.getChildSlots(); slot++){
+					StoryTreeNode child = node.getChild(slot);
+					if(child == null || slot == largeSlot)
+						continue;
+					if(slot < largeSlot)
+						counts.add(walk(child, slot, nodeDepth), deadEndLimit);
+					else
+						after.add(walk(child, slot, nodeDepth), deadEndLimit);
+				}
+				later.add(after);
+				if(relative + 1 >= slots.length)
+					slots = Arrays.copyOf(slots, slots.length * 2);
+				slots[relative + 1] = (byte)largeSlot;
+				node = node.getChild(largeSlot);
+				nodeDepth++;
+			}
+			for(int i = later.size() - 1; i >= 0; i--)
+				counts.add(later.get(i), deadEndLimit);
+			// Deepest at a node followed down, whose position was not built
+			if(counts.deepestPosition == null)
+				counts.deepestPosition = positionOf(slots,
+													counts.deepest - depth);
+			return counts;
+		}
+
+		/**
+		 * Adds the children of a node to counts, forking a task for every
+		 * large child and walking the small ones here
+		 */
+		private void fork(Counts counts, StoryTreeNode node, int nodeDepth){
+			// Fork every large child first so they run while the small
+			// ones are walked here, then add them back in preorder
+			int children = node.getChildSlots();
+			SubtreeTask[] forked = new SubtreeTask[children];
+			Counts[] walked = new Counts[children];
+			String nodePosition = null;
+			for(int slot = 1; slot <= children; slot++){
+				StoryTreeNode child = node.getChild(slot);
+				if(child != null && child.getNodeCount() >= FORK_THRESHOLD){
+					if(nodePosition == null)
+						nodePosition = positionOf(slots, nodeDepth - depth);
+					forked[slot - 1] = new SubtreeTask(child, nodePosition
+							+ "-" + slot, nodeDepth + 1, deadEndLimit);
+					forked[slot - 1].fork();
+				}
+			}
+			for(int slot = 1; slot <= children; slot++){
+				StoryTreeNode child = node.getChild(slot);
+				if(child != null && forked[slot - 1] == null)
+					walked[slot - 1] = walk(child, slot, nodeDepth);
+			}
+			for(int slot = 1; slot <= children; slot++){
+				if(forked[slot - 1] != null)
+					counts.add(forked[slot - 1].join(), deadEndLimit);
+				else if(walked[slot - 1] != null)
+					counts.add(walked[slot - 1], deadEndLimit);
+			}
+		}
+
+		/**
+		 * Walks a small subtree in preorder without forking, below the
+		 * path to its parent already in slots
+		 */
+		private Counts walk(StoryTreeNode child, int childSlot,
+				int parentDepth){
+			Counts counts = new Counts();
+			StoryTreeNode[] stack = new StoryTreeNode[64];
+			int[] levels = new int[64];
+			int top = 0;
+			stack[top] = child;
+			// Each level is packed as its depth times 256 plus its slot
+			levels[top++] = (parentDepth + 1) << 8 | childSlot;
+			while(top > 0){
+				StoryTreeNode node = stack[--top];
+				int level = levels[top];
+				int nodeDepth = level >>> 8;
+				int relative = nodeDepth - depth;
+				if(relative >= slots.length)
+					slots = Arrays.copyOf(slots, slots.length * 2);
+				slots[relative] = (byte)(level & 0xFF);
+				countNode(counts, node, null, nodeDepth);
+				if(node.isLeaf()){
+					if(counts.deepestPosition == null)
+						counts.deepestPosition = positionOf(slots, relative);
+					if(!node.isWinningNode() && !node.isLosingNode()
+							&& counts.deadEndPositions.size() < deadEndLimit)
+						counts.deadEndPositions.add(positionOf(slots,
+															   relative));
+					continue;
+				}
+
+				if(top + node.getChildSlots() > stack.length){
+					int length = Math.max(stack.length * 2,
+										  top + node.getChildSlots());
+					stack = Arrays.copyOf(stack, length);
+					levels = Arrays.copyOf(levels, length);
+				}
+				for(int slot = node.getChildSlots(); slot >= 1; slot--){
+					StoryTreeNode next = node.getChild(slot);
+					if(next != null){
+						stack[top] = next;
+						levels[top++] = (nodeDepth + 1) << 8 | slot;
+					}
+				}
+			}
+			return counts;
+		}
+
+		/**
+		 * Counts one node, position may be null if it is only needed when
+		 * the node is the root of the task
+		 */
+		private void countNode(Counts counts, StoryTreeNode node,
+				String nodePosition, int nodeDepth){
+			counts.nodes++;
+			counts.countDepth(nodeDepth);
+			if(nodeDepth > counts.deepest){
+				counts.deepest = nodeDepth;
+				counts.deepestPosition = nodePosition;
+			}
+			if(!node.isLeaf())
+				return;
+			counts.leaves++;
+			if(node.isWinningNode())
+				counts.wins++;
+			else if(node.isLosingNode())
+				counts.losses++;
+			else{
+				counts.deadEnds++;
+				if(nodePosition != null
+						&& counts.deadEndPositions.size() < deadEndLimit)
+					counts.deadEndPositions.add(nodePosition);
+			}
+		}
+
+		private String positionOf(byte[] slots, int levels){
+			StringBuilder text = new StringBuilder(position.length()
+												   + levels * 2);
+			text.append(position);
+			for(int i = 1; i <= levels; i++)
+				text.append('-').append(slots[i]);
+			return text.toString();
+		}
+	}
+}
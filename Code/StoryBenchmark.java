@@ -0,0 +1,397 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+/**
+ * The StoryBenchmark times the hot paths of StoryTree on generated stories
+ * of several sizes. Each benchmark is warmed up and then measured over a
+ * number of timed iterations, reporting the mean time per operation with
+ * its error, the bytes allocated per operation and the garbage collections
+ * seen while measuring. Results are written as JSON, or CSV, so runs of two
+ * builds can be compared.
+ * @author Tejas
+ */
+public class StoryBenchmark {
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+	private static final long ITERATION_NANOS = 200000000L;
+	private static final int SAMPLES = 4096;
+
+	private static volatile long sink;
+
+	private StoryBenchmark(){
+	}
+
+	/**
+	 * Runs every benchmark on every size and writes the results
+	 * @param args -
+	 * Sizes in nodes, then optionally --out followed by a file name ending
+	 * in .json or .csv. Defaults to 1000 to 1000000 nodes and
+	 * story-benchmark.json. 10000000 nodes is left out of the defaults,
+	 * since the story takes about 2 GB of heap, twice that while the load
+	 * is measured, and a 1 GB file, so it has to be asked for with a
+	 * larger heap such as -Xmx6g.
+	 */
+	public static void main(String[] args){
+		ArrayList<Integer> sizes = new ArrayList<Integer>();
+		String out = "story-benchmark.json";
+		try{
+			for(int i = 0; i < args.length; i++){
+				if(args[i].equals("--out") && i + 1 < args.length)
+					out = args[++i];
+				else
+					sizes.add(Integer.parseInt(args[i]));
+			}
+		}
+		catch(NumberFormatException e){
+			System.out.println("Usage: java StoryBenchmark [nodes ...] "
+					+ "[--out results.json|results.csv]");
+			return;
+		}
+		if(sizes.isEmpty()){
+			for(int nodes = 1000; nodes <= 1000000; nodes *= 10)
+				sizes.add(nodes);
+		}
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		try{
+			for(int nodes : sizes)
+				runAll(nodes, results);
+			write(out, results);
+			System.out.println("Results written to " + out);
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+	}
+
+	private static void runAll(int nodes, ArrayList<Result> results)
+			throws IOException, DataFormatException{
+		final File story = File.createTempFile("story", ".txt");
+		final File saved = File.createTempFile("saved", ".txt");
+		story.deleteOnExit();
+		saved.deleteOnExit();
+		try{
+			StoryGenerator generator = new StoryGenerator();
+			generator.setMaxNodes(nodes);
+			generator.setSeed(nodes);
+			generator.generate(story.getPath());
+			final StoryTree tree = StoryTreeLoader.load(story.getPath());
+			final String[] positions = new String[SAMPLES];
+			final byte[][] paths = new byte[SAMPLES][];
+			sample(tree, new Random(42), positions, paths);
+
+			results.add(measure("readTree", nodes, new Operation(){
+				public long run(int ops) throws Exception{
+					long hash = 0;
+					for(int i = 0; i < ops; i++)
+						hash += StoryTreeLoader.load(story.getPath())
+								.getNumberChildren();
+					return hash;
+				}
+			}));
+			results.add(measure("saveTree", nodes, new Operation(){
+				public long run(int ops) throws Exception{
+					long hash = 0;
+					for(int i = 0; i < ops; i++)
+						hash += StoryTree.saveTree(saved.getPath(), tree)
+								.getBytesWritten();
+					return hash;
+				}
+			}));
+			results.add(measure("selectChildStartRoot", nodes,
+					new Operation(){
+				public long run(int ops) throws Exception{
+					for(int i = 0; i < ops; i++)
+						tree.selectChildStartRoot(
+								positions[i & (SAMPLES - 1)]);
+					return tree.getCursorDepth();
+				}
+			}));
+			tree.enableIndex();
+			results.add(measure("selectChildStartRootIndexed", nodes,
+					new Operation(){
+				public long run(int ops) throws Exception{
+					for(int i = 0; i < ops; i++)
+						tree.selectChildStartRoot(
+								positions[i & (SAMPLES - 1)]);
+					return tree.getCursorDepth();
+				}
+			}));
+			tree.disableIndex();
+			results.add(measure("selectChild", nodes, new Operation(){
+				public long run(int ops) throws Exception{
+					int done = 0;
+					for(int i = 0; done < ops; i++){
+						byte[] path = paths[i & (SAMPLES - 1)];
+						tree.resetCursor();
+						for(int level = 0; level < path.length
+								&& done < ops; level++, done++)
+							tree.selectChild(path[level]);
+					}
+					return tree.getCursorDepth();
+				}
+			}));
+			results.add(measure("getOptions", nodes, new Operation(){
+				public long run(int ops) throws Exception{
+					long hash = 0;
+					for(int i = 0; i < ops; i++){
+						if((i & 63) == 0)
+							tree.selectChildStartRoot(
+									positions[(i >>> 6) & (SAMPLES - 1)]);
+						hash += tree.getOptions().length;
+					}
+					return hash;
+				}
+			}));
+			results.add(measure("returnToParent", nodes, new Operation(){
+				public long run(int ops) throws Exception{
+					int done = 0;
+					for(int i = 0; done < ops; i++){
+						byte[] path = paths[i & (SAMPLES - 1)];
+						tree.resetCursor();
+						for(int level = 0; level < path.length; level++)
+							tree.selectChild(path[level]);
+						for(int level = 0; level < path.length
+								&& done < ops; level++, done++)
+							tree.returnToParent();
+					}
+					return tree.getCursorDepth();
+				}
+			}));
+			results.add(measure("winProbability", nodes, new Operation(){
+				public long run(int ops) throws Exception{
+					double total = 0;
+					for(int i = 0; i < ops; i++){
+						if((i & 63) == 0)
+							tree.selectChildStartRoot(
+									positions[(i >>> 6) & (SAMPLES - 1)]);
+						total += tree.winProbability();
+					}
+					return (long)total;
+				}
+			}));
+		}
+		finally{
+			story.delete();
+			saved.delete();
+		}
+	}
+
+	/**
+	 * Runs an operation in batches sized to take about ITERATION_NANOS,
+	 * first to warm up and then to measure
+	 */
+	private static Result measure(String name, int nodes, Operation operation){
+		com.sun.management.ThreadMXBean threads = allocationBean();
+		long thread = Thread.currentThread().getId();
+		try{
+			int batch = 1;
+			while(true){
+				long start = System.nanoTime();
+				sink += operation.run(batch);
+				long elapsed = System.nanoTime() - start;
+				if(elapsed > ITERATION_NANOS / 10 || batch >= 1 << 30)
+					break;
+				batch *= 2;
+			}
+			for(int i = 0; i < WARMUP_ITERATIONS; i++)
+				sink += operation.run(batch);
+
+			double[] scores = new double[ITERATIONS];
+			long allocated = 0;
+			long gcCount = collections();
+			long gcTime = collectionTime();
+			for(int i = 0; i < ITERATIONS; i++){
+				long bytes = allocatedBytes(threads, thread);
+				long start = System.nanoTime();
+				sink += operation.run(batch);
+				long elapsed = System.nanoTime() - start;
+				allocated += allocatedBytes(threads, thread) - bytes;
+				scores[i] = (double)elapsed / batch;
+			}
+
+			Result result = new Result(name, nodes, scores,
+					threads == null ? -1 : (double)allocated
+										  / ((long)batch * ITERATIONS),
+					collections() - gcCount, collectionTime() - gcTime);
+			System.out.println(result);
+			return result;
+		}
+		catch(Exception e){
+			throw new IllegalStateException(name + " failed", e);
+		}
+	}
+
+	/**
+	 * Picks random paths from the root to a leaf
+	 */
+	private static void sample(StoryTree tree, Random random,
+			String[] positions, byte[][] paths){
+		byte[] path = new byte[64];
+		for(int i = 0; i < positions.length; i++){
+			StoryTreeNode node = tree.getRoot();
+			int depth = 0;
+			while(!node.isLeaf()){
+				int slot;
+				do{
+					slot = 1 + random.nextInt(node.getChildSlots());
+				}while(node.getChild(slot) == null);
+				node = node.getChild(slot);
+				if(depth == path.length)
+					path = Arrays.copyOf(path, depth * 2);
+				path[depth++] = (byte)slot;
+			}
+			paths[i] = Arrays.copyOf(path, depth);
+			StringBuilder position = new StringBuilder("1");
+			for(int level = 0; level < depth; level++)
+				position.append('-').append(path[level]);
+			positions[i] = position.toString();
+		}
+	}
+
+	private static void write(String filename, ArrayList<Result> results)
+			throws IOException{
+		boolean csv = filename.endsWith(".csv");
+		AtomicFileOutputStream file = new AtomicFileOutputStream(filename);
+		try{
+			Writer out = new BufferedWriter(new OutputStreamWriter(file,
+					Charset.forName("UTF-8")));
+			if(csv)
+				out.write("benchmark,nodes,mode,unit,score,scoreError,min,max,"
+						+ "allocBytesPerOp,gcCount,gcTimeMs\n");
+			else
+				out.write("[\n");
+			for(int i = 0; i < results.size(); i++){
+				out.write(csv ? results.get(i).toCsv()
+						: results.get(i).toJson());
+				if(!csv && i + 1 < results.size())
+					out.write(',');
+				out.write('\n');
+			}
+			if(!csv)
+				out.write("]\n");
+			out.flush();
+			file.commit();
+		}
+		finally{
+			file.close();
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean(){
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)bean;
+		if(!threads.isThreadAllocatedMemorySupported())
+			return null;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+	private static long allocatedBytes(com.sun.management.ThreadMXBean threads,
+			long thread){
+		return threads == null ? 0 : threads.getThreadAllocatedBytes(thread);
+	}
+
+	private static long collections(){
+		long count = 0;
+		for(GarbageCollectorMXBean gc
+				: ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long collectionTime(){
+		long time = 0;
+		for(GarbageCollectorMXBean gc
+				: ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+
+	/**
+	 * An Operation runs the code being measured a number of times and
+	 * returns a value depending on it, so the work can not be optimized
+	 * away
+	 */
+	private interface Operation {
+		long run(int ops) throws Exception;
+	}
+
+	/**
+	 * The Result holds the measurements of one benchmark on one size
+	 */
+	private static class Result {
+		private String name;
+		private int nodes;
+		private double score;
+		private double error;
+		private double min;
+		private double max;
+		private double allocated;
+		private long gcCount;
+		private long gcTime;
+
+		private Result(String name, int nodes, double[] scores,
+				double allocated, long gcCount, long gcTime){
+			this.name = name;
+			this.nodes = nodes;
+			this.allocated = allocated;
+			this.gcCount = gcCount;
+			this.gcTime = gcTime;
+			min = Double.MAX_VALUE;
+			max = 0;
+			double sum = 0;
+			for(double value : scores){
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			score = sum / scores.length;
+			double squares = 0;
+			for(double value : scores)
+				squares += (value - score) * (value - score);
+			// Half width of a 99.9% confidence interval, as reported by JMH
+			error = 3.29 * Math.sqrt(squares / (scores.length - 1))
+					/ Math.sqrt(scores.length);
+		}
+
+		private String toJson(){
+			return String.format(Locale.ROOT, "  {\"benchmark\": \"%s\", "
+					+ "\"nodes\": %d, \"mode\": \"avgt\", \"unit\": \"ns/op\", "
+					+ "\"score\": %.3f, \"scoreError\": %.3f, \"min\": %.3f, "
+					+ "\"max\": %.3f, \"allocBytesPerOp\": %.1f, "
+					+ "\"gcCount\": %d, \"gcTimeMs\": %d}", name, nodes, score,
+					error, min, max, allocated, gcCount, gcTime);
+		}
+
+		private String toCsv(){
+			return String.format(Locale.ROOT, "%s,%d,avgt,ns/op,%.3f,%.3f,"
+					+ "%.3f,%.3f,%.1f,%d,%d", name, nodes, score, error, min,
+					max, allocated, gcCount, gcTime);
+		}
+
+		public String toString(){
+			return String.format(Locale.ROOT, "%-28s %9d nodes %14.1f "
+					+ "+- %.1f ns/op %12.1f B/op", name, nodes, score, error,
+					allocated);
+		}
+	}
+}
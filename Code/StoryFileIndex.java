@@ -0,0 +1,467 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * The StoryFileIndex lets a story file in preorder be read one node at a
+ * time. It keeps a sidecar file next to the story, named after it with
+ * .idx added, holding one fixed size record per node in preorder with the
+ * byte offset of the node's line, the record numbers of its children and
+ * its subtree counts. Both files are memory mapped, so opening a story
+ * only reads the header of the index and the operating system decides
+ * which pages stay in memory. The index is rebuilt whenever the story file
+ * has changed since it was written.
+ * @author Tejas
+ */
+public class StoryFileIndex {
+	public static final String EXTENSION = ".idx";
+	public static final int MAGIC = 0x5A495800;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int RECORD_SIZE = 40;
+	private static final int NONE = -1;
+
+	// Records never cross a segment since a segment holds whole records
+	private static final long STORY_SEGMENT = 1L << 30;
+	private static final long RECORD_SEGMENT = RECORD_SIZE * (1L << 24);
+	private static final int PREFETCH_QUEUE = 1024;
+	private static final long PREFETCH_KEEP_ALIVE_SECONDS = 30;
+
+	private static final ThreadLocal<Boolean> PREFETCHING =
+			new ThreadLocal<Boolean>();
+
+	private MappedByteBuffer[] story;
+	private MappedByteBuffer[] records;
+	private long storyLength;
+	private int nodeCount;
+	private Charset charset;
+	private ThreadPoolExecutor prefetcher;
+
+	private StoryFileIndex(File storyFile, File indexFile, long storyLength,
+			int nodeCount) throws IOException{
+		this.storyLength = storyLength;
+		this.nodeCount = nodeCount;
+		story = map(storyFile, 0, storyLength, STORY_SEGMENT);
+		records = map(indexFile, HEADER_SIZE, (long)nodeCount * RECORD_SIZE,
+					  RECORD_SEGMENT);
+		charset = Charset.defaultCharset();
+
+		// One thread is enough to stay ahead of players, and when it falls
+		// behind the oldest requests are the least useful so they are
+		// dropped instead of blocking the caller. The thread ends once it
+		// has been idle for a while, so an index which is no longer played,
+		// such as one replaced by a reload, does not keep a thread forever.
+		prefetcher = new ThreadPoolExecutor(1, 1,
+				PREFETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE),
+				new ThreadFactory(){
+					public Thread newThread(Runnable task){
+						Thread thread = new Thread(task, "story-prefetch");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.DiscardOldestPolicy());
+		prefetcher.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Opens a story file, building its index first if there is none or if
+	 * the story has changed since the index was written
+	 * @param filename -
+	 * Name of story file to open
+	 * @return
+	 * Index of the story
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws FileNotFoundException
+	 * File not found
+	 * @throws IOException
+	 * File could not be read or the index could not be written
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format, the file is not in
+	 * preorder or a node has more than three children
+	 */
+	public static StoryFileIndex open(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		if(filename == null || filename.isEmpty())
+			throw new IllegalArgumentException();
+		File storyFile = new File(filename);
+		if(!storyFile.isFile())
+			throw new FileNotFoundException(filename
+					+ " (No such file or directory)");
+		File indexFile = new File(filename + EXTENSION);
+		int nodes = readHeader(storyFile, indexFile);
+		if(nodes < 0){
+			build(filename);
+			nodes = readHeader(storyFile, indexFile);
+			if(nodes < 0)
+				throw new IOException("Story " + filename
+						+ " changed while it was being indexed");
+		}
+		return new StoryFileIndex(storyFile, indexFile, storyFile.length(),
+								  nodes);
+	}
+
+	/**
+	 * Writes the index of a story file, replacing any index already there
+	 * @param filename -
+	 * Name of story file to index
+	 * @return
+	 * Number of nodes and bytes written to the index
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File could not be read or the index could not be written
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format, the file is not in
+	 * preorder or a node has more than three children
+	 */
+	public static SaveStatistics build(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		File storyFile = new File(filename);
+		long length = storyFile.length();
+		long modified = storyFile.lastModified();
+
+		// Children always come after their parent in preorder, so one pass
+		// finds every link and one pass backwards adds up the counts
+		long[] offsets = new long[1024];
+		int[] children = new int[3 * 1024];
+		byte[] endings = new byte[1024];
+		offsets[0] = NONE;
+		Arrays.fill(children, NONE);
+		int nodes = 1;
+		int[] stack = new int[16];
+		// Child numbers of the path on the stack and of the line being read,
+		// swapped once the line is added
+		byte[] slots = new byte[16];
+		byte[] parsed = new byte[16];
+		int size = 1;
+		StoryFileReader file = new StoryFileReader(filename);
+		try{
+			while(file.nextLine()){
+				String position = file.getPosition();
+				String message = file.getMessage();
+				if(file.getOption().isEmpty() || message.isEmpty())
+					throw file.formatError("Empty option or message");
+
+				int node = 0;
+				if(position.length() == 1){
+					size = 1;
+				}
+				else{
+					if(parsed.length <= position.length() / 2)
+						parsed = new byte[position.length()];
+					int depth = StoryTree.parsePosition(position, parsed);
+					if(depth < 1)
+						throw file.formatError("Invalid position " + position);
+					int slot = parsed[depth];
+					if(slot > 3)
+						throw file.formatError("Node " + position + " is "
+								+ "past the third child, which an index can "
+								+ "not hold");
+					if(depth > size || !isParent(slots, parsed, depth))
+						throw file.formatError("Parent of " + position
+								+ " is not on the path before it, the file "
+								+ "must be in preorder");
+					int parent = stack[depth - 1];
+					if(children[parent * 3 + slot - 1] != NONE)
+						throw file.formatError("Node " + position
+								+ " appears twice");
+
+					if(nodes == offsets.length){
+						offsets = Arrays.copyOf(offsets, nodes * 2);
+						endings = Arrays.copyOf(endings, nodes * 2);
+						children = Arrays.copyOf(children, nodes * 6);
+						Arrays.fill(children, nodes * 3, nodes * 6, NONE);
+					}
+					node = nodes++;
+					children[parent * 3 + slot - 1] = node;
+					if(depth + 1 > stack.length)
+						stack = Arrays.copyOf(stack, stack.length * 2);
+					stack[depth] = node;
+					size = depth + 1;
+					byte[] temp = slots;
+					slots = parsed;
+					parsed = temp;
+				}
+				offsets[node] = file.getLineOffset();
+				endings[node] = (byte)((message.contains(
+						StoryTreeNode.WIN_MESSAGE) ? 1 : 0)
+						| (message.contains(StoryTreeNode.LOSE_MESSAGE)
+								? 2 : 0));
+			}
+		}
+		finally{
+			file.close();
+		}
+
+		int[] counts = new int[nodes * 4];
+		for(int node = nodes - 1; node >= 0; node--){
+			int at = node * 4;
+			counts[at] = 1;
+			boolean leaf = true;
+			for(int slot = 0; slot < 3; slot++){
+				int child = children[node * 3 + slot];
+				if(child == NONE)
+					continue;
+				leaf = false;
+				for(int i = 0; i < 4; i++)
+					counts[at + i] += counts[child * 4 + i];
+			}
+			if(leaf){
+				counts[at + 1] = 1;
+				counts[at + 2] = endings[node] & 1;
+				counts[at + 3] = (endings[node] >> 1) & 1;
+			}
+		}
+
+		AtomicFileOutputStream out = new AtomicFileOutputStream(filename
+				+ EXTENSION);
+		try{
+			DataOutputStream data = new DataOutputStream(
+					new BufferedOutputStream(out, 1 << 16));
+			data.writeInt(MAGIC);
+			data.writeShort(VERSION);
+			data.writeShort(0);
+			data.writeLong(length);
+			data.writeLong(modified);
+			data.writeInt(nodes);
+			data.writeInt(0);
+			for(int node = 0; node < nodes; node++){
+				data.writeLong(offsets[node]);
+				for(int slot = 0; slot < 3; slot++)
+					data.writeInt(children[node * 3 + slot]);
+				for(int i = 0; i < 4; i++)
+					data.writeInt(counts[node * 4 + i]);
+				data.writeInt(0);
+			}
+			data.flush();
+			out.commit();
+			return new SaveStatistics(nodes, out.getBytesWritten());
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Gets root of the story
+	 * @return
+	 * Node at the root, whose children are read when first needed
+	 * @throws IOException
+	 * Line of the root could not be read
+	 */
+	public LazyStoryTreeNode getRoot() throws IOException{
+		return node(0);
+	}
+
+	/**
+	 * Gets number of nodes in the story
+	 * @return
+	 * Number of nodes
+	 */
+	public int getNodeCount(){
+		return nodeCount;
+	}
+
+	/**
+	 * Reads one node from the files
+	 * @param record -
+	 * Number of the node in preorder
+	 * @return
+	 * New node holding the record's line and counts
+	 * @throws IOException
+	 * Record or line is outside the mapped files
+	 */
+	LazyStoryTreeNode node(int record) throws IOException{
+		if(record < 0 || record >= nodeCount)
+			throw new IOException("Corrupt story index, no node " + record);
+		long at = (long)record * RECORD_SIZE;
+		MappedByteBuffer segment = records[(int)(at / RECORD_SEGMENT)];
+		int offset = (int)(at % RECORD_SEGMENT);
+		long line = segment.getLong(offset);
+		String option = StoryTree.ROOT_OPTION;
+		String message = StoryTree.ROOT_MESSAGE;
+		if(line != NONE){
+			String[] fields = readLine(line);
+			option = fields[0];
+			message = fields[1];
+		}
+		return new LazyStoryTreeNode(this, option, message,
+				segment.getInt(offset + 8), segment.getInt(offset + 12),
+				segment.getInt(offset + 16), segment.getInt(offset + 20),
+				segment.getInt(offset + 24), segment.getInt(offset + 28),
+				segment.getInt(offset + 32));
+	}
+
+	/**
+	 * Reads the children of a node in the background, unless called from
+	 * the background thread itself so only one level is read ahead
+	 * @param node -
+	 * Node whose children to read
+	 * @return
+	 * True if the children will be read, false on the background thread
+	 */
+	boolean prefetch(final LazyStoryTreeNode node){
+		if(PREFETCHING.get() != null)
+			return false;
+		prefetcher.execute(new Runnable(){
+			public void run(){
+				PREFETCHING.set(Boolean.TRUE);
+				try{
+					for(int slot = 1; slot <= node.getChildSlots(); slot++)
+						node.getChild(slot);
+				}
+				catch(UncheckedIOException e){
+					// Left for the player who reaches the node to report
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Splits the line at an offset into its option and message
+	 */
+	private String[] readLine(long offset) throws IOException{
+		if(offset < 0 || offset >= storyLength)
+			throw new IOException("Corrupt story index, no line at "
+					+ offset);
+		byte[] line = new byte[128];
+		int length = 0;
+		for(long at = offset; at < storyLength; at++){
+			byte b = story[(int)(at / STORY_SEGMENT)].get(
+					(int)(at % STORY_SEGMENT));
+			if(b == '\n' || b == '\r')
+				break;
+			if(length == line.length)
+				line = Arrays.copyOf(line, length * 2);
+			line[length++] = b;
+		}
+		int first = indexOf(line, length, 0);
+		int second = first < 0 ? -1 : indexOf(line, length, first + 1);
+		if(second < 0)
+			throw new IOException("Corrupt story index, bad line at "
+					+ offset);
+		int third = indexOf(line, length, second + 1);
+		return new String[]{field(line, first + 1, second),
+				field(line, second + 1, third < 0 ? length : third)};
+	}
+
+	private static int indexOf(byte[] line, int length, int from){
+		for(int i = from; i < length; i++){
+			if(line[i] == '|')
+				return i;
+		}
+		return -1;
+	}
+
+	private String field(byte[] line, int start, int end){
+		while(start < end && (line[start] & 0xff) <= ' ')
+			start++;
+		while(end > start && (line[end - 1] & 0xff) <= ' ')
+			end--;
+		return new String(line, start, end - start, charset);
+	}
+
+	/**
+	 * Reads the header of an index
+	 * @return
+	 * Number of nodes, or -1 if there is no index or it does not match the
+	 * story file
+	 */
+	private static int readHeader(File storyFile, File indexFile)
+			throws IOException{
+		if(!indexFile.isFile())
+			return -1;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile), HEADER_SIZE));
+		try{
+			if(in.readInt() != MAGIC || in.readUnsignedShort() != VERSION)
+				return -1;
+			in.readUnsignedShort();
+			if(in.readLong() != storyFile.length()
+					|| in.readLong() != storyFile.lastModified())
+				return -1;
+			int nodes = in.readInt();
+			if(nodes < 1 || indexFile.length() != HEADER_SIZE
+					+ (long)nodes * RECORD_SIZE)
+				return -1;
+			return nodes;
+		}
+		catch(EOFException e){
+			return -1;
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	private static MappedByteBuffer[] map(File file, long start, long length,
+			long segmentSize) throws IOException{
+		int segments = (int)((length + segmentSize - 1) / segmentSize);
+		MappedByteBuffer[] mapped = new MappedByteBuffer[segments];
+		FileChannel channel = FileChannel.open(file.toPath(),
+											   StandardOpenOption.READ);
+		try{
+			// The mappings stay valid once the channel is closed
+			for(int i = 0; i < segments; i++){
+				long at = i * segmentSize;
+				mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						start + at, Math.min(segmentSize, length - at));
+			}
+		}
+		finally{
+			channel.close();
+		}
+		return mapped;
+	}
+
+	private static boolean isParent(byte[] slots, byte[] parsed, int depth){
+		for(int level = 1; level < depth; level++){
+			if(slots[level] != parsed[level])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the index of a story file from the command line
+	 * @param args -
+	 * Name of story file
+	 */
+	public static void main(String[] args){
+		if(args.length != 1){
+			System.out.println("Usage: java StoryFileIndex <story file>");
+			return;
+		}
+		try{
+			System.out.println("Wrote " + build(args[0]) + " to " + args[0]
+					+ EXTENSION);
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+	}
+}
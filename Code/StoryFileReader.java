@@ -0,0 +1,222 @@
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+
+/**
+ * The StoryFileReader reads the lines of a story file through a buffered
+ * NIO channel and splits each one into its position, option and message
+ * without using regular expressions.
+ * @author Tejas
+ */
+public class StoryFileReader implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private Charset charset;
+	private byte[] line;
+	private int lineLength;
+	private int lineNumber;
+	private long offset;
+	private long lineOffset;
+	private boolean skipLineFeed;
+
+	private String position;
+	private String option;
+	private String message;
+
+	/**
+	 * Opens a story file for reading
+	 * @param filename -
+	 * Name of file to read from
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws FileNotFoundException
+	 * File not found
+	 * @throws IOException
+	 * File could not be opened
+	 */
+	public StoryFileReader(String filename)
+			throws IllegalArgumentException, IOException{
+		if(filename == null || filename.isEmpty())
+			throw new IllegalArgumentException();
+		try{
+			channel = FileChannel.open(Paths.get(filename),
+									   StandardOpenOption.READ);
+		}
+		catch(NoSuchFileException e){
+			throw new FileNotFoundException(filename
+					+ " (No such file or directory)");
+		}
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		buffer.flip();
+		charset = Charset.defaultCharset();
+		line = new byte[256];
+	}
+
+	/**
+	 * Reads the next line of the file and splits it into its fields
+	 * @return
+	 * True if a line was read, false at the end of the file
+	 * @throws IOException
+	 * File could not be read
+	 * @throws DataFormatException
+	 * Line does not have exactly three fields
+	 */
+	public boolean nextLine() throws IOException, DataFormatException{
+		if(!readLine())
+			return false;
+
+		int first = indexOf('|', 0);
+		int second = first < 0 ? -1 : indexOf('|', first + 1);
+		int end = lineLength;
+		if(second >= 0){
+			// String.split drops trailing empty fields, so "a | b | c|"
+			// is still three fields while "a | b |" is only two
+			int third = indexOf('|', second + 1);
+			if(third >= 0){
+				for(int i = third; i < lineLength; i++){
+					if(line[i] != '|')
+						throw formatError("Inconsistent data format");
+				}
+				end = third;
+			}
+			if(end == second + 1)
+				throw formatError("Inconsistent data format");
+		}
+		else
+			throw formatError("Inconsistent data format");
+
+		position = field(0, first);
+		option = field(first + 1, second);
+		message = field(second + 1, end);
+		return true;
+	}
+
+	/**
+	 * Gets position field of the current line
+	 * @return
+	 * Trimmed position of the current line
+	 */
+	public String getPosition(){
+		return position;
+	}
+
+	/**
+	 * Gets option field of the current line
+	 * @return
+	 * Trimmed option of the current line
+	 */
+	public String getOption(){
+		return option;
+	}
+
+	/**
+	 * Gets message field of the current line
+	 * @return
+	 * Trimmed message of the current line
+	 */
+	public String getMessage(){
+		return message;
+	}
+
+	/**
+	 * Gets number of the current line, starting from 1
+	 * @return
+	 * Line number of the current line
+	 */
+	public int getLineNumber(){
+		return lineNumber;
+	}
+
+	/**
+	 * Gets byte offset of the current line within the file
+	 * @return
+	 * Offset of the first byte of the current line
+	 */
+	public long getLineOffset(){
+		return lineOffset;
+	}
+
+	/**
+	 * Creates an exception describing a problem with the current line
+	 * @param problem -
+	 * Description of the problem
+	 * @return
+	 * Exception whose message includes the line number
+	 */
+	public DataFormatException formatError(String problem){
+		return new DataFormatException("Line " + lineNumber + ": " + problem);
+	}
+
+	/**
+	 * Closes the underlying channel
+	 */
+	public void close() throws IOException{
+		channel.close();
+	}
+
+	private boolean readLine() throws IOException{
+		lineLength = 0;
+		lineOffset = offset;
+		boolean sawByte = false;
+		while(true){
+			if(!buffer.hasRemaining()){
+				buffer.clear();
+				int read = channel.read(buffer);
+				buffer.flip();
+				if(read < 0){
+					if(!sawByte)
+						return false;
+					lineNumber++;
+					return true;
+				}
+				continue;
+			}
+			byte b = buffer.get();
+			offset++;
+			if(skipLineFeed){
+				skipLineFeed = false;
+				if(b == '\n'){
+					lineOffset = offset;
+					continue;
+				}
+			}
+			if(b == '\n' || b == '\r'){
+				skipLineFeed = b == '\r';
+				lineNumber++;
+				return true;
+			}
+			sawByte = true;
+			if(lineLength == line.length){
+				byte[] bigger = new byte[line.length * 2];
+				System.arraycopy(line, 0, bigger, 0, lineLength);
+				line = bigger;
+			}
+			line[lineLength++] = b;
+		}
+	}
+
+	private int indexOf(char c, int from){
+		for(int i = from; i < lineLength; i++){
+			if(line[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private String field(int start, int end){
+		while(start < end && (line[start] & 0xff) <= ' ')
+			start++;
+		while(end > start && (line[end - 1] & 0xff) <= ' ')
+			end--;
+		return new String(line, start, end - start, charset);
+	}
+}
@@ -0,0 +1,334 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The StoryGenerator writes random stories in the text format read by
+ * StoryTree.readTree, for testing the game on stories far larger than the
+ * ones written by hand. The tree is grown one level at a time until it
+ * reaches the maximum depth or number of nodes, choosing how many children
+ * each node has from the branching weights, and is then written in
+ * preorder. Leaves win or lose in the configured ratios and the rest are
+ * dead ends.
+ * @author Tejas
+ */
+public class StoryGenerator {
+	private static final String[] WORDS = {"a", "dark", "room", "door",
+		"you", "see", "the", "path", "north", "lamp", "old", "stairs",
+		"cold", "wind", "troll", "gold", "river", "bridge", "and", "quiet"};
+
+	private int maxNodes;
+	private int maxDepth;
+	private double[] branching;
+	private double winRatio;
+	private double loseRatio;
+	private int messageLength;
+	private long seed;
+
+	/**
+	 * Default Constructor, for a story of 1000 nodes in which every node
+	 * above the deepest level has one to three children
+	 */
+	public StoryGenerator(){
+		maxNodes = 1000;
+		maxDepth = 64;
+		branching = new double[] {0, 1, 1, 1};
+		winRatio = 0.3;
+		loseRatio = 0.5;
+		messageLength = 40;
+		seed = 0;
+	}
+
+	/**
+	 * Sets most nodes in the story
+	 * @param maxNodes -
+	 * Most nodes, at least 1
+	 * @throws IllegalArgumentException
+	 * maxNodes is not positive
+	 */
+	public void setMaxNodes(int maxNodes) throws IllegalArgumentException{
+		if(maxNodes < 1)
+			throw new IllegalArgumentException("Story needs at least 1 node");
+		this.maxNodes = maxNodes;
+	}
+
+	/**
+	 * Sets deepest level of the story
+	 * @param maxDepth -
+	 * Most levels below the root
+	 * @throws IllegalArgumentException
+	 * maxDepth is negative
+	 */
+	public void setMaxDepth(int maxDepth) throws IllegalArgumentException{
+		if(maxDepth < 0)
+			throw new IllegalArgumentException("Depth must not be negative");
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Sets how likely a node above the deepest level is to have 0, 1, 2 or
+	 * 3 children. The root always has at least one.
+	 * @param weights -
+	 * Four weights, one for each number of children
+	 * @throws IllegalArgumentException
+	 * There are not four weights, one is negative, or all are 0
+	 */
+	public void setBranching(double... weights)
+			throws IllegalArgumentException{
+		if(weights == null || weights.length != 4)
+			throw new IllegalArgumentException("Expected 4 branching weights");
+		double sum = 0;
+		for(double weight : weights){
+			if(weight < 0)
+				throw new IllegalArgumentException("Negative branching weight");
+			sum += weight;
+		}
+		if(sum == 0)
+			throw new IllegalArgumentException("Branching weights are all 0");
+		branching = weights.clone();
+	}
+
+	/**
+	 * Sets shares of leaves which win and lose, the rest are dead ends
+	 * @param winRatio -
+	 * Share of leaves which win, from 0 to 1
+	 * @param loseRatio -
+	 * Share of leaves which lose, from 0 to 1
+	 * @throws IllegalArgumentException
+	 * A ratio is negative or they add up to more than 1
+	 */
+	public void setEndings(double winRatio, double loseRatio)
+			throws IllegalArgumentException{
+		if(winRatio < 0 || loseRatio < 0 || winRatio + loseRatio > 1)
+			throw new IllegalArgumentException("Invalid win and lose ratios");
+		this.winRatio = winRatio;
+		this.loseRatio = loseRatio;
+	}
+
+	/**
+	 * Sets length of generated messages
+	 * @param messageLength -
+	 * Number of characters in each message, at least 1
+	 * @throws IllegalArgumentException
+	 * messageLength is not positive
+	 */
+	public void setMessageLength(int messageLength)
+			throws IllegalArgumentException{
+		if(messageLength < 1)
+			throw new IllegalArgumentException("Messages need 1 character");
+		this.messageLength = messageLength;
+	}
+
+	/**
+	 * Sets seed of the random numbers, the same settings and seed always
+	 * generate the same story
+	 * @param seed -
+	 * Seed to use
+	 */
+	public void setSeed(long seed){
+		this.seed = seed;
+	}
+
+	/**
+	 * Writes a random story to a file
+	 * @param filename -
+	 * Name of file to write
+	 * @return
+	 * Number of nodes and bytes written
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File could not be written
+	 */
+	public SaveStatistics generate(String filename)
+			throws IllegalArgumentException, IOException{
+		Random random = new Random(seed);
+
+		// Grow the tree breadth first, the children of a node are numbered
+		// right after the nodes already given children
+		int[] firstChild = new int[Math.min(maxNodes, 1 << 16)];
+		byte[] children = new byte[firstChild.length];
+		byte[] slots = new byte[firstChild.length];
+		int[] depths = new int[firstChild.length];
+		int size = 1;
+		for(int node = 0; node < size && size < maxNodes; node++){
+			if(depths[node] == maxDepth)
+				continue;
+			int count = pickBranching(random);
+			if(node == 0)
+				count = Math.max(1, count);
+			count = Math.min(count, maxNodes - size);
+			if(size + count > firstChild.length){
+				int capacity = (int)Math.min(maxNodes, Math.max(size + count,
+						(long)firstChild.length * 2));
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				children = Arrays.copyOf(children, capacity);
+				slots = Arrays.copyOf(slots, capacity);
+				depths = Arrays.copyOf(depths, capacity);
+			}
+			firstChild[node] = size;
+			children[node] = (byte)count;
+			for(int c = 0; c < count; c++){
+				slots[size + c] = (byte)(c + 1);
+				depths[size + c] = depths[node] + 1;
+			}
+			size += count;
+		}
+
+		AtomicFileOutputStream file = new AtomicFileOutputStream(filename);
+		try{
+			Writer out = new BufferedWriter(new OutputStreamWriter(file,
+					Charset.defaultCharset()), 1 << 16);
+			int[] stack = new int[64];
+			StringBuilder position = new StringBuilder();
+			StringBuilder text = new StringBuilder();
+			int top = 0;
+			stack[top++] = 0;
+			while(top > 0){
+				int node = stack[--top];
+				int depth = depths[node];
+				if(depth == 0){
+					position.setLength(0);
+					position.append('1');
+				}
+				else{
+					position.setLength(depth * 2 - 1);
+					position.append('-').append(slots[node]);
+				}
+				if(node > 0)
+					out.write('\n');
+				out.append(position);
+				out.write(" | ");
+				out.append(words(random, text, "Go", 12));
+				out.write(" | ");
+				out.append(message(random, text, children[node] == 0));
+
+				if(top + 3 > stack.length)
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				for(int c = children[node] - 1; c >= 0; c--)
+					stack[top++] = firstChild[node] + c;
+			}
+			out.flush();
+			file.commit();
+			return new SaveStatistics(size, file.getBytesWritten());
+		}
+		finally{
+			file.close();
+		}
+	}
+
+	private int pickBranching(Random random){
+		double sum = 0;
+		for(double weight : branching)
+			sum += weight;
+		double pick = random.nextDouble() * sum;
+		for(int count = 0; count < 3; count++){
+			pick -= branching[count];
+			if(pick < 0)
+				return count;
+		}
+		return 3;
+	}
+
+	private CharSequence message(Random random, StringBuilder text,
+			boolean leaf){
+		String ending = null;
+		if(leaf){
+			double pick = random.nextDouble();
+			if(pick < winRatio)
+				ending = StoryTreeNode.WIN_MESSAGE;
+			else if(pick < winRatio + loseRatio)
+				ending = StoryTreeNode.LOSE_MESSAGE;
+		}
+		if(ending == null)
+			return words(random, text, "You", messageLength);
+		words(random, text, "You", Math.max(3, messageLength
+				- ending.length() - 2));
+		return text.append(". ").append(ending);
+	}
+
+	private static StringBuilder words(Random random, StringBuilder text,
+			String first, int length){
+		text.setLength(0);
+		text.append(first);
+		while(text.length() < length)
+			text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		text.setLength(Math.max(1, length));
+		// Text can not end in a space, since the reader trims it away
+		for(int i = text.length() - 1; i > 0 && text.charAt(i) == ' '; i--)
+			text.setCharAt(i, '.');
+		return text;
+	}
+
+	/**
+	 * Writes a random story from the command line
+	 * @param args -
+	 * Options --nodes, --depth, --branching w0,w1,w2,w3, --win, --lose,
+	 * --message and --seed, followed by the name of the file to write
+	 */
+	public static void main(String[] args){
+		StoryGenerator generator = new StoryGenerator();
+		String filename = null;
+		double win = generator.winRatio;
+		double lose = generator.loseRatio;
+		try{
+			for(int i = 0; i < args.length; i++){
+				String value = i + 1 < args.length ? args[i + 1] : null;
+				if(args[i].startsWith("--") && value == null){
+					System.out.println("Missing value for " + args[i]);
+					return;
+				}
+				switch(args[i]){
+				case "--nodes":
+					generator.setMaxNodes(Integer.parseInt(value));
+					break;
+				case "--depth":
+					generator.setMaxDepth(Integer.parseInt(value));
+					break;
+				case "--branching":
+					String[] parts = value.split(",");
+					double[] weights = new double[parts.length];
+					for(int j = 0; j < parts.length; j++)
+						weights[j] = Double.parseDouble(parts[j]);
+					generator.setBranching(weights);
+					break;
+				case "--win":
+					win = Double.parseDouble(value);
+					break;
+				case "--lose":
+					lose = Double.parseDouble(value);
+					break;
+				case "--message":
+					generator.setMessageLength(Integer.parseInt(value));
+					break;
+				case "--seed":
+					generator.setSeed(Long.parseLong(value));
+					break;
+				default:
+					filename = args[i];
+					continue;
+				}
+				i++;
+			}
+			if(filename == null){
+				System.out.println("Usage: java StoryGenerator [--nodes n] "
+						+ "[--depth d] [--branching w0,w1,w2,w3] [--win r] "
+						+ "[--lose r] [--message length] [--seed s] <file>");
+				return;
+			}
+			generator.setEndings(win, lose);
+			System.out.println("Wrote " + generator.generate(filename)
+					+ " to " + filename);
+		}
+		catch(IllegalArgumentException e){
+			System.out.println(e.getMessage());
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+	}
+}
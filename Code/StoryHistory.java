@@ -0,0 +1,147 @@
+import java.util.ArrayDeque;
+
+/**
+ * The StoryHistory holds the earlier and later versions of a StoryTree for
+ * undo and redo. A version is only the root it had and the place of the
+ * edit which replaced it, since edits copy the path they change instead of
+ * changing nodes, so versions share every node off that path. Each version
+ * is charged an estimate of the memory which only it keeps alive, and the
+ * oldest versions are dropped to stay within a budget. Dropping a version
+ * only forgets its root, the collector frees whatever nothing else uses.
+ * @author Tejas
+ */
+public class StoryHistory {
+	private ArrayDeque<Version> undo;
+	private ArrayDeque<Version> redo;
+	private long budget;
+	private long used;
+
+	/**
+	 * Constructor with a memory budget
+	 * @param budget -
+	 * Most bytes the kept versions may hold on to
+	 * @throws IllegalArgumentException
+	 * budget is negative
+	 */
+	StoryHistory(long budget) throws IllegalArgumentException{
+		if(budget < 0)
+			throw new IllegalArgumentException("Budget must not be negative");
+		this.budget = budget;
+		undo = new ArrayDeque<Version>();
+		redo = new ArrayDeque<Version>();
+	}
+
+	/**
+	 * Gets number of edits which can be undone
+	 * @return
+	 * Number of earlier versions kept
+	 */
+	public int getUndoCount(){
+		return undo.size();
+	}
+
+	/**
+	 * Gets number of undone edits which can be redone
+	 * @return
+	 * Number of later versions kept
+	 */
+	public int getRedoCount(){
+		return redo.size();
+	}
+
+	/**
+	 * Gets estimate of the memory held by the kept versions
+	 * @return
+	 * Bytes held
+	 */
+	public long getBytes(){
+		return used;
+	}
+
+	/**
+	 * Gets memory budget
+	 * @return
+	 * Most bytes the kept versions may hold on to
+	 */
+	public long getBudget(){
+		return budget;
+	}
+
+	/**
+	 * Records the version an edit is about to replace, forgetting every
+	 * undone edit
+	 */
+	void record(Version version){
+		for(Version dropped : redo)
+			used -= dropped.bytes;
+		redo.clear();
+		push(undo, version);
+	}
+
+	/**
+	 * Takes the version before the current one, keeping the current one
+	 * for redo
+	 * @return
+	 * Previous version, or null if there is none
+	 */
+	Version undo(StoryTreeNode current){
+		return move(undo, redo, current);
+	}
+
+	/**
+	 * Takes the version after the current one, keeping the current one for
+	 * undo
+	 * @return
+	 * Next version, or null if there is none
+	 */
+	Version redo(StoryTreeNode current){
+		return move(redo, undo, current);
+	}
+
+	/**
+	 * Takes the newest version from one side and keeps the current root on
+	 * the other, as the same edit seen from the other side
+	 */
+	private Version move(ArrayDeque<Version> from, ArrayDeque<Version> to,
+			StoryTreeNode current){
+		Version version = from.pollFirst();
+		if(version != null){
+			used -= version.bytes;
+			push(to, new Version(current, version.slots, version.depth,
+								 version.slot, version.bytes));
+		}
+		return version;
+	}
+
+	private void push(ArrayDeque<Version> versions, Version version){
+		versions.addFirst(version);
+		used += version.bytes;
+		// The oldest undo goes first, then redos from the furthest away
+		while(used > budget && !undo.isEmpty())
+			used -= undo.pollLast().bytes;
+		while(used > budget && !redo.isEmpty())
+			used -= redo.pollLast().bytes;
+	}
+
+	/**
+	 * The Version is the root of one version of a tree and where the edit
+	 * made next to it happened: the path to the cursor and the child number
+	 * changed, or 0 if the cursor's own option or message changed
+	 */
+	static class Version {
+		final StoryTreeNode root;
+		final byte[] slots;
+		final int depth;
+		final int slot;
+		final long bytes;
+
+		Version(StoryTreeNode root, byte[] slots, int depth, int slot,
+				long bytes){
+			this.root = root;
+			this.slots = slots;
+			this.depth = depth;
+			this.slot = slot;
+			this.bytes = bytes;
+		}
+	}
+}
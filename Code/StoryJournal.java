@@ -0,0 +1,560 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * The StoryJournal keeps the edits made to a story in a journal file next
+ * to it, named after it with .journal added, so an edit costs one short
+ * append instead of a rewrite of the whole story. Appends are forced to
+ * disk in batches, at most SYNC_MILLIS after they are made. Loading a story
+ * replays its journal on top of the story file.
+ *
+ * Once the journal grows past a limit it is renamed to .journal.1 and a
+ * background thread loads the story file, replays .journal.1 on it, writes
+ * the result over the story file and deletes .journal.1, while new edits go
+ * to a new journal. Every record sets a node to a value instead of
+ * changing it relative to what is there, and records for nodes which no
+ * longer exist are skipped, so replaying a journal twice has the same
+ * effect as replaying it once and a crash at any point of a compaction
+ * loses nothing.
+ * @author Tejas
+ */
+public class StoryJournal implements StoryListener, Closeable {
+	public static final String EXTENSION = ".journal";
+	public static final String ROTATED_EXTENSION = ".journal.1";
+	public static final int MAGIC = 0x5A4A4E00;
+	public static final int VERSION = 1;
+	public static final long DEFAULT_COMPACT_BYTES = 4L << 20;
+	public static final long SYNC_MILLIS = 100;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int SYNC_RECORDS = 256;
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte OPTION = 3;
+	private static final byte MESSAGE = 4;
+
+	private String filename;
+	private File journal;
+	private File rotated;
+	private long compactBytes;
+	private FileOutputStream file;
+	private DataOutputStream out;
+	private long bytes;
+	private int unsynced;
+	private long records;
+	private ScheduledExecutorService worker;
+	private Future<?> compaction;
+	private boolean closed;
+
+	private StoryJournal(String filename, long compactBytes){
+		this.filename = filename;
+		this.compactBytes = compactBytes;
+		journal = new File(filename + EXTENSION);
+		rotated = new File(filename + ROTATED_EXTENSION);
+
+		// Syncs get a thread of their own so a long compaction does not
+		// hold them back
+		worker = Executors.newScheduledThreadPool(2,
+				new ThreadFactory(){
+					public Thread newThread(Runnable task){
+						Thread thread = new Thread(task, "story-journal");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		worker.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					sync();
+				}
+				catch(IOException e){
+					// Reported by the next append or by close
+				}
+			}
+		}, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Replays the journal of a story on it and starts recording its edits.
+	 * If a compaction did not finish, it is replayed first and finished in
+	 * the background.
+	 * @param filename -
+	 * Name of the story file the story was loaded from
+	 * @param story -
+	 * Story loaded from the file, whose edits are recorded from now on
+	 * @return
+	 * Journal recording edits to story
+	 * @throws IllegalArgumentException
+	 * filename is empty or null or story is null
+	 * @throws IOException
+	 * Journal could not be read or opened
+	 * @throws DataFormatException
+	 * Journal is not a story journal or is of an unsupported version
+	 */
+	public static StoryJournal open(String filename, Story story)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		return open(filename, story, DEFAULT_COMPACT_BYTES);
+	}
+
+	/**
+	 * Replays the journal of a story on it and starts recording its edits
+	 * @param filename -
+	 * Name of the story file the story was loaded from
+	 * @param story -
+	 * Story loaded from the file, whose edits are recorded from now on
+	 * @param compactBytes -
+	 * Size the journal may grow to before it is compacted
+	 * @return
+	 * Journal recording edits to story
+	 * @throws IllegalArgumentException
+	 * filename is empty or null, story is null or compactBytes is not
+	 * positive
+	 * @throws IOException
+	 * Journal could not be read or opened
+	 * @throws DataFormatException
+	 * Journal is not a story journal or is of an unsupported version
+	 */
+	public static StoryJournal open(String filename, Story story,
+			long compactBytes)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		if(filename == null || filename.isEmpty() || story == null
+				|| compactBytes <= 0)
+			throw new IllegalArgumentException();
+
+		String rotatedName = filename + ROTATED_EXTENSION;
+		boolean unfinished = new File(rotatedName).isFile();
+		if(unfinished)
+			replay(rotatedName, story);
+		long length = replay(filename + EXTENSION, story);
+		story.resetCursor();
+
+		StoryJournal journal = new StoryJournal(filename, compactBytes);
+		journal.openFile(length);
+		if(unfinished)
+			journal.compaction = journal.worker.submit(journal.fold());
+		story.addListener(journal);
+		return journal;
+	}
+
+	/**
+	 * Loads a story file with the edits in its journals applied, without
+	 * opening the journal for more edits. A compaction may run while this
+	 * reads, since replaying a journal which was already folded in changes
+	 * nothing.
+	 * @param filename -
+	 * Name of the story file
+	 * @return
+	 * new StoryTree with data from the file and its journals
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File not found or could not be read
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format
+	 */
+	public static StoryTree load(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		StoryTree story;
+		if(BinaryStoryFormat.isBinary(filename))
+			story = BinaryStoryFormat.load(filename);
+		else
+			story = StoryTreeLoader.load(filename);
+		replay(filename + ROTATED_EXTENSION, story);
+		replay(filename + EXTENSION, story);
+		story.resetCursor();
+		return story;
+	}
+
+	/**
+	 * Applies the records of a journal to a story. A record cut short by a
+	 * crash ends the journal.
+	 * @param journalName -
+	 * Name of the journal file
+	 * @param story -
+	 * Story to apply the records to
+	 * @return
+	 * Length of the journal up to the end of the last whole record, 0 if
+	 * there is no journal
+	 * @throws IOException
+	 * Journal could not be read
+	 * @throws DataFormatException
+	 * Journal is not a story journal or is of an unsupported version
+	 */
+	public static long replay(String journalName, Story story)
+			throws IOException, DataFormatException{
+		File journalFile = new File(journalName);
+		if(!journalFile.isFile())
+			return 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(journalFile), 1 << 16));
+		try{
+			try{
+				if(in.readInt() != MAGIC)
+					throw new DataFormatException(journalName
+							+ " is not a story journal");
+				int version = in.readUnsignedShort();
+				if(version != VERSION)
+					throw new DataFormatException("Unsupported journal "
+							+ "version " + version);
+				in.readUnsignedShort();
+			}
+			catch(EOFException e){
+				return 0;
+			}
+			long length = HEADER_SIZE;
+			byte[] record = new byte[256];
+			CRC32 crc = new CRC32();
+			while(true){
+				int size;
+				int checksum;
+				try{
+					size = in.readInt();
+					checksum = in.readInt();
+					if(size <= 0 || size > journalFile.length() - length)
+						break;
+					if(size > record.length)
+						record = new byte[Math.max(size, record.length * 2)];
+					in.readFully(record, 0, size);
+				}
+				catch(EOFException e){
+					break;
+				}
+				crc.reset();
+				crc.update(record, 0, size);
+				if((int)crc.getValue() != checksum)
+					break;
+				apply(story, new DataInputStream(
+						new ByteArrayInputStream(record, 0, size)));
+				length += 8 + size;
+			}
+			return length;
+		}
+		finally{
+			in.close();
+		}
+	}
+
+	public void childAdded(String position, int slot, String option,
+			String message){
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(record);
+		try{
+			data.writeByte(ADD);
+			data.writeUTF(position);
+			data.writeByte(slot);
+			data.writeUTF(option);
+			data.writeUTF(message);
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		append(record.toByteArray());
+	}
+
+	public void childRemoved(String position, int slot){
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(record);
+		try{
+			data.writeByte(REMOVE);
+			data.writeUTF(position);
+			data.writeByte(slot);
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		append(record.toByteArray());
+	}
+
+	public void optionChanged(String position, String option){
+		append(textRecord(OPTION, position, option));
+	}
+
+	public void messageChanged(String position, String message){
+		append(textRecord(MESSAGE, position, message));
+	}
+
+	/**
+	 * Gets number of records appended since the journal was opened
+	 * @return
+	 * Number of records
+	 */
+	public synchronized long getRecordCount(){
+		return records;
+	}
+
+	/**
+	 * Gets length of the current journal file
+	 * @return
+	 * Length in bytes, including records not yet forced to disk
+	 */
+	public synchronized long getBytes(){
+		return bytes;
+	}
+
+	/**
+	 * Forces every record appended so far to disk
+	 * @throws IOException
+	 * Journal could not be written
+	 */
+	public synchronized void sync() throws IOException{
+		if(unsynced == 0 || closed)
+			return;
+		out.flush();
+		file.getChannel().force(false);
+		unsynced = 0;
+	}
+
+	/**
+	 * Starts folding the journal into the story file in the background,
+	 * unless a compaction is already running
+	 * @throws IOException
+	 * Journal could not be renamed or a new one could not be opened
+	 */
+	public synchronized void compact() throws IOException{
+		if(closed || (compaction != null && !compaction.isDone()))
+			return;
+		if(!rotated.exists()){
+			if(bytes <= HEADER_SIZE)
+				return;
+			sync();
+			out.close();
+			Files.move(journal.toPath(), rotated.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE);
+			openFile(0);
+		}
+		compaction = worker.submit(fold());
+	}
+
+	/**
+	 * Waits for any compaction to finish, then forces every record to disk
+	 * and closes the journal
+	 * @throws IOException
+	 * Journal could not be written, or the compaction failed
+	 */
+	public void close() throws IOException{
+		Future<?> running;
+		synchronized(this){
+			if(closed)
+				return;
+			sync();
+			running = compaction;
+		}
+		try{
+			if(running != null)
+				running.get();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		catch(ExecutionException e){
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+		finally{
+			synchronized(this){
+				closed = true;
+				worker.shutdown();
+				out.close();
+			}
+		}
+	}
+
+	private synchronized void append(byte[] record){
+		if(closed)
+			throw new IllegalStateException("Journal is closed");
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		try{
+			out.writeInt(record.length);
+			out.writeInt((int)crc.getValue());
+			out.write(record);
+			bytes += 8 + record.length;
+			records++;
+			if(++unsynced >= SYNC_RECORDS)
+				sync();
+			if(bytes >= compactBytes)
+				compact();
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Opens the journal for appending, cutting off anything after length
+	 * and writing the header if the journal is new
+	 */
+	private void openFile(long length) throws IOException{
+		if(length < HEADER_SIZE){
+			FileChannel channel = FileChannel.open(journal.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			channel.close();
+		}
+		else if(journal.length() > length){
+			FileChannel channel = FileChannel.open(journal.toPath(),
+												   StandardOpenOption.WRITE);
+			try{
+				channel.truncate(length);
+			}
+			finally{
+				channel.close();
+			}
+		}
+		file = new FileOutputStream(journal, true);
+		out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+		bytes = Math.max(length, HEADER_SIZE);
+		unsynced = 0;
+		if(length < HEADER_SIZE){
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(0);
+			unsynced = 1;
+			sync();
+		}
+	}
+
+	/**
+	 * Creates the task which folds .journal.1 into the story file
+	 */
+	private Runnable fold(){
+		return new Runnable(){
+			public void run(){
+				try{
+					StoryTree base;
+					if(BinaryStoryFormat.isBinary(filename))
+						base = BinaryStoryFormat.load(filename);
+					else
+						base = StoryTreeLoader.load(filename);
+					replay(rotated.getPath(), base);
+					base.save(filename);
+					Files.delete(rotated.toPath());
+				}
+				catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+				catch(DataFormatException e){
+					throw new UncheckedIOException(new IOException(e));
+				}
+			}
+		};
+	}
+
+	private static byte[] textRecord(byte op, String position, String text){
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(record);
+		try{
+			data.writeByte(op);
+			data.writeUTF(position);
+			data.writeUTF(text);
+		}
+		catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		return record.toByteArray();
+	}
+
+	/**
+	 * Applies one record, skipping it if its node no longer exists
+	 */
+	private static void apply(Story story, DataInputStream record)
+			throws IOException, DataFormatException{
+		byte op = record.readByte();
+		String position = record.readUTF();
+		try{
+			story.selectChildStartRoot(position);
+			switch(op){
+			case ADD:
+				int slot = record.readByte();
+				String option = record.readUTF();
+				String message = record.readUTF();
+				try{
+					story.removeChild(slot);
+				}
+				catch(NodeNotPresentException e){
+				}
+				story.addChild(slot, option, message);
+				break;
+			case REMOVE:
+				story.removeChild(record.readByte());
+				break;
+			case OPTION:
+				story.setCursorOption(record.readUTF());
+				break;
+			case MESSAGE:
+				story.setCursorMessage(record.readUTF());
+				break;
+			default:
+				throw new DataFormatException("Unknown journal record " + op);
+			}
+		}
+		catch(NodeNotPresentException e){
+			// Removed by a later record which was already folded in
+		}
+		catch(TreeFullException e){
+			// Cannot happen, a child was just removed to make room
+		}
+	}
+
+	/**
+	 * Folds the journal of a story file into it from the command line
+	 * @param args -
+	 * Name of story file
+	 */
+	public static void main(String[] args){
+		if(args.length != 1){
+			System.out.println("Usage: java StoryJournal <story file>");
+			return;
+		}
+		try{
+			Story story;
+			if(BinaryStoryFormat.isBinary(args[0]))
+				story = BinaryStoryFormat.load(args[0]);
+			else
+				story = StoryTreeLoader.load(args[0]);
+			// The story now holds every edit, so once any unfinished
+			// compaction is done it can be written over the file and both
+			// journals dropped
+			open(args[0], story).close();
+			SaveStatistics saved = story.save(args[0]);
+			Files.deleteIfExists(new File(args[0] + ROTATED_EXTENSION)
+					.toPath());
+			Files.deleteIfExists(new File(args[0] + EXTENSION).toPath());
+			System.out.println("Folded journal into " + args[0] + ", wrote "
+					+ saved);
+		}
+		catch(IllegalArgumentException e){
+			System.out.println("Invalid argument: " + e.getMessage());
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,312 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.DataFormatException;
+
+/**
+ * The StoryLibrary keeps loaded stories for many story files within a
+ * budget of heap. A story is loaded, with the edits in its journals, the
+ * first time it is opened, and threads opening a story which is being
+ * loaded wait for that load instead of starting another. Every open story
+ * is held by a Lease until the lease is closed. Once the stories kept are
+ * estimated to use more than the budget, those least recently opened are
+ * dropped, but never one which is still leased, so the budget is exceeded
+ * while the stories in use do not fit in it.
+ * Stories are shared by everyone leasing them and must not be edited.
+ * @author Tejas
+ */
+public class StoryLibrary {
+	private long budgetBytes;
+	private long usedBytes;
+	// In order of use, least recently opened first
+	private LinkedHashMap<String, Entry> entries;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long failures;
+	private LatencyHistogram loads;
+
+	/**
+	 * Constructor with a heap budget
+	 * @param budgetBytes -
+	 * Estimated heap the stories kept may use
+	 * @throws IllegalArgumentException
+	 * budgetBytes is not positive
+	 */
+	public StoryLibrary(long budgetBytes) throws IllegalArgumentException{
+		if(budgetBytes <= 0)
+			throw new IllegalArgumentException();
+		this.budgetBytes = budgetBytes;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		loads = new LatencyHistogram();
+	}
+
+	/**
+	 * Opens a story, loading it unless it is already kept
+	 * @param filename -
+	 * Name of the story file
+	 * @return
+	 * Lease holding the story, to be closed once it is no longer played
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File not found or could not be read, or interrupted while waiting
+	 * for another thread to load it
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format
+	 */
+	public Lease open(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		if(filename == null || filename.isEmpty())
+			throw new IllegalArgumentException();
+		String key = new File(filename).getAbsolutePath();
+		Entry entry;
+		boolean load = false;
+		synchronized(this){
+			entry = entries.get(key);
+			if(entry == null){
+				entry = new Entry(key);
+				entries.put(key, entry);
+				misses++;
+				load = true;
+			}
+			else
+				hits++;
+			entry.leases++;
+		}
+		if(load)
+			load(entry);
+		else
+			await(entry);
+		return new Lease(entry);
+	}
+
+	/**
+	 * Gets number of stories kept, including any being loaded
+	 * @return
+	 * Stories kept
+	 */
+	public synchronized int getStoryCount(){
+		return entries.size();
+	}
+
+	/**
+	 * Gets estimated heap used by the stories kept
+	 * @return
+	 * Estimated bytes
+	 */
+	public synchronized long getUsedBytes(){
+		return usedBytes;
+	}
+
+	/**
+	 * Gets heap the stories kept may use
+	 * @return
+	 * Budget in bytes
+	 */
+	public long getBudgetBytes(){
+		return budgetBytes;
+	}
+
+	/**
+	 * Gets number of opens which found the story kept
+	 * @return
+	 * Hits
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Gets number of opens which had to load the story
+	 * @return
+	 * Misses
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * Gets number of stories dropped to stay within the budget
+	 * @return
+	 * Evictions
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	/**
+	 * Gets number of loads which failed
+	 * @return
+	 * Failed loads
+	 */
+	public synchronized long getFailures(){
+		return failures;
+	}
+
+	/**
+	 * Gets time taken by the loads so far
+	 * @return
+	 * Summary of load times in nanoseconds
+	 */
+	public LatencySummary getLoadLatency(){
+		return new LatencySummary(loads);
+	}
+
+	private void load(Entry entry) throws IOException, DataFormatException{
+		long start = System.nanoTime();
+		try{
+			StoryTree story = StoryJournal.load(entry.filename);
+			long bytes = story.estimateHeapBytes();
+			loads.record(System.nanoTime() - start);
+			synchronized(this){
+				entry.story = story;
+				entry.bytes = bytes;
+				usedBytes += bytes;
+				evict();
+			}
+		}
+		catch(IOException e){
+			fail(entry, e);
+			throw e;
+		}
+		catch(DataFormatException e){
+			fail(entry, e);
+			throw e;
+		}
+		catch(RuntimeException e){
+			fail(entry, e);
+			throw e;
+		}
+		finally{
+			entry.loaded.countDown();
+		}
+	}
+
+	/**
+	 * Forgets a story which failed to load, so the next open tries again
+	 */
+	private synchronized void fail(Entry entry, Exception failure){
+		entry.failure = failure;
+		entry.leases--;
+		failures++;
+		if(entries.get(entry.filename) == entry)
+			entries.remove(entry.filename);
+	}
+
+	/**
+	 * Waits for another thread to finish loading a story
+	 */
+	private void await(Entry entry) throws IOException, DataFormatException{
+		try{
+			entry.loaded.await();
+		}
+		catch(InterruptedException e){
+			release(entry);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted loading "
+					+ entry.filename);
+		}
+		Exception failure = entry.failure;
+		if(failure == null)
+			return;
+		synchronized(this){
+			entry.leases--;
+		}
+		if(failure instanceof IOException)
+			throw new IOException(failure.getMessage(), failure);
+		if(failure instanceof DataFormatException)
+			throw new DataFormatException(failure.getMessage());
+		throw new IllegalStateException(failure);
+	}
+
+	private synchronized void release(Entry entry){
+		entry.leases--;
+		evict();
+	}
+
+	/**
+	 * Drops stories no longer leased, least recently opened first, until
+	 * the rest fit in the budget
+	 */
+	private void evict(){
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(usedBytes > budgetBytes && iterator.hasNext()){
+			Entry entry = iterator.next();
+			if(entry.leases > 0 || entry.story == null)
+				continue;
+			iterator.remove();
+			usedBytes -= entry.bytes;
+			evictions++;
+		}
+	}
+
+	/**
+	 * The Entry is one story kept, or being loaded
+	 */
+	private static class Entry {
+		private String filename;
+		private CountDownLatch loaded;
+		private volatile StoryTree story;
+		private volatile Exception failure;
+		private long bytes;
+		private int leases;
+
+		private Entry(String filename){
+			this.filename = filename;
+			loaded = new CountDownLatch(1);
+		}
+	}
+
+	/**
+	 * The Lease holds an open story, keeping it in the library until it is
+	 * closed. A lease is used by one thread at a time.
+	 */
+	public class Lease implements Closeable {
+		private Entry entry;
+		private boolean closed;
+
+		private Lease(Entry entry){
+			this.entry = entry;
+		}
+
+		/**
+		 * Gets the story leased
+		 * @return
+		 * Story, shared with every other lease of it
+		 * @throws IllegalStateException
+		 * Lease is closed
+		 */
+		public StoryTree getStory() throws IllegalStateException{
+			if(closed)
+				throw new IllegalStateException("Lease is closed");
+			return entry.story;
+		}
+
+		/**
+		 * Starts a game of the story leased
+		 * @return
+		 * New session at the root of the story
+		 * @throws IllegalStateException
+		 * Lease is closed
+		 */
+		public PlaySession newSession() throws IllegalStateException{
+			return getStory().newSession();
+		}
+
+		/**
+		 * Releases the story, which may then be dropped from the library.
+		 * Closing a lease again does nothing.
+		 */
+		public void close(){
+			if(closed)
+				return;
+			closed = true;
+			release(entry);
+		}
+	}
+}
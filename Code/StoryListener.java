@@ -0,0 +1,48 @@
+/**
+ * The StoryListener is told about every edit made to a Story through its
+ * cursor, after the edit has been made. Positions are those of the cursor
+ * when the edit was made, so replaying the same calls on a copy of the
+ * story in the same order makes the same changes.
+ * @author Tejas
+ */
+public interface StoryListener {
+	/**
+	 * Called when a child is added, replacing any child already there
+	 * @param position -
+	 * Position of the parent
+	 * @param slot -
+	 * Child number of the new child, from 1
+	 * @param option -
+	 * Option of the new child
+	 * @param message -
+	 * Message of the new child
+	 */
+	void childAdded(String position, int slot, String option, String message);
+
+	/**
+	 * Called when a child and its subtree are removed
+	 * @param position -
+	 * Position of the parent
+	 * @param slot -
+	 * Child number of the removed child, from 1
+	 */
+	void childRemoved(String position, int slot);
+
+	/**
+	 * Called when the option of a node is set
+	 * @param position -
+	 * Position of the node
+	 * @param option -
+	 * New option
+	 */
+	void optionChanged(String position, String option);
+
+	/**
+	 * Called when the message of a node is set
+	 * @param position -
+	 * Position of the node
+	 * @param message -
+	 * New message
+	 */
+	void messageChanged(String position, String message);
+}
@@ -0,0 +1,76 @@
+/**
+ * The StoryListeners chains two listeners into one, so a Story can tell
+ * any number of listeners about its edits through a single field which is
+ * null while nobody listens. Listeners are told in the order they were
+ * added.
+ * @author Tejas
+ */
+class StoryListeners implements StoryListener {
+	private StoryListener first;
+	private StoryListener second;
+
+	private StoryListeners(StoryListener first, StoryListener second){
+		this.first = first;
+		this.second = second;
+	}
+
+	/**
+	 * Adds a listener to a chain
+	 * @param chain -
+	 * Listeners told so far, or null for none
+	 * @param listener -
+	 * Listener to tell after them
+	 * @return
+	 * Chain telling both
+	 */
+	static StoryListener add(StoryListener chain, StoryListener listener){
+		if(chain == null)
+			return listener;
+		if(listener == null)
+			return chain;
+		return new StoryListeners(chain, listener);
+	}
+
+	/**
+	 * Removes a listener from a chain, the last one added if it was added
+	 * more than once
+	 * @param chain -
+	 * Listeners told so far, or null for none
+	 * @param listener -
+	 * Listener to stop telling
+	 * @return
+	 * Chain telling the others, or null if there are none
+	 */
+	static StoryListener remove(StoryListener chain, StoryListener listener){
+		if(chain == listener)
+			return null;
+		if(!(chain instanceof StoryListeners))
+			return chain;
+		StoryListeners pair = (StoryListeners)chain;
+		if(pair.second == listener)
+			return pair.first;
+		StoryListener first = remove(pair.first, listener);
+		return first == pair.first ? chain : add(first, pair.second);
+	}
+
+	public void childAdded(String position, int slot, String option,
+			String message){
+		first.childAdded(position, slot, option, message);
+		second.childAdded(position, slot, option, message);
+	}
+
+	public void childRemoved(String position, int slot){
+		first.childRemoved(position, slot);
+		second.childRemoved(position, slot);
+	}
+
+	public void optionChanged(String position, String option){
+		first.optionChanged(position, option);
+		second.optionChanged(position, option);
+	}
+
+	public void messageChanged(String position, String message){
+		first.messageChanged(position, message);
+		second.messageChanged(position, message);
+	}
+}
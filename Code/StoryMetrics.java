@@ -0,0 +1,232 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The StoryMetrics count what the program does: loads and saves of story
+ * files, the calls players make through a MeteredPlaySession, the sessions
+ * open and how games end. There is one instance for the whole program,
+ * which can be published over JMX. Recording only adds to striped counters
+ * and striped histograms, so it does not allocate once the stripes it uses
+ * exist and threads recording at once only contend when they share a
+ * stripe, and the latency measured is not changed by measuring it.
+ * @author Tejas
+ */
+public class StoryMetrics implements StoryMetricsMXBean {
+	/**
+	 * Name the metrics are registered under
+	 */
+	public static final String OBJECT_NAME = "Zork:type=StoryMetrics";
+
+	private static final StoryMetrics METRICS = new StoryMetrics();
+
+	private LatencyHistogram loads;
+	private LongAdder loadedNodes;
+	private LongAdder loadedBytes;
+	private LatencyHistogram saves;
+	private LongAdder savedNodes;
+	private LongAdder savedBytes;
+	private LatencyHistogram selectChild;
+	private LatencyHistogram options;
+	private LatencyHistogram winProbability;
+	private LongAdder playSessions;
+	private LongAdder editSessions;
+	private LongAdder wins;
+	private LongAdder losses;
+
+	private StoryMetrics(){
+		loads = new LatencyHistogram();
+		loadedNodes = new LongAdder();
+		loadedBytes = new LongAdder();
+		saves = new LatencyHistogram();
+		savedNodes = new LongAdder();
+		savedBytes = new LongAdder();
+		selectChild = new LatencyHistogram();
+		options = new LatencyHistogram();
+		winProbability = new LatencyHistogram();
+		playSessions = new LongAdder();
+		editSessions = new LongAdder();
+		wins = new LongAdder();
+		losses = new LongAdder();
+	}
+
+	/**
+	 * Gets the metrics of the program
+	 * @return
+	 * The one StoryMetrics instance
+	 */
+	public static StoryMetrics get(){
+		return METRICS;
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBeanServer, unless they
+	 * already are
+	 * @throws IllegalStateException
+	 * The metrics could not be registered
+	 */
+	public static synchronized void register() throws IllegalStateException{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try{
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!server.isRegistered(name))
+				server.registerMBean(METRICS, name);
+		}
+		catch(JMException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Records a story read from a file
+	 * @param nanos -
+	 * Time taken
+	 * @param nodes -
+	 * Nodes read
+	 * @param bytes -
+	 * Length of the file
+	 */
+	public void recordLoad(long nanos, long nodes, long bytes){
+		loads.record(nanos);
+		loadedNodes.add(nodes);
+		loadedBytes.add(bytes);
+	}
+
+	/**
+	 * Records a story saved to a file
+	 * @param nanos -
+	 * Time taken
+	 * @param statistics -
+	 * Nodes and bytes written
+	 */
+	public void recordSave(long nanos, SaveStatistics statistics){
+		saves.record(nanos);
+		savedNodes.add(statistics.getNodesWritten());
+		savedBytes.add(statistics.getBytesWritten());
+	}
+
+	/**
+	 * Records a move to a child by a player
+	 * @param nanos -
+	 * Time taken
+	 */
+	public void recordSelectChild(long nanos){
+		selectChild.record(nanos);
+	}
+
+	/**
+	 * Records options listed for a player
+	 * @param nanos -
+	 * Time taken
+	 */
+	public void recordOptions(long nanos){
+		options.record(nanos);
+	}
+
+	/**
+	 * Records the chance of a win worked out for a player
+	 * @param nanos -
+	 * Time taken
+	 */
+	public void recordWinProbability(long nanos){
+		winProbability.record(nanos);
+	}
+
+	/**
+	 * Records a game which has ended
+	 * @param state -
+	 * State the game ended in
+	 */
+	public void recordOutcome(GameState state){
+		if(state == GameState.GAME_OVER_WIN)
+			wins.increment();
+		else if(state == GameState.GAME_OVER_LOSE)
+			losses.increment();
+	}
+
+	/**
+	 * Records a play session opened or closed
+	 * @param change -
+	 * 1 when a session is opened, -1 when it is closed
+	 */
+	public void addPlaySessions(long change){
+		playSessions.add(change);
+	}
+
+	/**
+	 * Records an edit session opened or closed
+	 * @param change -
+	 * 1 when a session is opened, -1 when it is closed
+	 */
+	public void addEditSessions(long change){
+		editSessions.add(change);
+	}
+
+	public LatencySummary getLoadLatency(){
+		return new LatencySummary(loads);
+	}
+
+	public long getLoadedNodes(){
+		return loadedNodes.sum();
+	}
+
+	public long getLoadedBytes(){
+		return loadedBytes.sum();
+	}
+
+	public LatencySummary getSaveLatency(){
+		return new LatencySummary(saves);
+	}
+
+	public long getSavedNodes(){
+		return savedNodes.sum();
+	}
+
+	public long getSavedBytes(){
+		return savedBytes.sum();
+	}
+
+	public LatencySummary getSelectChildLatency(){
+		return new LatencySummary(selectChild);
+	}
+
+	public LatencySummary getOptionsLatency(){
+		return new LatencySummary(options);
+	}
+
+	public LatencySummary getWinProbabilityLatency(){
+		return new LatencySummary(winProbability);
+	}
+
+	public long getActivePlaySessions(){
+		return playSessions.sum();
+	}
+
+	public long getActiveEditSessions(){
+		return editSessions.sum();
+	}
+
+	public long getWins(){
+		return wins.sum();
+	}
+
+	public long getLosses(){
+		return losses.sum();
+	}
+
+	public void reset(){
+		loads.reset();
+		loadedNodes.reset();
+		loadedBytes.reset();
+		saves.reset();
+		savedNodes.reset();
+		savedBytes.reset();
+		selectChild.reset();
+		options.reset();
+		winProbability.reset();
+		wins.reset();
+		losses.reset();
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * The StoryMetricsMXBean is the management interface of StoryMetrics, read
+ * over JMX by tools such as jconsole under StoryMetrics.OBJECT_NAME.
+ * Latencies are in nanoseconds.
+ * @author Tejas
+ */
+public interface StoryMetricsMXBean {
+	/**
+	 * Gets time taken to read stories from files
+	 * @return
+	 * Count and latency of loads
+	 */
+	LatencySummary getLoadLatency();
+
+	/**
+	 * Gets number of nodes read from files
+	 * @return
+	 * Nodes loaded
+	 */
+	long getLoadedNodes();
+
+	/**
+	 * Gets number of bytes read from files
+	 * @return
+	 * Bytes loaded
+	 */
+	long getLoadedBytes();
+
+	/**
+	 * Gets time taken to save stories to files
+	 * @return
+	 * Count and latency of saves
+	 */
+	LatencySummary getSaveLatency();
+
+	/**
+	 * Gets number of nodes written to files
+	 * @return
+	 * Nodes saved
+	 */
+	long getSavedNodes();
+
+	/**
+	 * Gets number of bytes written to files
+	 * @return
+	 * Bytes saved
+	 */
+	long getSavedBytes();
+
+	/**
+	 * Gets time taken by players to move to a child
+	 * @return
+	 * Count and latency of selectChild
+	 */
+	LatencySummary getSelectChildLatency();
+
+	/**
+	 * Gets time taken to list the options shown to players
+	 * @return
+	 * Count and latency of getOptions
+	 */
+	LatencySummary getOptionsLatency();
+
+	/**
+	 * Gets time taken to work out the chance of a win for players
+	 * @return
+	 * Count and latency of winProbability
+	 */
+	LatencySummary getWinProbabilityLatency();
+
+	/**
+	 * Gets number of games being played
+	 * @return
+	 * Active play sessions
+	 */
+	long getActivePlaySessions();
+
+	/**
+	 * Gets number of editors open
+	 * @return
+	 * Active edit sessions
+	 */
+	long getActiveEditSessions();
+
+	/**
+	 * Gets number of games won
+	 * @return
+	 * Games which reached a winning node
+	 */
+	long getWins();
+
+	/**
+	 * Gets number of games lost
+	 * @return
+	 * Games which reached a losing node
+	 */
+	long getLosses();
+
+	/**
+	 * Clears every count and latency, leaving the active sessions
+	 */
+	void reset();
+}
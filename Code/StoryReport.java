@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The StoryReport holds the statistics StoryAnalytics gathers about a
+ * subtree of a story. Depths are counted from the root of the subtree.
+ * @author Tejas
+ */
+public class StoryReport {
+	private long nodeCount;
+	private long leafCount;
+	private long winCount;
+	private long loseCount;
+	private long deadEndCount;
+	private long[] depthHistogram;
+	private int longestPath;
+	private String deepestPosition;
+	private List<String> deadEnds;
+
+	StoryReport(long nodeCount, long leafCount, long winCount, long loseCount,
+			long deadEndCount, long[] depthHistogram, int longestPath,
+			String deepestPosition, List<String> deadEnds){
+		this.nodeCount = nodeCount;
+		this.leafCount = leafCount;
+		this.winCount = winCount;
+		this.loseCount = loseCount;
+		this.deadEndCount = deadEndCount;
+		this.depthHistogram = depthHistogram;
+		this.longestPath = longestPath;
+		this.deepestPosition = deepestPosition;
+		this.deadEnds = Collections.unmodifiableList(
+				new ArrayList<String>(deadEnds));
+	}
+
+	/**
+	 * Gets number of nodes
+	 * @return
+	 * Number of nodes in the subtree
+	 */
+	public long getNodeCount(){
+		return nodeCount;
+	}
+
+	/**
+	 * Gets number of leaves
+	 * @return
+	 * Number of nodes without children
+	 */
+	public long getLeafCount(){
+		return leafCount;
+	}
+
+	/**
+	 * Gets number of winning leaves
+	 * @return
+	 * Number of leaves which are winning nodes
+	 */
+	public long getWinCount(){
+		return winCount;
+	}
+
+	/**
+	 * Gets number of losing leaves
+	 * @return
+	 * Number of leaves which are losing nodes
+	 */
+	public long getLoseCount(){
+		return loseCount;
+	}
+
+	/**
+	 * Gets number of dead ends, leaves which neither win nor lose
+	 * @return
+	 * Number of dead ends
+	 */
+	public long getDeadEndCount(){
+		return deadEndCount;
+	}
+
+	/**
+	 * Gets number of nodes at every depth
+	 * @return
+	 * Copy of the histogram, indexed by depth
+	 */
+	public long[] getDepthHistogram(){
+		return depthHistogram.clone();
+	}
+
+	/**
+	 * Gets length of the longest path from the root of the subtree
+	 * @return
+	 * Depth of the deepest node
+	 */
+	public int getLongestPath(){
+		return longestPath;
+	}
+
+	/**
+	 * Gets position of the first deepest node in preorder
+	 * @return
+	 * Position of the end of the longest path
+	 */
+	public String getDeepestPosition(){
+		return deepestPosition;
+	}
+
+	/**
+	 * Gets positions of dead ends in preorder, up to the limit given to
+	 * StoryAnalytics
+	 * @return
+	 * Positions of dead ends
+	 */
+	public List<String> getDeadEnds(){
+		return deadEnds;
+	}
+
+	/**
+	 * Returns a string representation of the report
+	 * @return
+	 * The report as lines of text
+	 */
+	public String toString(){
+		StringBuilder text = new StringBuilder();
+		text.append("Nodes: ").append(nodeCount)
+			.append("\nLeaves: ").append(leafCount)
+			.append("\nWinning leaves: ").append(winCount)
+			.append("\nLosing leaves: ").append(loseCount)
+			.append("\nDead ends: ").append(deadEndCount)
+			.append("\nLongest path: ").append(longestPath)
+			.append(" (ends at ").append(deepestPosition).append(')')
+			.append("\nNodes by depth: ")
+			.append(Arrays.toString(depthHistogram));
+		if(!deadEnds.isEmpty()){
+			text.append("\nDead end positions: ").append(deadEnds);
+			if(deadEnds.size() < deadEndCount)
+				text.append(" and ").append(deadEndCount - deadEnds.size())
+					.append(" more");
+		}
+		return text.toString();
+	}
+}
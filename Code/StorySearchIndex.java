@@ -0,0 +1,531 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The StorySearchIndex is an inverted index from the words in the options
+ * and messages of a Story to the nodes using them, for finding nodes by
+ * their text. Added as a listener of the story, it updates only the nodes
+ * each edit touches, so keeping it current costs in proportion to the edit
+ * and not to the story. Words are runs of letters and digits, compared
+ * without case.
+ * A query lists terms which must all match, each either a word, a prefix
+ * ending in *, or a phrase in double quotes whose words must follow one
+ * another. Matches are ranked by how rare their words are in the story,
+ * with a match in an option counting twice one in a message, and shorter
+ * texts ranking above longer ones matching the same.
+ * @author Tejas
+ */
+public class StorySearchIndex implements StoryListener {
+	private static final int OPTION_WEIGHT = 2;
+
+	// The text of every node is kept in a tree shaped like the story, so
+	// an edit finds its node by walking the position and a hit finds its
+	// position by walking up, without keeping any position
+	private Text root;
+	private int size;
+	// Nodes using each word, sorted so the words with a prefix are one
+	// range
+	private TreeMap<String, HashSet<Text>> postings;
+
+	/**
+	 * Constructor indexing every node of a story. The cursor of the story
+	 * is moved through the whole story and put back where it was.
+	 * @param story -
+	 * Story to index
+	 * @throws IllegalArgumentException
+	 * story is null
+	 */
+	public StorySearchIndex(Story story) throws IllegalArgumentException{
+		if(story == null)
+			throw new IllegalArgumentException();
+		postings = new TreeMap<String, HashSet<Text>>();
+		String cursor = story.getCursorPosition();
+		story.resetCursor();
+		root = new Text(null, 0, story.getCursorOption(),
+						story.getCursorMessage());
+		post(root);
+
+		// Texts of every node on the path to the cursor, and the next
+		// child to visit at each level
+		ArrayList<Text> path = new ArrayList<Text>();
+		int[] next = new int[16];
+		next[0] = 1;
+		path.add(root);
+		try{
+			while(!path.isEmpty()){
+				int level = path.size() - 1;
+				int slot = next[level];
+				while(slot <= story.getChildSlots()
+						&& story.getChildOption(slot) == null)
+					slot++;
+				if(slot > story.getChildSlots()){
+					path.remove(level);
+					if(level > 0)
+						story.returnToParent();
+					continue;
+				}
+				next[level] = slot + 1;
+				story.selectChild(slot);
+				Text child = new Text(path.get(level), slot,
+						story.getCursorOption(), story.getCursorMessage());
+				post(child);
+				if(level + 1 == next.length)
+					next = Arrays.copyOf(next, next.length * 2);
+				next[level + 1] = 1;
+				path.add(child);
+			}
+			story.selectChildStartRoot(cursor);
+		}
+		catch(NodeNotPresentException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Gets number of nodes indexed
+	 * @return
+	 * Number of nodes in the story
+	 */
+	public int getNodeCount(){
+		return size;
+	}
+
+	/**
+	 * Gets number of distinct words indexed
+	 * @return
+	 * Number of words in the story
+	 */
+	public int getWordCount(){
+		return postings.size();
+	}
+
+	/**
+	 * Gets option of a node as indexed
+	 * @param position -
+	 * Position of the node
+	 * @return
+	 * Option of the node, or null if there is no node at position
+	 */
+	public String getOption(String position){
+		Text text = find(position);
+		return text == null ? null : text.option;
+	}
+
+	/**
+	 * Gets message of a node as indexed
+	 * @param position -
+	 * Position of the node
+	 * @return
+	 * Message of the node, or null if there is no node at position
+	 */
+	public String getMessage(String position){
+		Text text = find(position);
+		return text == null ? null : text.message;
+	}
+
+	/**
+	 * Finds the nodes matching a query
+	 * @param query -
+	 * Words, prefixes ending in * and phrases in double quotes, all of
+	 * which must match
+	 * @param limit -
+	 * Most positions to return
+	 * @return
+	 * Positions of the best matches, best first
+	 * @throws IllegalArgumentException
+	 * query is null, has no words or has an unclosed quote, or limit is
+	 * negative
+	 */
+	public String[] search(String query, int limit)
+			throws IllegalArgumentException{
+		if(query == null || limit < 0)
+			throw new IllegalArgumentException();
+		ArrayList<Term> terms = parse(query);
+		if(terms.isEmpty())
+			throw new IllegalArgumentException("Nothing to search for");
+
+		// Only the nodes matching the rarest term can match them all, and
+		// each of those is then checked against every term
+		Term rarest = null;
+		long fewest = Long.MAX_VALUE;
+		for(Term term : terms){
+			long count = estimate(term);
+			if(count < fewest){
+				fewest = count;
+				rarest = term;
+			}
+		}
+		// The worst of the best matches so far is at the head
+		PriorityQueue<Hit> best = new PriorityQueue<Hit>();
+		if(fewest > 0 && limit > 0){
+			for(Text text : candidates(rarest)){
+				double score = score(terms, text);
+				if(score == 0)
+					continue;
+				Hit hit = new Hit(text, score);
+				if(best.size() < limit)
+					best.add(hit);
+				else if(hit.compareTo(best.peek()) > 0){
+					best.poll();
+					best.add(hit);
+				}
+			}
+		}
+
+		String[] hits = new String[best.size()];
+		for(int i = hits.length - 1; i >= 0; i--)
+			hits[i] = best.poll().position();
+		return hits;
+	}
+
+	public void childAdded(String position, int slot, String option,
+			String message){
+		Text parent = find(position);
+		if(parent == null)
+			return;
+		unpostSubtree(parent.child(slot));
+		post(new Text(parent, slot, option, message));
+	}
+
+	public void childRemoved(String position, int slot){
+		Text parent = find(position);
+		if(parent == null || parent.child(slot) == null)
+			return;
+		unpostSubtree(parent.child(slot));
+		parent.setChild(slot, null);
+	}
+
+	public void optionChanged(String position, String option){
+		Text text = find(position);
+		if(text == null)
+			return;
+		unpost(text);
+		text.option = option;
+		post(text);
+	}
+
+	public void messageChanged(String position, String message){
+		Text text = find(position);
+		if(text == null)
+			return;
+		unpost(text);
+		text.message = message;
+		post(text);
+	}
+
+	/**
+	 * Gets the text of a node by walking its position from the root
+	 */
+	private Text find(String position){
+		if(position == null || !position.startsWith("1")
+				|| (position.length() > 1 && position.charAt(1) != '-'))
+			return null;
+		Text text = root;
+		int slot = 0;
+		for(int i = 1; i < position.length() && text != null; i++){
+			char c = position.charAt(i);
+			if(c >= '0' && c <= '9')
+				slot = slot * 10 + c - '0';
+			else if(c != '-')
+				return null;
+			if(c == '-' && i > 1){
+				text = text.child(slot);
+				slot = 0;
+			}
+		}
+		return text == null || position.length() == 1 ? text
+				: text.child(slot);
+	}
+
+	private void post(Text text){
+		size++;
+		for(String word : text.words()){
+			HashSet<Text> texts = postings.get(word);
+			if(texts == null){
+				texts = new HashSet<Text>();
+				postings.put(word, texts);
+			}
+			texts.add(text);
+		}
+	}
+
+	private void unpost(Text text){
+		size--;
+		for(String word : text.words()){
+			HashSet<Text> texts = postings.get(word);
+			texts.remove(text);
+			if(texts.isEmpty())
+				postings.remove(word);
+		}
+	}
+
+	private void unpostSubtree(Text top){
+		if(top == null)
+			return;
+		ArrayList<Text> stack = new ArrayList<Text>();
+		stack.add(top);
+		while(!stack.isEmpty()){
+			Text text = stack.remove(stack.size() - 1);
+			unpost(text);
+			if(text.children != null){
+				for(Text child : text.children){
+					if(child != null)
+						stack.add(child);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the words with a prefix, with the nodes using each
+	 */
+	private SortedMap<String, HashSet<Text>> withPrefix(String prefix){
+		return postings.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+
+	/**
+	 * Gets a bound on the number of nodes a term matches, cheap enough to
+	 * work out for every term
+	 */
+	private long estimate(Term term){
+		long fewest = Long.MAX_VALUE;
+		for(int i = 0; i < term.exactWords(); i++){
+			HashSet<Text> texts = postings.get(term.words[i]);
+			fewest = Math.min(fewest, texts == null ? 0 : texts.size());
+		}
+		if(fewest != Long.MAX_VALUE)
+			return fewest;
+		long count = 0;
+		for(HashSet<Text> texts : withPrefix(term.words[0]).values())
+			count += texts.size();
+		return count;
+	}
+
+	/**
+	 * Gets nodes which may match a term, all of those which do
+	 */
+	private Collection<Text> candidates(Term term){
+		HashSet<Text> fewest = null;
+		for(int i = 0; i < term.exactWords(); i++){
+			HashSet<Text> texts = postings.get(term.words[i]);
+			if(fewest == null || texts.size() < fewest.size())
+				fewest = texts;
+		}
+		if(fewest != null)
+			return fewest;
+		HashSet<Text> all = new HashSet<Text>();
+		for(HashSet<Text> texts : withPrefix(term.words[0]).values())
+			all.addAll(texts);
+		return all;
+	}
+
+	/**
+	 * Scores a node against every term
+	 * @return
+	 * Score of the node, 0 if a term does not match it
+	 */
+	private double score(ArrayList<Term> terms, Text text){
+		String[] option = words(text.option);
+		String[] message = words(text.message);
+		double total = 0;
+		for(Term term : terms){
+			double score = OPTION_WEIGHT * score(term, option)
+					+ score(term, message);
+			if(score == 0)
+				return 0;
+			total += score;
+		}
+		return total / Math.sqrt(option.length + message.length);
+	}
+
+	/**
+	 * Adds up how rare the words are at every place a term matches a text
+	 */
+	private double score(Term term, String[] text){
+		double score = 0;
+		for(int start = 0; start + term.words.length <= text.length;
+				start++){
+			double weight = 0;
+			for(int i = 0; i < term.words.length; i++){
+				String word = text[start + i];
+				boolean matches = term.prefix && i == term.words.length - 1
+						? word.startsWith(term.words[i])
+						: word.equals(term.words[i]);
+				if(!matches){
+					weight = 0;
+					break;
+				}
+				weight += Math.log(1 + (double)size
+								   / postings.get(word).size());
+			}
+			score += weight;
+		}
+		return score;
+	}
+
+	/**
+	 * Splits a query into its terms
+	 */
+	private static ArrayList<Term> parse(String query)
+			throws IllegalArgumentException{
+		ArrayList<Term> terms = new ArrayList<Term>();
+		int i = 0;
+		while(i < query.length()){
+			if(Character.isWhitespace(query.charAt(i))){
+				i++;
+				continue;
+			}
+			String text;
+			if(query.charAt(i) == '"'){
+				int end = query.indexOf('"', i + 1);
+				if(end < 0)
+					throw new IllegalArgumentException("Unclosed quote in "
+							+ "search");
+				text = query.substring(i + 1, end);
+				i = end + 1;
+			}
+			else{
+				int end = i;
+				while(end < query.length() && query.charAt(end) != '"'
+						&& !Character.isWhitespace(query.charAt(end)))
+					end++;
+				text = query.substring(i, end);
+				i = end;
+			}
+			String[] words = words(text);
+			if(words.length > 0)
+				terms.add(new Term(words, text.endsWith("*")));
+		}
+		return terms;
+	}
+
+	/**
+	 * Splits text into its words in lower case
+	 */
+	private static String[] words(String text){
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++){
+			if(i < text.length() && Character.isLetterOrDigit(text.charAt(i))){
+				if(start < 0)
+					start = i;
+			}
+			else if(start >= 0){
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	/**
+	 * The Text is the option and message of one node, linked to its
+	 * parent and children
+	 */
+	private static class Text {
+		private String option;
+		private String message;
+		private Text parent;
+		private int slot;
+		private Text[] children;
+
+		/**
+		 * Constructor linking the new text in as a child of parent
+		 */
+		private Text(Text parent, int slot, String option, String message){
+			this.parent = parent;
+			this.slot = slot;
+			this.option = option;
+			this.message = message;
+			if(parent != null)
+				parent.setChild(slot, this);
+		}
+
+		private Text child(int slot){
+			return children == null || slot < 1 || slot > children.length
+					? null : children[slot - 1];
+		}
+
+		private void setChild(int slot, Text child){
+			if(children == null)
+				children = new Text[3];
+			if(slot > children.length)
+				children = Arrays.copyOf(children, slot);
+			children[slot - 1] = child;
+		}
+
+		private HashSet<String> words(){
+			HashSet<String> words = new HashSet<String>();
+			Collections.addAll(words, StorySearchIndex.words(option));
+			Collections.addAll(words, StorySearchIndex.words(message));
+			return words;
+		}
+
+		private String position(){
+			if(parent == null)
+				return "1";
+			ArrayList<Integer> slots = new ArrayList<Integer>();
+			for(Text text = this; text.parent != null; text = text.parent)
+				slots.add(text.slot);
+			StringBuilder position = new StringBuilder("1");
+			for(int i = slots.size() - 1; i >= 0; i--)
+				position.append('-').append(slots.get(i));
+			return position.toString();
+		}
+	}
+
+	/**
+	 * The Term is one part of a query, a phrase of one or more words of
+	 * which the last may be a prefix
+	 */
+	private static class Term {
+		private final String[] words;
+		private final boolean prefix;
+
+		private Term(String[] words, boolean prefix){
+			this.words = words;
+			this.prefix = prefix;
+		}
+
+		/**
+		 * Gets number of words which must match exactly
+		 */
+		private int exactWords(){
+			return prefix ? words.length - 1 : words.length;
+		}
+	}
+
+	/**
+	 * The Hit is a node matching a query with its score, ordered from the
+	 * worst match to the best
+	 */
+	private static class Hit implements Comparable<Hit> {
+		private Text text;
+		private double score;
+		private String position;
+
+		private Hit(Text text, double score){
+			this.text = text;
+			this.score = score;
+		}
+
+		private String position(){
+			if(position == null)
+				position = text.position();
+			return position;
+		}
+
+		public int compareTo(Hit other){
+			int order = Double.compare(score, other.score);
+			// Equal scores rank the earlier position as the better match
+			return order != 0 ? order
+					: other.position().compareTo(position());
+		}
+	}
+}
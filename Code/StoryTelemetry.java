@@ -0,0 +1,360 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The StoryTelemetry counts, for every node players reach, how often it is
+ * visited, how often each of its children is chosen and how many of the
+ * games passing through it are won and lost. Counters are kept per
+ * NodeAddress in an open addressing table which threads fill in with
+ * compareAndSet and never lock, and each count is a LongAdder, so any number
+ * of sessions can record at once without contending. A node only allocates
+ * its counters the first time it is reached. The table has a fixed size,
+ * nodes reached once it is full and nodes without an address, deeper than
+ * NodeAddress.MAX_DEPTH or past NodeAddress.MAX_SLOT, are counted as
+ * untracked instead.
+ * The counts can be written out as a heatmap, one line per position, while
+ * sessions keep recording.
+ * @author Tejas
+ */
+public class StoryTelemetry {
+	/**
+	 * Number of nodes counted when none is given
+	 */
+	public static final int DEFAULT_NODES = 1 << 16;
+
+	private static final String HEADER = "position,visits,choice 1,choice 2,"
+			+ "choice 3,wins,losses,win rate,win probability";
+
+	private AtomicReferenceArray<Counters> table;
+	private AtomicInteger size;
+	private int maxSize;
+	private int mask;
+	private LongAdder untracked;
+
+	/**
+	 * Default Constructor
+	 */
+	public StoryTelemetry(){
+		this(DEFAULT_NODES);
+	}
+
+	/**
+	 * Constructor sized for a number of nodes
+	 * @param expected -
+	 * Number of nodes expected to be reached
+	 * @throws IllegalArgumentException
+	 * expected is not positive
+	 */
+	public StoryTelemetry(int expected) throws IllegalArgumentException{
+		if(expected <= 0)
+			throw new IllegalArgumentException();
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1))
+					   << 1;
+		table = new AtomicReferenceArray<Counters>(capacity);
+		size = new AtomicInteger();
+		maxSize = capacity / 4 * 3;
+		mask = capacity - 1;
+		untracked = new LongAdder();
+	}
+
+	/**
+	 * Records a game started at the root
+	 */
+	public void recordStart(){
+		Counters counters = counters(NodeAddress.ROOT);
+		if(counters != null)
+			counters.visits.increment();
+		else
+			untracked.increment();
+	}
+
+	/**
+	 * Records a move from a node to one of its children
+	 * @param address -
+	 * Address of the child moved to
+	 */
+	public void recordChoice(long address){
+		if(address <= NodeAddress.ROOT){
+			untracked.increment();
+			return;
+		}
+		Counters parent = counters(NodeAddress.parent(address));
+		Counters child = counters(address);
+		if(parent != null)
+			parent.choices[NodeAddress.slot(address) - 1].increment();
+		if(child != null)
+			child.visits.increment();
+		if(parent == null || child == null)
+			untracked.increment();
+	}
+
+	/**
+	 * Records a game which has ended, against the node it ended at and
+	 * every node on the way there
+	 * @param address -
+	 * Address of the node the game ended at
+	 * @param state -
+	 * State the game ended in
+	 */
+	public void recordOutcome(long address, GameState state){
+		if(state == GameState.GAME_NOT_OVER)
+			return;
+		if(address < 0){
+			untracked.increment();
+			return;
+		}
+		boolean counted = true;
+		for(; address >= 0; address = NodeAddress.parent(address)){
+			Counters counters = counters(address);
+			if(counters == null){
+				counted = false;
+				continue;
+			}
+			if(state == GameState.GAME_OVER_WIN)
+				counters.wins.increment();
+			else
+				counters.losses.increment();
+		}
+		if(!counted)
+			untracked.increment();
+	}
+
+	/**
+	 * Gets number of nodes with counts
+	 * @return
+	 * Nodes reached so far and kept in the table
+	 */
+	public int getNodeCount(){
+		return size.get();
+	}
+
+	/**
+	 * Gets number of moves and endings which could not be counted, because
+	 * the table was full or the node had no address
+	 * @return
+	 * Events not counted
+	 */
+	public long getUntrackedCount(){
+		return untracked.sum();
+	}
+
+	/**
+	 * Writes the counts so far as a heatmap in CSV, one line per position
+	 * in the order of the story, replacing the file only once it is
+	 * complete. The win rate of a position is the percentage of the games
+	 * ended after passing through it which were won, next to the win
+	 * probability the shape of the story gives it. Sessions may keep
+	 * recording while it is written, so counts of different nodes may be a
+	 * few moves apart.
+	 * @param filename -
+	 * Name of file to write
+	 * @param structure -
+	 * Session on the story played, used to work out the win probability
+	 * of every position from the shape of the story, and restarted before
+	 * each position so a LivePlaySession moves to the newest version
+	 * @return
+	 * Number of positions written
+	 * @throws IllegalArgumentException
+	 * filename is empty or null, or structure is null
+	 * @throws IOException
+	 * File could not be written
+	 */
+	public int writeHeatmap(String filename, PlaySession structure)
+			throws IllegalArgumentException, IOException{
+		if(structure == null)
+			throw new IllegalArgumentException();
+		ArrayList<Row> rows = new ArrayList<Row>(size.get());
+		for(int i = 0; i < table.length(); i++){
+			Counters counters = table.get(i);
+			if(counters != null)
+				rows.add(new Row(counters));
+		}
+		Collections.sort(rows, new Comparator<Row>(){
+			public int compare(Row a, Row b){
+				return a.position.compareTo(b.position);
+			}
+		});
+
+		AtomicFileOutputStream out = new AtomicFileOutputStream(filename);
+		try{
+			Writer fileOut = new BufferedWriter(new OutputStreamWriter(out,
+					Charset.defaultCharset()), 1 << 16);
+			fileOut.write(HEADER);
+			fileOut.write('\n');
+			for(Row row : rows){
+				fileOut.write(row.position);
+				fileOut.write(',' + Long.toString(row.visits));
+				for(long choices : row.choices)
+					fileOut.write(',' + Long.toString(choices));
+				fileOut.write(',' + Long.toString(row.wins) + ','
+						+ row.losses + ',');
+				if(row.wins + row.losses > 0)
+					fileOut.write(percentage(100.0 * row.wins
+							/ (row.wins + row.losses)));
+				fileOut.write(',');
+				double probability = winProbability(structure, row.address);
+				if(probability >= 0)
+					fileOut.write(percentage(probability));
+				fileOut.write('\n');
+			}
+			fileOut.flush();
+			out.commit();
+			return rows.size();
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the heatmap every few seconds on a daemon thread, until the
+	 * process ends. A heatmap which cannot be written is reported and
+	 * written again next time.
+	 * @param filename -
+	 * Name of file to write
+	 * @param structure -
+	 * Session on the story played, used only by the exporting thread
+	 * @param seconds -
+	 * Time between heatmaps
+	 * @return
+	 * Executor writing the heatmap, shut it down to stop
+	 * @throws IllegalArgumentException
+	 * filename is empty or null, structure is null or seconds is not
+	 * positive
+	 */
+	public ScheduledExecutorService startExporter(final String filename,
+			final PlaySession structure, long seconds)
+			throws IllegalArgumentException{
+		if(filename == null || filename.isEmpty() || structure == null
+				|| seconds <= 0)
+			throw new IllegalArgumentException();
+		ScheduledExecutorService exporter =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task, "heatmap-export");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		exporter.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					writeHeatmap(filename, structure);
+				}
+				catch(IOException e){
+					System.out.println("Could not write " + filename + ": "
+							+ e.getMessage());
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+		return exporter;
+	}
+
+	/**
+	 * Gets counters of a node, adding them if it has none yet
+	 * @return
+	 * Counters at address, or null if the table is full
+	 */
+	private Counters counters(long address){
+		for(int i = slotOf(address); ; i = (i + 1) & mask){
+			Counters counters = table.get(i);
+			while(counters == null){
+				if(size.get() >= maxSize)
+					return null;
+				if(table.compareAndSet(i, null, new Counters(address)))
+					size.incrementAndGet();
+				// Another thread may have filled the slot first
+				counters = table.get(i);
+			}
+			if(counters.address == address)
+				return counters;
+		}
+	}
+
+	private int slotOf(long address){
+		// Spread the bits, the low bits of nearby addresses are too alike
+		long hash = address * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+
+	private static String percentage(double value){
+		// Always a point, a comma would split the column
+		return String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	/**
+	 * Walks structure to an address to work out its win probability
+	 * @return
+	 * Win probability, or -1 if the story no longer has the node
+	 */
+	private static double winProbability(PlaySession structure,
+			long address){
+		structure.restart();
+		int depth = NodeAddress.depth(address);
+		try{
+			for(int level = 1; level <= depth; level++)
+				structure.selectChild(NodeAddress.slotAt(address, level));
+		}
+		catch(NodeNotPresentException e){
+			return -1;
+		}
+		return structure.winProbability();
+	}
+
+	/**
+	 * The Counters hold the counts of one node
+	 */
+	private static class Counters {
+		private final long address;
+		private final LongAdder visits;
+		private final LongAdder[] choices;
+		private final LongAdder wins;
+		private final LongAdder losses;
+
+		private Counters(long address){
+			this.address = address;
+			visits = new LongAdder();
+			choices = new LongAdder[] {new LongAdder(), new LongAdder(),
+					new LongAdder()};
+			wins = new LongAdder();
+			losses = new LongAdder();
+		}
+	}
+
+	/**
+	 * The Row holds counts of one node read for a heatmap
+	 */
+	private static class Row {
+		private long address;
+		private String position;
+		private long visits;
+		private long[] choices;
+		private long wins;
+		private long losses;
+
+		private Row(Counters counters){
+			address = counters.address;
+			position = NodeAddress.toString(address);
+			visits = counters.visits.sum();
+			choices = new long[counters.choices.length];
+			for(int i = 0; i < choices.length; i++)
+				choices[i] = counters.choices[i].sum();
+			wins = counters.wins.sum();
+			losses = counters.losses.sum();
+		}
+	}
+}
@@ -1,24 +1,83 @@
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Scanner;
 import java.util.zip.DataFormatException;
 /**
  * The StoryTree class represents the data structure for the Zork game.
  * @author Tejas
  */
-public class StoryTree {
+public class StoryTree implements Story {
+	static final String ROOT_OPTION = "root";
+	static final String ROOT_MESSAGE = "Hello, welcome to Zork!";
+	
+	// Rough sizes used to charge versions for the memory they keep alive,
+	// a node counting its share of the child arrays
+	private static final long NODE_BYTES = 56;
+	private static final long STRING_BYTES = 40;
+	
 	private StoryTreeNode root;
 	private StoryTreeNode cursor;
 	private GameState state;
 	
+	// path[0] is the root and path[depth] is the cursor, so the ancestors
+	// of the cursor are always known without searching the tree. slots[i]
+	// is the child number taken to reach path[i] from path[i - 1].
+	private StoryTreeNode[] path;
+	private byte[] slots;
+	private StoryTreeNode[] scratchPath;
+	private byte[] scratchSlots;
+	private int depth;
+	private long address;
+	
+	// When a position index is enabled, jumping to a node only looks up
+	// the node itself. The ancestors are looked up the first time they are
+	// needed, and bit i of unresolved is set while path[i] is not filled.
+	private PositionIndex index;
+	private long unresolved;
+	
+	// When history is kept, no node an earlier version can reach is ever
+	// changed. An edit copies the path from the root to the cursor and
+	// changes the copies, so versions share everything off that path.
+	private StoryHistory history;
+	
+	// Set once equal subtrees share nodes, so an edit must copy the path
+	// to the cursor even without history, since other positions reach
+	// the same nodes.
+	private boolean shared;
+	
+	private StoryListener listener;
+	
 	/**
 	 * Default Constructor
 	 */
 	public StoryTree(){
-		root = new StoryTreeNode("root", "root", "Hello, welcome to Zork!");
+		this(new StoryTreeNode(ROOT_OPTION, ROOT_MESSAGE));
+	}
+	
+	/**
+	 * Constructor for a tree whose nodes already exist
+	 * @param root -
+	 * Root of the tree
+	 */
+	StoryTree(StoryTreeNode root){
+		this.root = root;
 		cursor = root;
 		state = GameState.GAME_NOT_OVER;
+		path = new StoryTreeNode[16];
+		slots = new byte[16];
+		scratchPath = new StoryTreeNode[16];
+		scratchSlots = new byte[16];
+		path[0] = root;
+		depth = 0;
+		address = NodeAddress.ROOT;
 	}
 	
 	/**
@@ -45,6 +104,7 @@ public class StoryTree {
 		if(filename == null || filename == "")
 			throw new IllegalArgumentException();
 
+		long start = System.nanoTime();
 		StoryTree temp = new StoryTree();
 		Scanner file = new Scanner(new File(filename));
 		String position, option, message;
@@ -57,45 +117,111 @@ public class StoryTree {
 			message = details[2].trim();
 			
 			if(position.length() == 1){
-				temp.getCursor().setPosition("1");
 				temp.setCursorOption(option);
 				temp.setCursorMessage(message);
 				continue;
 			}
 			
-			temp.selectChildStartRoot(position.substring(0, 
-									  position.length() - 2));
-			temp.addChild(position.substring(position.length() - 1), 
-											 option, message);
+			int split = position.lastIndexOf('-');
+			if(split < 1)
+				throw new DataFormatException("Invalid position " + position);
+			temp.selectChildStartRoot(position.substring(0, split));
+			temp.addChild(position.substring(split + 1), option, message);
 		}
 		
 		file.close();
+		StoryMetrics.get().recordLoad(System.nanoTime() - start,
+				temp.root.getNodeCount(), new File(filename).length());
 		return temp;
 	}
 	
 	/**
-	 * Saves the StoryTree to the indicated format
+	 * Opens a story file in preorder without reading it all. Nodes are read
+	 * from the file as they are reached, through an index kept next to the
+	 * file which is built the first time and whenever the file changes. The
+	 * tree is read only.
+	 * @param filename -
+	 * Name of file to read from
+	 * @return
+	 * new StoryTree reading its nodes from the file
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File not found or could not be read, or the index could not be written
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format, the file is not in preorder
+	 * or a node has more than three children
+	 */
+	public static StoryTree readTreeLazily(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		return new StoryTree(StoryFileIndex.open(filename).getRoot());
+	}
+	
+	/**
+	 * Saves the StoryTree to the indicated format. Nodes are written to the
+	 * file as the tree is walked, and the file is only replaced once every
+	 * node has been written.
 	 * @param filename -
 	 * Name of file to save to
 	 * @param tree -
 	 * Tree to save in the file
+	 * @return
+	 * Number of nodes and bytes written
 	 * @throws IllegalArgumentException
 	 * filename is empty or null or tree is null
-	 * @throws FileNotFoundException
-	 * File with specified name not found
+	 * @throws IOException
+	 * File could not be written
 	 */
-	public static void saveTree(String filename, StoryTree tree)
-			throws IllegalArgumentException, FileNotFoundException{
+	public static SaveStatistics saveTree(String filename, StoryTree tree)
+			throws IllegalArgumentException, IOException{
 		if(filename == null || filename == "" || tree == null)
 			throw new IllegalArgumentException();
-		PrintWriter fileOut = new PrintWriter(filename);
-		tree.resetCursor();
-		StoryTreeNode temp = tree.getCursor();
-		String details = tree.getDetails(temp);
-
-		fileOut.write(details);
-
-		fileOut.close();
+		long start = System.nanoTime();
+		AtomicFileOutputStream out = new AtomicFileOutputStream(filename);
+		try{
+			Writer fileOut = new BufferedWriter(new OutputStreamWriter(out,
+					Charset.defaultCharset()), 1 << 16);
+			int nodes = tree.writeDetails(fileOut);
+			fileOut.flush();
+			out.commit();
+			SaveStatistics statistics = new SaveStatistics(nodes,
+					out.getBytesWritten());
+			StoryMetrics.get().recordSave(System.nanoTime() - start,
+										  statistics);
+			return statistics;
+		}
+		finally{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Saves the StoryTree, in the binary format if filename ends with .zbt
+	 * and in the text format otherwise
+	 * @param filename -
+	 * Name of file to save to
+	 * @return
+	 * Number of nodes and bytes written
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File could not be written
+	 */
+	public SaveStatistics save(String filename)
+			throws IllegalArgumentException, IOException{
+		if(BinaryStoryFormat.isBinary(filename))
+			return BinaryStoryFormat.save(filename, this);
+		return saveTree(filename, this);
+	}
+	
+	/**
+	 * Starts a new game at the root which keeps its own cursor, leaving
+	 * the cursor of the tree where it is
+	 * @return
+	 * New session for one player
+	 */
+	public PlaySession newSession(){
+		return new NodePlaySession(this);
 	}
 	
 	/**
@@ -115,14 +241,33 @@ public class StoryTree {
 	public StoryTreeNode getCursor(){
 		return cursor;
 	}
-	
+
+	/**
+	 * Gets root of the tree without moving the cursor
+	 * @return
+	 * StoryTreeNode at root
+	 */
+	StoryTreeNode getRoot(){
+		return root;
+	}
+
 	/**
 	 * Gets position of cursor
 	 * @return
 	 * Position of cursor
 	 */
 	public String getCursorPosition(){
-		return cursor.getPosition();
+		return positionOf(address, slots, depth);
+	}
+	
+	/**
+	 * Gets packed address of cursor
+	 * @return
+	 * Address of cursor, or NodeAddress.NONE if the cursor is deeper than
+	 * NodeAddress.MAX_DEPTH
+	 */
+	public long getCursorAddress(){
+		return address;
 	}
 	
 	/**
@@ -149,23 +294,7 @@ public class StoryTree {
 	 * Array of options for children of cursor
 	 */
 	public String[][] getOptions(){
-		if(cursor.isLeaf())
-			return new String[0][0];
-		String[][] options = new String[3][2];
-		if(cursor.getLeftChild() != null){
-			options[0][0] = cursor.getLeftChild().getPosition();
-			options[0][1] = cursor.getLeftChild().getOption();
-		}
-		if(cursor.getMiddleChild() != null){
-			options[1][0] = cursor.getMiddleChild().getPosition();
-			options[1][1] = cursor.getMiddleChild().getOption();
-		}
-		if(cursor.getRightChild() != null){
-			options[2][0] = cursor.getRightChild().getPosition();
-			options[2][1] = cursor.getRightChild().getOption();
-		}
-		
-		return options;
+		return getOptions(cursor, getCursorPosition());
 	}
 	
 	/**
@@ -174,7 +303,13 @@ public class StoryTree {
 	 * Message to set cursor to
 	 */
 	public void setCursorMessage(String message){
+		if(message == null || message == "")
+			throw new IllegalArgumentException();
+		beginEdit(0, cursor.getMessage());
 		cursor.setMessage(message);
+		updateAncestorCounts();
+		if(listener != null)
+			listener.messageChanged(getCursorPosition(), message);
 	}
 	
 	/**
@@ -183,7 +318,46 @@ public class StoryTree {
 	 * Option to set cursor to
 	 */
 	public void setCursorOption(String option){
+		if(option == null || option == "")
+			throw new IllegalArgumentException();
+		beginEdit(0, cursor.getOption());
 		cursor.setOption(option);
+		if(depth > 0){
+			// The parent may not be resolved yet after a jump by the index
+			StoryTreeNode parent = ancestor(depth - 1);
+			assert parent.getChild(slots[depth]) == cursor
+					: "Cursor path is out of date";
+			parent.clearPrompt();
+		}
+		if(listener != null)
+			listener.optionChanged(getCursorPosition(), option);
+	}
+	
+	/**
+	 * Check if cursor has no children
+	 * @return
+	 * True if cursor is a leaf
+	 */
+	public boolean isCursorLeaf(){
+		return cursor.isLeaf();
+	}
+	
+	/**
+	 * Check if cursor is a winning leaf
+	 * @return
+	 * True if cursor is a winning node
+	 */
+	public boolean isCursorWinning(){
+		return cursor.isWinningNode();
+	}
+	
+	/**
+	 * Check if cursor is a losing leaf
+	 * @return
+	 * True if cursor is a losing node
+	 */
+	public boolean isCursorLosing(){
+		return cursor.isLosingNode();
 	}
 	
 	/**
@@ -191,10 +365,199 @@ public class StoryTree {
 	 */
 	public void resetCursor(){
 		cursor = root;
+		depth = 0;
+		address = NodeAddress.ROOT;
+		unresolved = 0;
+	}
+	
+	/**
+	 * Starts keeping an index from the address of every node to the node,
+	 * so selecting a position or address no deeper than 
+	 * NodeAddress.MAX_DEPTH takes one lookup instead of a walk from the
+	 * root. The index is kept up to date by addChild and removeChild.
+	 */
+	public void enableIndex(){
+		if(index != null)
+			return;
+		index = new PositionIndex(root.getNodeCount());
+		index.putSubtree(NodeAddress.ROOT, root);
 	}
 	
 	/**
-	 * Recursively selects node starting from root based on position
+	 * Stops keeping the position index and frees it
+	 */
+	public void disableIndex(){
+		for(int level = 1; level < depth; level++)
+			ancestor(level);
+		index = null;
+	}
+	
+	/**
+	 * Check if the position index is kept
+	 * @return
+	 * True if enableIndex has been called
+	 */
+	public boolean isIndexed(){
+		return index != null;
+	}
+	
+	/**
+	 * Gets node at an address without moving the cursor
+	 * @param address -
+	 * Address of node to look for
+	 * @return
+	 * Node at address, or null if there is none
+	 */
+	public StoryTreeNode getNode(long address){
+		if(address < 0)
+			return null;
+		if(index != null)
+			return index.get(address);
+		StoryTreeNode temp = root;
+		int levels = NodeAddress.depth(address);
+		for(int level = 1; level <= levels && temp != null; level++)
+			temp = temp.getChild(NodeAddress.slotAt(address, level));
+		return temp;
+	}
+	
+	/**
+	 * Starts keeping earlier versions of the tree so edits can be undone
+	 * and redone. From then on an edit copies the nodes from the root to
+	 * the cursor and changes the copies, so it takes time and memory in
+	 * proportion to the depth of the cursor rather than the size of the
+	 * tree. Any history already kept is forgotten. A budget of 0 keeps no
+	 * versions, but edits still never change a node which an earlier
+	 * version can reach.
+	 * @param budget -
+	 * Most bytes the kept versions may hold on to, the oldest are dropped
+	 * beyond it
+	 * @throws IllegalArgumentException
+	 * budget is negative
+	 * @throws UnsupportedOperationException
+	 * The tree was opened read only
+	 */
+	public void enableHistory(long budget)
+			throws IllegalArgumentException, UnsupportedOperationException{
+		if(isReadOnly())
+			throw new UnsupportedOperationException("The story was opened "
+					+ "read only");
+		history = new StoryHistory(budget);
+	}
+	
+	/**
+	 * Replaces every repeated subtree with one node shared by all its
+	 * positions, and every repeated option and message with one String.
+	 * The tree then takes memory for each distinct part once. Playing,
+	 * selecting and saving work as before, since a position is given by
+	 * the path taken and not by the node reached, and from then on edits
+	 * copy the path from the root to the cursor so they only change the
+	 * position edited. The cursor is reset to the root.
+	 * @return
+	 * Number of distinct nodes kept
+	 * @throws UnsupportedOperationException
+	 * The tree was opened read only
+	 */
+	public int shareSubtrees() throws UnsupportedOperationException{
+		if(isReadOnly())
+			throw new UnsupportedOperationException("The story was opened "
+					+ "read only");
+		SubtreeTable table = new SubtreeTable();
+		root = table.share(root);
+		shared = true;
+		path[0] = root;
+		resetCursor();
+		if(index != null){
+			index = null;
+			enableIndex();
+		}
+		return table.getNodeCount();
+	}
+	
+	/**
+	 * Check if equal subtrees share nodes
+	 * @return
+	 * True if shareSubtrees has been called
+	 */
+	public boolean isShared(){
+		return shared;
+	}
+	
+	/**
+	 * Estimates the heap held by the nodes and text of the tree, with the
+	 * same rough sizes used to charge versions kept for undo. Every node
+	 * is visited, so a tree read lazily is read in full.
+	 * @return
+	 * Estimated bytes
+	 */
+	public long estimateHeapBytes(){
+		IdentityHashMap<StoryTreeNode, Boolean> seen =
+			new IdentityHashMap<StoryTreeNode, Boolean>();
+		ArrayList<StoryTreeNode> stack = new ArrayList<StoryTreeNode>();
+		stack.add(root);
+		long bytes = 0;
+		while(!stack.isEmpty()){
+			StoryTreeNode node = stack.remove(stack.size() - 1);
+			// Shared nodes are reached once for every copy they stand for
+			if(shared && seen.put(node, Boolean.TRUE) != null)
+				continue;
+			bytes += NODE_BYTES + 2 * STRING_BYTES
+					+ 2L * (node.getOption().length()
+							+ node.getMessage().length());
+			for(int slot = 1; slot <= node.getChildSlots(); slot++){
+				StoryTreeNode child = node.getChild(slot);
+				if(child != null)
+					stack.add(child);
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Check if the tree was opened read only by readTreeLazily
+	 * @return
+	 * True if the tree cannot be edited
+	 */
+	public boolean isReadOnly(){
+		return root instanceof LazyStoryTreeNode;
+	}
+	
+	/**
+	 * Stops keeping earlier versions and forgets those kept
+	 */
+	public void disableHistory(){
+		history = null;
+	}
+	
+	/**
+	 * Gets the versions kept for undo and redo
+	 * @return
+	 * History of the tree, or null if enableHistory has not been called
+	 */
+	public StoryHistory getHistory(){
+		return history;
+	}
+	
+	/**
+	 * Undoes the last edit which has not been undone, moving the cursor to
+	 * where it was made
+	 * @return
+	 * True if an edit was undone, false if there was none to undo
+	 */
+	public boolean undo(){
+		return history != null && restore(true);
+	}
+	
+	/**
+	 * Redoes the last edit undone, moving the cursor to where it was made
+	 * @return
+	 * True if an edit was redone, false if there was none to redo
+	 */
+	public boolean redo(){
+		return history != null && restore(false);
+	}
+	
+	/**
+	 * Selects node starting from root based on position
 	 * @param position -
 	 * Position of node to look for
 	 * @throws NodeNotPresentException
@@ -207,35 +570,49 @@ public class StoryTree {
 		if(position == null || position == "")
 			throw new IllegalArgumentException();
 		
-		StoryTreeNode temp = root;
-		if(position.charAt(0) != '1')
+		prepareScratch(position.length() / 2);
+		int newDepth = parsePosition(position, scratchSlots);
+		if(newDepth < 0)
 			throw new NodeNotPresentException();
-		if(position.length() == 1){
-			cursor = root;
+		if(index != null && newDepth <= NodeAddress.MAX_DEPTH){
+			long target = addressOf(scratchSlots, newDepth);
+			if(target != NodeAddress.NONE){
+				jump(target);
+				return;
+			}
+		}
+		for(int level = 1; level <= newDepth; level++){
+			if(!descend(level, scratchSlots[level]))
+				throw new NodeNotPresentException();
+		}
+		commitScratch(newDepth);
+	}
+	
+	/**
+	 * Selects node starting from root based on packed address
+	 * @param address -
+	 * Address of node to look for
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * address is NodeAddress.NONE
+	 */
+	public void selectAddress(long address) 
+			throws NodeNotPresentException, IllegalArgumentException{
+		if(address < 0)
+			throw new IllegalArgumentException("Not a node address");
+		if(index != null){
+			jump(address);
 			return;
 		}
 		
-		int i = 2;
-		do{
-			if(temp == null)
+		int newDepth = NodeAddress.depth(address);
+		prepareScratch(newDepth);
+		for(int level = 1; level <= newDepth; level++){
+			if(!descend(level, NodeAddress.slotAt(address, level)))
 				throw new NodeNotPresentException();
-			
-			if(position.charAt(i) == '1')
-				temp = temp.getLeftChild();
-			else if(position.charAt(i) == '2')
-				temp = temp.getMiddleChild();
-			else if(position.charAt(i) == '3')
-				temp = temp.getRightChild();
-			else
-				throw new NodeNotPresentException();
-			i += 2;
-		}while(i < position.length());
-		
-		if(temp.isWinningNode())
-			state = GameState.GAME_OVER_WIN;
-		if(temp.isLosingNode())
-			state = GameState.GAME_OVER_LOSE;
-		cursor = temp;
+		}
+		commitScratch(newDepth);
 	}
 	
 	/**
@@ -252,27 +629,36 @@ public class StoryTree {
 		if(position == null || position == "")
 			throw new IllegalArgumentException();
 		
-		StoryTreeNode temp = cursor;
-		
-		switch(position.charAt(0)){
-		case '1':
-			if(temp.getLeftChild() == null)
-				throw new NodeNotPresentException();
-			temp = temp.getLeftChild();
-			break;
-		case '2':
-			if(temp.getMiddleChild() == null)
-				throw new NodeNotPresentException();
-			temp = temp.getMiddleChild();
-			break;
-		case '3':
-			if(temp.getRightChild() == null)
-				throw new NodeNotPresentException();
-			temp = temp.getRightChild();
-			break;
-		default:
-			throw new IllegalArgumentException("Did not select node 1, 2, 3");
+		selectChild(parseSlot(position));
+	}
+	
+	/**
+	 * Selects child with indicated child number
+	 * @param slot -
+	 * Child number of node to set cursor to, from 1
+	 * @throws NodeNotPresentException
+	 * Node does not exist
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	public void selectChild(int slot) 
+			throws NodeNotPresentException, IllegalArgumentException{
+		StoryTreeNode temp = cursor.getChild(slot);
+		if(temp == null)
+			throw new NodeNotPresentException();
+		if(depth + 1 == path.length){
+			StoryTreeNode[] bigger = new StoryTreeNode[path.length * 2];
+			byte[] biggerSlots = new byte[path.length * 2];
+			System.arraycopy(path, 0, bigger, 0, path.length);
+			System.arraycopy(slots, 0, biggerSlots, 0, path.length);
+			path = bigger;
+			slots = biggerSlots;
+			scratchPath = new StoryTreeNode[bigger.length];
+			scratchSlots = new byte[bigger.length];
 		}
+		path[++depth] = temp;
+		slots[depth] = (byte)slot;
+		address = NodeAddress.child(address, slot);
 		cursor = temp;
 	}
 	
@@ -283,7 +669,7 @@ public class StoryTree {
 	 * @param message -
 	 * Message to set new node to
 	 * @throws TreeFullException
-	 * All 3 child spots are full
+	 * All StoryTreeNode.MAX_CHILDREN child spots are full
 	 * @throws IllegalArgumentException
 	 * option or message are null or empty
 	 */
@@ -291,18 +677,10 @@ public class StoryTree {
 			throws TreeFullException, IllegalArgumentException{
 		if(cursor.fullTree())
 			throw new TreeFullException();
-		if(option == null || message == null || option == "" || message == "")
-			throw new IllegalArgumentException();
-		
-		if(cursor.getLeftChild() == null)
-			cursor.setLeft(new StoryTreeNode(cursor.getPosition() + "-1", 
-											 option, message));
-		else if(cursor.getMiddleChild() == null)
-			cursor.setMiddle(new StoryTreeNode(cursor.getPosition() + "-2", 
-											   option, message));
-		else
-			cursor.setRight(new StoryTreeNode(cursor.getPosition() + "-3", 
-											  option, message));
+		int slot = 1;
+		while(cursor.getChild(slot) != null)
+			slot++;
+		addChild(slot, option, message);
 	}
 	
 	/**
@@ -314,26 +692,56 @@ public class StoryTree {
 	 * @param message -
 	 * Message of new node
 	 * @throws TreeFullException
-	 * All 3 child spots are full
+	 * All StoryTreeNode.MAX_CHILDREN child spots are full
 	 * @throws IllegalArgumentException
 	 * Parameters are null or empty
 	 */
 	public void addChild(String position, String option, String message)
 			throws TreeFullException, IllegalArgumentException{
+		int slot = slotIn(position, 0, position.length());
+		if(slot == 0){
+			if(cursor.fullTree())
+				throw new TreeFullException();
+			if(option == null || message == null || option == "" 
+					|| message == "")
+				throw new IllegalArgumentException();
+			return;
+		}
+		addChild(slot, option, message);
+	}
+	
+	/**
+	 * Adds new child under the current cursor, replacing any child already
+	 * at that child number
+	 * @param slot -
+	 * Child number of node to add, from 1
+	 * @param option -
+	 * Option of new node
+	 * @param message -
+	 * Message of new node
+	 * @throws TreeFullException
+	 * All StoryTreeNode.MAX_CHILDREN child spots are full
+	 * @throws IllegalArgumentException
+	 * Parameters are null or empty, or slot is not from 1 to
+	 * StoryTreeNode.MAX_CHILDREN
+	 */
+	public void addChild(int slot, String option, String message)
+			throws TreeFullException, IllegalArgumentException{
 		if(cursor.fullTree())
 			throw new TreeFullException();
 		if(option == null || message == null || option == "" || message == "")
 			throw new IllegalArgumentException();
 		
-		if(position.charAt(0) == '1')
-			cursor.setLeft(new StoryTreeNode(cursor.getPosition() + "-1", 
-											 option, message));
-		else if(position.charAt(0) == '2')
-			cursor.setMiddle(new StoryTreeNode(cursor.getPosition() + "-2", 
-											   option, message));
-		else if(position.charAt(0) == '3')
-			cursor.setRight(new StoryTreeNode(cursor.getPosition() + "-3", 
-											  option, message));
+		StoryTreeNode child = new StoryTreeNode(option, message);
+		StoryTreeNode old = cursor.getChild(slot);
+		beginEdit(slot, null);
+		cursor.setChild(slot, child);
+		if(old != null)
+			unindexChild(slot, old);
+		indexChild(slot, child);
+		updateAncestorCounts();
+		if(listener != null)
+			listener.childAdded(getCursorPosition(), slot, option, message);
 	}
 	
 	/**
@@ -352,131 +760,554 @@ public class StoryTree {
 		if(position == null || position == "")
 			throw new IllegalArgumentException();
 
-		StoryTreeNode temp = cursor;
-		switch(position.charAt(0)){
-		case '1':
-			if(temp.getLeftChild() == null)
-				throw new NodeNotPresentException();
-			temp = temp.getLeftChild();
-			cursor.setLeft(null);
-			break;
-		case '2':
-			if(temp.getMiddleChild() == null)
-				throw new NodeNotPresentException();
-			temp = temp.getMiddleChild();
-			cursor.setMiddle(null);
-			break;
-		case '3':
-			if(temp.getRightChild() == null)
-				throw new NodeNotPresentException();
-			temp = temp.getRightChild();
-			cursor.setRight(null);
-			break;
-			
-		default:
-			throw new IllegalArgumentException("Did not select node 1, 2, 3");
-		}
+		return removeChild(parseSlot(position));
+	}
+	
+	/**
+	 * Removes a child under the cursor
+	 * @param slot -
+	 * Child number of child to remove, from 1
+	 * @return
+	 * Child which was removed
+	 * @throws NodeNotPresentException
+	 * Node with indicated child number not found
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	public StoryTreeNode removeChild(int slot) 
+			throws NodeNotPresentException, IllegalArgumentException{
+		StoryTreeNode temp = cursor.getChild(slot);
+		if(temp == null)
+			throw new NodeNotPresentException();
+		beginEdit(slot, null);
+		cursor.setChild(slot, null);
+		unindexChild(slot, temp);
+		updateAncestorCounts();
+		if(listener != null)
+			listener.childRemoved(getCursorPosition(), slot);
 		return temp;
 	}
 	
 	/**
-	 * Returns cursor to parent node
+	 * Adds a listener to tell about every edit, after those added before
+	 * @param listener -
+	 * Listener to tell
+	 */
+	public void addListener(StoryListener listener){
+		this.listener = StoryListeners.add(this.listener, listener);
+	}
+	
+	/**
+	 * Stops telling a listener about edits
+	 * @param listener -
+	 * Listener added before
+	 */
+	public void removeListener(StoryListener listener){
+		this.listener = StoryListeners.remove(this.listener, listener);
+	}
+	
+	/**
+	 * Returns cursor to parent node. The cursor stays at the root if it is
+	 * already there.
 	 */
 	public void returnToParent(){
-		StoryTreeNode temp = root;
-		if(cursor == temp.getLeftChild() || cursor == temp.getMiddleChild()
-				|| cursor == temp.getRightChild()){
-			cursor = temp;
+		returnToParent(1);
+	}
+	
+	/**
+	 * Moves the cursor up the indicated number of levels, stopping at the
+	 * root
+	 * @param levels -
+	 * Number of levels to move up
+	 * @throws IllegalArgumentException
+	 * levels is negative
+	 */
+	public void returnToParent(int levels) throws IllegalArgumentException{
+		if(levels < 0)
+			throw new IllegalArgumentException("Levels must not be negative");
+		depth = Math.max(0, depth - levels);
+		cursor = ancestor(depth);
+		unresolved &= depth >= 63 ? -1L : (1L << depth) - 1;
+		address = depth > NodeAddress.MAX_DEPTH ? NodeAddress.NONE 
+				: addressOf(slots, depth);
+	}
+	
+	/**
+	 * Gets depth of cursor
+	 * @return
+	 * Number of levels between the root and the cursor
+	 */
+	public int getCursorDepth(){
+		return depth;
+	}
+	
+	private int writeDetails(Writer out) throws IOException{
+		ArrayList<StoryTreeNode> stack = new ArrayList<StoryTreeNode>();
+		// Each stack entry is packed as its depth times 256 plus its slot
+		ArrayList<Integer> levels = new ArrayList<Integer>();
+		// Length of the position of the node last written at each depth
+		int[] lengths = new int[16];
+		StringBuilder position = new StringBuilder();
+		int nodes = 0;
+		stack.add(root);
+		levels.add(0);
+		while(!stack.isEmpty()){
+			StoryTreeNode node = stack.remove(stack.size() - 1);
+			int level = levels.remove(levels.size() - 1);
+			int nodeDepth = level >>> 8;
+			if(nodeDepth == lengths.length)
+				lengths = Arrays.copyOf(lengths, nodeDepth * 2);
+			if(nodeDepth == 0){
+				position.setLength(0);
+				position.append('1');
+			}
+			else{
+				position.setLength(lengths[nodeDepth - 1]);
+				position.append('-').append(level & 0xFF);
+			}
+			lengths[nodeDepth] = position.length();
+
+			if(nodes++ > 0)
+				out.write('\n');
+			out.append(position);
+			out.write(" | ");
+			out.write(node.getOption());
+			out.write(" | ");
+			out.write(node.getMessage());
+
+			int childLevel = (nodeDepth + 1) << 8;
+			for(int slot = node.getChildSlots(); slot >= 1; slot--){
+				if(node.getChild(slot) != null){
+					stack.add(node.getChild(slot));
+					levels.add(childLevel | slot);
+				}
+			}
+		}
+		return nodes;
+	}
+	
+	/**
+	 * Gets number of children of the cursor
+	 * @return
+	 * Number of children
+	 */
+	public int getNumberChildren(){
+		return cursor.getChildCount();
+	}
+	
+	/**
+	 * Gets highest child number in use at the cursor
+	 * @return
+	 * Highest child number with a child, or 0 at a leaf
+	 */
+	public int getChildSlots(){
+		return cursor.getChildSlots();
+	}
+	
+	/**
+	 * Gets option of a child of the cursor without building the array
+	 * getOptions returns
+	 * @param slot -
+	 * Child number, from 1
+	 * @return
+	 * Option of child, or null if there is no child at slot
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to StoryTreeNode.MAX_CHILDREN
+	 */
+	public String getChildOption(int slot) throws IllegalArgumentException{
+		StoryTreeNode child = cursor.getChild(slot);
+		return child == null ? null : child.getOption();
+	}
+	
+	/**
+	 * Gets probability of a win from current node. This is the share of the
+	 * nodes under the cursor which are winning leaves, read from the counts
+	 * kept on each node.
+	 * @return
+	 * Probability of a win as a percentage
+	 */
+	public double winProbability(){
+		double probability = (double)cursor.getWinningLeafCount() 
+							/ (double)cursor.getNodeCount();
+		
+		return probability * 100;
+	}
+	
+	/**
+	 * Checks the subtree counts kept on every node against counts computed
+	 * from scratch. Each node is compared with what its children add up to,
+	 * which matches a full recount once every node has been checked. It
+	 * walks the whole tree, so it is for debugging rather than for every
+	 * move.
+	 * @return
+	 * True if every count in the tree is correct
+	 */
+	public boolean verifyCounts(){
+		ArrayList<StoryTreeNode> stack = new ArrayList<StoryTreeNode>();
+		stack.add(root);
+		while(!stack.isEmpty()){
+			StoryTreeNode node = stack.remove(stack.size() - 1);
+			if(!node.hasConsistentCounts())
+				return false;
+			// Counts read from an index are checked when it is built, and
+			// walking on would read the whole file
+			if(node instanceof LazyStoryTreeNode)
+				continue;
+			for(int slot = 1; slot <= node.getChildSlots(); slot++){
+				if(node.getChild(slot) != null)
+					stack.add(node.getChild(slot));
+			}
 		}
-		else{
-			returnToParent(temp);
+		return true;
+	}
+	
+	/**
+	 * Recomputes the subtree counts of every node, for use after a tree
+	 * has been built by linking nodes directly instead of through addChild
+	 */
+	void recount(){
+		ArrayList<StoryTreeNode> order = new ArrayList<StoryTreeNode>();
+		order.add(root);
+		for(int i = 0; i < order.size(); i++){
+			StoryTreeNode node = order.get(i);
+			for(int slot = 1; slot <= node.getChildSlots(); slot++){
+				if(node.getChild(slot) != null)
+					order.add(node.getChild(slot));
+			}
+		}
+		for(int i = order.size() - 1; i >= 0; i--)
+			order.get(i).updateCounts();
+	}
+	
+	private void prepareScratch(int newDepth){
+		if(scratchPath.length <= newDepth){
+			scratchPath = new StoryTreeNode[newDepth * 2];
+			scratchSlots = new byte[newDepth * 2];
 		}
+		scratchPath[0] = root;
+	}
+	
+	private boolean descend(int level, int slot){
+		StoryTreeNode temp = scratchPath[level - 1].getChild(slot);
+		scratchPath[level] = temp;
+		scratchSlots[level] = (byte)slot;
+		return temp != null;
 	}
 	
-	private void returnToParent(StoryTreeNode startNode){
-		if(startNode == null)
+	private void commitScratch(int newDepth){
+		StoryTreeNode temp = scratchPath[newDepth];
+		if(temp.isWinningNode())
+			state = GameState.GAME_OVER_WIN;
+		if(temp.isLosingNode())
+			state = GameState.GAME_OVER_LOSE;
+		StoryTreeNode[] oldPath = path;
+		byte[] oldSlots = slots;
+		path = scratchPath;
+		slots = scratchSlots;
+		scratchPath = oldPath;
+		scratchSlots = oldSlots;
+		if(scratchPath.length < path.length){
+			scratchPath = new StoryTreeNode[path.length];
+			scratchSlots = new byte[path.length];
+		}
+		depth = newDepth;
+		cursor = temp;
+		address = depth > NodeAddress.MAX_DEPTH ? NodeAddress.NONE 
+				: addressOf(slots, depth);
+		unresolved = 0;
+	}
+	
+	private void jump(long target) throws NodeNotPresentException{
+		StoryTreeNode temp = index.get(target);
+		if(temp == null)
+			throw new NodeNotPresentException();
+		int newDepth = NodeAddress.depth(target);
+		if(newDepth >= path.length){
+			path = Arrays.copyOf(path, newDepth * 2);
+			slots = Arrays.copyOf(slots, newDepth * 2);
+			scratchPath = new StoryTreeNode[path.length];
+			scratchSlots = new byte[path.length];
+		}
+		for(int level = 1; level <= newDepth; level++)
+			slots[level] = (byte)NodeAddress.slotAt(target, level);
+		if(temp.isWinningNode())
+			state = GameState.GAME_OVER_WIN;
+		if(temp.isLosingNode())
+			state = GameState.GAME_OVER_LOSE;
+		path[newDepth] = temp;
+		unresolved = (1L << newDepth) - 2;
+		if(newDepth == 0)
+			unresolved = 0;
+		depth = newDepth;
+		cursor = temp;
+		address = target;
+	}
+	
+	/**
+	 * Records the current version in the history, if it is kept, and copies
+	 * the path to the cursor, so the edit which follows only changes new
+	 * nodes
+	 * @param slot -
+	 * Child number about to be changed, or 0 if it is the cursor itself
+	 * @param oldText -
+	 * Option or message about to be replaced, or null
+	 */
+	private void beginEdit(int slot, String oldText){
+		if(history == null && !shared)
 			return;
-		if(cursor == startNode.getLeftChild() 
-				|| cursor == startNode.getMiddleChild() 
-				|| cursor == startNode.getRightChild()){
-			cursor = startNode;
+		if(history != null){
+			long bytes = NODE_BYTES * (depth + 1);
+			StoryTreeNode old = slot == 0 ? null : cursor.getChild(slot);
+			if(old != null)
+				bytes += NODE_BYTES * old.getNodeCount();
+			if(oldText != null)
+				bytes += STRING_BYTES + 2L * oldText.length();
+			history.record(new StoryHistory.Version(root,
+					Arrays.copyOf(slots, depth + 1), depth, slot, bytes));
 		}
-		else{
-			returnToParent(startNode.getLeftChild());
-			returnToParent(startNode.getMiddleChild());
-			returnToParent(startNode.getRightChild());
+		for(int level = 0; level <= depth; level++){
+			StoryTreeNode copy = ancestor(level).copy();
+			if(level == 0)
+				root = copy;
+			else
+				path[level - 1].setChild(slots[level], copy);
+			path[level] = copy;
+			if(index != null && level <= NodeAddress.MAX_DEPTH)
+				index.put(addressOf(slots, level), copy);
 		}
+		cursor = path[depth];
 	}
 	
-	private String getDetails(StoryTreeNode node){
-		String details = node.getPosition() + " | " + node.getOption() 
-											+ " | " + node.getMessage();
+	/**
+	 * Swaps the current version for the previous or next one in the
+	 * history. The versions differ only on the path to where the edit was
+	 * made and in the child it changed, so only those are reindexed and
+	 * reported to the listener.
+	 */
+	private boolean restore(boolean undo){
+		StoryHistory.Version version = undo ? history.undo(root)
+				: history.redo(root);
+		if(version == null)
+			return false;
+		StoryTreeNode replaced = null;
+		if(version.slot != 0){
+			StoryTreeNode parent = root;
+			for(int level = 1; level <= version.depth; level++)
+				parent = parent.getChild(version.slots[level]);
+			replaced = parent.getChild(version.slot);
+		}
 		
-		if(node.getLeftChild() != null)
-			details += "\n" + getDetails(node.getLeftChild());
-		if(node.getMiddleChild() != null)
-			details += "\n" + getDetails(node.getMiddleChild());
-		if(node.getRightChild() != null)
-			details += "\n" + getDetails(node.getRightChild());
+		root = version.root;
+		prepareScratch(version.depth);
+		for(int level = 1; level <= version.depth; level++)
+			descend(level, version.slots[level]);
+		commitScratch(version.depth);
+		StoryTreeNode child = version.slot == 0 ? null 
+				: cursor.getChild(version.slot);
+		if(index != null){
+			for(int level = 0; level <= Math.min(depth, NodeAddress.MAX_DEPTH);
+					level++)
+				index.put(addressOf(slots, level), path[level]);
+			if(replaced != null)
+				unindexChild(version.slot, replaced);
+			if(child != null)
+				indexChild(version.slot, child);
+		}
 		
-		return details;
+		if(listener != null){
+			String position = getCursorPosition();
+			if(version.slot == 0){
+				listener.optionChanged(position, cursor.getOption());
+				listener.messageChanged(position, cursor.getMessage());
+			}
+			else if(child == null)
+				listener.childRemoved(position, version.slot);
+			else
+				reportSubtree(position, version.slot, child);
+		}
+		return true;
 	}
 	
-	public int getNumberChildren(){
-		if(cursor.isLeaf())
-			return 0;
-		else if(cursor.getLeftChild() != null 
-				&& cursor.getMiddleChild() == null 
-				&& cursor.getRightChild() == null)
-			return 1;
-		else if(cursor.getLeftChild() != null 
-				&& cursor.getMiddleChild() != null 
-				&& cursor.getRightChild() == null)
-			return 2;
-		else
-			return 3;
-	}
-	
-	private int getNumberOfNodes(StoryTreeNode node){
-		if(node.isLeaf())
-			return 1;
-		
-		int sum = 1;
-		if(node.getLeftChild() != null)
-			sum += getNumberOfNodes(node.getLeftChild());
-		if(node.getMiddleChild() != null)
-			sum += getNumberOfNodes(node.getMiddleChild());
-		if(node.getRightChild() != null)
-			sum += getNumberOfNodes(node.getRightChild());
-		
-		return sum;
+	/**
+	 * Tells the listener about every node of a subtree put back by undo or
+	 * redo, parents first
+	 */
+	private void reportSubtree(String position, int slot, StoryTreeNode child){
+		ArrayList<StoryTreeNode> stack = new ArrayList<StoryTreeNode>();
+		ArrayList<String> parents = new ArrayList<String>();
+		ArrayList<Integer> childSlots = new ArrayList<Integer>();
+		stack.add(child);
+		parents.add(position);
+		childSlots.add(slot);
+		while(!stack.isEmpty()){
+			StoryTreeNode node = stack.remove(stack.size() - 1);
+			String parent = parents.remove(parents.size() - 1);
+			int nodeSlot = childSlots.remove(childSlots.size() - 1);
+			listener.childAdded(parent, nodeSlot, node.getOption(),
+								node.getMessage());
+			String nodePosition = parent + "-" + nodeSlot;
+			for(int next = node.getChildSlots(); next >= 1; next--){
+				if(node.getChild(next) != null){
+					stack.add(node.getChild(next));
+					parents.add(nodePosition);
+					childSlots.add(next);
+				}
+			}
+		}
 	}
 	
-	private int getNumberWinningNodes(StoryTreeNode node){
-		if(node.isWinningNode())
-			return 1;
-		int sum = 0;
-		
-		if(node.getLeftChild() != null)
-			sum += getNumberWinningNodes(node.getLeftChild());
-		if(node.getMiddleChild() != null)
-			sum += getNumberWinningNodes(node.getMiddleChild());
-		if(node.getRightChild() != null)
-			sum += getNumberWinningNodes(node.getRightChild());
-		
-		return sum;
+	private StoryTreeNode ancestor(int level){
+		if(level < 64 && (unresolved & (1L << level)) != 0){
+			path[level] = index.get(addressOf(slots, level));
+			unresolved &= ~(1L << level);
+		}
+		return path[level];
+	}
+	
+	private void indexChild(int slot, StoryTreeNode child){
+		if(index != null)
+			index.putSubtree(NodeAddress.child(address, slot), child);
+	}
+	
+	private void unindexChild(int slot, StoryTreeNode child){
+		if(index != null)
+			index.removeSubtree(NodeAddress.child(address, slot), child);
 	}
 	
 	/**
-	 * Gets probability of a win from current node
+	 * Packs a path from the root into an address
+	 * @param slots -
+	 * Child numbers taken at levels 1 to depth
+	 * @param depth -
+	 * Depth of path, at most NodeAddress.MAX_DEPTH
 	 * @return
+	 * Address of path, or NodeAddress.NONE if it takes a child number
+	 * above NodeAddress.MAX_SLOT
 	 */
-	public double winProbability(){
-		int totalNumberOfNodes = getNumberOfNodes(cursor);
-		int totalWinningNodes = getNumberWinningNodes(cursor);
-		double probability = (double)totalWinningNodes 
-							/ (double)totalNumberOfNodes;
-		
-		return probability * 100;
+	static long addressOf(byte[] slots, int depth){
+		long address = NodeAddress.ROOT;
+		for(int i = 1; i <= depth; i++){
+			if(slots[i] > NodeAddress.MAX_SLOT)
+				return NodeAddress.NONE;
+			address = (address << 2) | slots[i];
+		}
+		return address;
+	}
+	
+	/**
+	 * Reads the child numbers of a position such as "1-2-12"
+	 * @param position -
+	 * Position to read
+	 * @param slots -
+	 * Array to fill with the child numbers taken at levels 1 to the depth
+	 * of position, longer than position.length() / 2
+	 * @return
+	 * Depth of position, or -1 if it is not a valid position
+	 */
+	static int parsePosition(String position, byte[] slots){
+		if(position.isEmpty() || position.charAt(0) != '1')
+			return -1;
+		int depth = 0;
+		for(int end = 1; end < position.length(); ){
+			int start = end + 1;
+			if(position.charAt(end) != '-')
+				return -1;
+			end = position.indexOf('-', start);
+			if(end < 0)
+				end = position.length();
+			int slot = slotIn(position, start, end);
+			if(slot == 0)
+				return -1;
+			slots[++depth] = (byte)slot;
+		}
+		return depth;
+	}
+	
+	/**
+	 * Reads the child number at the start of a choice such as "2" or
+	 * "12) Go north"
+	 * @param choice -
+	 * Choice to read
+	 * @return
+	 * Child number
+	 * @throws IllegalArgumentException
+	 * choice does not start with a child number
+	 */
+	static int parseSlot(String choice) throws IllegalArgumentException{
+		int end = 0;
+		while(end < choice.length() && choice.charAt(end) >= '0'
+				&& choice.charAt(end) <= '9')
+			end++;
+		int slot = slotIn(choice, 0, end);
+		if(slot == 0)
+			throw new IllegalArgumentException("Did not select a child from "
+					+ "1 to " + StoryTreeNode.MAX_CHILDREN);
+		return slot;
+	}
+	
+	/**
+	 * Reads a child number written in part of a string
+	 * @return
+	 * Child number, or 0 if the part is not one from 1 to
+	 * StoryTreeNode.MAX_CHILDREN
+	 */
+	private static int slotIn(String text, int start, int end){
+		int slot = 0;
+		for(int i = start; i < end; i++){
+			int digit = text.charAt(i) - '0';
+			if(digit < 0 || digit > 9)
+				return 0;
+			slot = slot * 10 + digit;
+			if(slot > StoryTreeNode.MAX_CHILDREN)
+				return 0;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Gets array of options for immediate child's of a node
+	 * @param node -
+	 * Node to list the children of
+	 * @param position -
+	 * Position of node
+	 * @return
+	 * Array of options for children of node
+	 */
+	static String[][] getOptions(StoryTreeNode node, String position){
+		String[][] options = new String[node.getChildSlots()][2];
+		for(int slot = 1; slot <= options.length; slot++){
+			StoryTreeNode child = node.getChild(slot);
+			if(child != null){
+				options[slot - 1][0] = position + "-" + slot;
+				options[slot - 1][1] = child.getOption();
+			}
+		}
+		return options;
+	}
+	
+	/**
+	 * Gets position of a path from the root
+	 * @param address -
+	 * Address of path, or NodeAddress.NONE if it is too deep to pack
+	 * @param slots -
+	 * Child numbers taken at levels 1 to depth
+	 * @param depth -
+	 * Depth of path
+	 * @return
+	 * Position of path
+	 */
+	static String positionOf(long address, byte[] slots, int depth){
+		if(address != NodeAddress.NONE)
+			return NodeAddress.toString(address);
+		StringBuilder position = new StringBuilder(depth * 2 + 1);
+		position.append('1');
+		for(int i = 1; i <= depth; i++)
+			position.append('-').append(slots[i]);
+		return position.toString();
+	}
+	
+	private void updateAncestorCounts(){
+		for(int i = depth - 1; i >= 0; i--)
+			ancestor(i).updateCounts();
 	}
 }
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * The StoryTreeLoader builds a StoryTree from a story file in a single pass.
+ * Lines are read through a StoryFileReader and each node is attached to its
+ * parent through a stack holding the most recent preorder path, so a line
+ * costs O(1) no matter how deep or large the tree is. Files which are not
+ * in preorder still load, falling back to a walk from the root for lines
+ * whose parent is not on the stack.
+ * @author Tejas
+ */
+public class StoryTreeLoader {
+	private StoryTreeLoader(){
+	}
+
+	/**
+	 * Reads in a text file describing a StoryTree. The resulting tree is the
+	 * same as the one built by StoryTree.readTree.
+	 * @param filename -
+	 * Name of file to read from
+	 * @return
+	 * new StoryTree with data from file
+	 * @throws IllegalArgumentException
+	 * filename is empty or null
+	 * @throws IOException
+	 * File not found or could not be read
+	 * @throws DataFormatException
+	 * Data inconsistent with expected format, the message includes the
+	 * line number
+	 */
+	public static StoryTree load(String filename)
+			throws IllegalArgumentException, IOException, DataFormatException{
+		long start = System.nanoTime();
+		StoryTree tree = new StoryTree();
+		StoryFileReader file = new StoryFileReader(filename);
+		StoryTreeNode[] stack = new StoryTreeNode[16];
+		// Child numbers of the path on the stack and of the line being read,
+		// swapped once the line is added
+		byte[] slots = new byte[16];
+		byte[] parsed = new byte[16];
+		int size = 1;
+		stack[0] = tree.getRoot();
+		try{
+			while(file.nextLine()){
+				String position = file.getPosition();
+				String option = file.getOption();
+				String message = file.getMessage();
+				if(option.isEmpty() || message.isEmpty())
+					throw file.formatError("Empty option or message");
+
+				if(position.length() == 1){
+					stack[0].setOption(option);
+					stack[0].setMessage(message);
+					size = 1;
+					continue;
+				}
+				if(parsed.length <= position.length() / 2)
+					parsed = new byte[position.length()];
+				int depth = StoryTree.parsePosition(position, parsed);
+				if(depth < 1)
+					throw file.formatError("Invalid position " + position);
+
+				StoryTreeNode parent;
+				if(depth <= size && isParent(slots, parsed, depth))
+					parent = stack[depth - 1];
+				else{
+					stack = ensureCapacity(stack, depth + 1);
+					size = walkFromRoot(file, stack, parsed, depth, position);
+					parent = stack[depth - 1];
+				}
+
+				if(parent.fullTree())
+					throw file.formatError("Node " + position.substring(0,
+							position.lastIndexOf('-')) + " already has "
+							+ StoryTreeNode.MAX_CHILDREN + " children");
+				StoryTreeNode child = new StoryTreeNode(option, message);
+				parent.setChild(parsed[depth], child);
+
+				stack = ensureCapacity(stack, depth + 1);
+				stack[depth] = child;
+				size = depth + 1;
+				byte[] temp = slots;
+				slots = parsed;
+				parsed = temp;
+			}
+		}
+		finally{
+			file.close();
+		}
+		tree.recount();
+		StoryMetrics.get().recordLoad(System.nanoTime() - start,
+				tree.getRoot().getNodeCount(), new File(filename).length());
+		return tree;
+	}
+
+	private static boolean isParent(byte[] slots, byte[] parsed, int depth){
+		for(int level = 1; level < depth; level++){
+			if(slots[level] != parsed[level])
+				return false;
+		}
+		return true;
+	}
+
+	private static int walkFromRoot(StoryFileReader file,
+			StoryTreeNode[] stack, byte[] parsed, int depth, String position)
+			throws DataFormatException{
+		StoryTreeNode temp = stack[0];
+		for(int level = 1; level < depth; level++){
+			temp = temp.getChild(parsed[level]);
+			if(temp == null)
+				throw file.formatError("Parent of " + position
+						+ " not present");
+			stack[level] = temp;
+		}
+		return depth;
+	}
+
+	private static <T> T[] ensureCapacity(T[] stack, int capacity){
+		if(capacity <= stack.length)
+			return stack;
+		return Arrays.copyOf(stack, Math.max(capacity, stack.length * 2));
+	}
+}
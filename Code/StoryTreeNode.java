@@ -1,39 +1,63 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 /**
- * The StoryTreeNode represents a segment of the story with 3 children.
+ * The StoryTreeNode represents a segment of the story with any number of
+ * children, numbered from 1. The children are kept in an array indexed by
+ * child number which is only as long as the highest child number in use,
+ * so a leaf holds no array of its own and a node with three children one
+ * of three.
+ * A node does not store its own position, the position of a node is given
+ * by the path taken to reach it.
  * @author Tejas
  */
 public class StoryTreeNode {
 	public static final String WIN_MESSAGE = "YOU WIN";
 	public static final String LOSE_MESSAGE = "YOU LOSE";
 	
-	private String position;
+	/**
+	 * Highest child number a node can have
+	 */
+	public static final int MAX_CHILDREN = Byte.MAX_VALUE;
+	
+	private static final StoryTreeNode[] NO_CHILDREN = new StoryTreeNode[0];
+	
 	private String option;
 	private String message;
 	
-	private StoryTreeNode leftChild;
-	private StoryTreeNode middleChild;
-	private StoryTreeNode rightChild;
+	// Child i + 1 at index i, with no null at the end
+	private StoryTreeNode[] children = NO_CHILDREN;
+	
+	// Counts for the subtree rooted at this node, including the node itself
+	private int nodeCount;
+	private int leafCount;
+	private int winningLeafCount;
+	private int losingLeafCount;
+	
+	// Message and numbered options as shown to a player, encoded when
+	// first asked for and dropped when either changes
+	private volatile ByteBuffer prompt;
 	
 	/**
 	 * Default Constructor
 	 */
 	public StoryTreeNode(){
-		leftChild = middleChild = rightChild = null;
+		updateCounts();
 	}
 	
 	/**
 	 * Constructor with specific parameters for member variables
-	 * @param position -
-	 * Position of node
 	 * @param option -
 	 * Option of node
 	 * @param message -
 	 * Message of node
 	 */
-	public StoryTreeNode(String position, String option, String message){
-		this.position = position;
+	public StoryTreeNode(String option, String message){
 		this.option = option;
 		this.message = message;
+		updateCounts();
 	}
 	
 	/**
@@ -42,20 +66,16 @@ public class StoryTreeNode {
 	 * True if it is a leaf
 	 */
 	public boolean isLeaf(){
-		if(leftChild == null && middleChild == null && rightChild == null)
-			return true;
-		return false;
+		return children.length == 0;
 	}
 	
 	/**
-	 * Check if node has 3 children
+	 * Check if node has no room for another child
 	 * @return
-	 * True if all 3 children are not null
+	 * True if every child number up to MAX_CHILDREN is taken
 	 */
 	public boolean fullTree(){
-		if(leftChild != null && middleChild != null && rightChild != null)
-			return true;
-		return false;
+		return getChildCount() == MAX_CHILDREN;
 	}
 	
 	/**
@@ -64,7 +84,7 @@ public class StoryTreeNode {
 	 * True if node is leaf and winning node
 	 */
 	public boolean isWinningNode(){
-		if(isLeaf() && message.contains(WIN_MESSAGE.subSequence(0, 
+		if(isLeaf() && message != null && message.contains(WIN_MESSAGE.subSequence(0, 
 										WIN_MESSAGE.length())))
 			return true;
 		return false;
@@ -76,19 +96,88 @@ public class StoryTreeNode {
 	 * True if node is leaf and losing node
 	 */
 	public boolean isLosingNode(){
-		if(isLeaf() && message.contains(LOSE_MESSAGE.subSequence(0, 
+		if(isLeaf() && message != null && message.contains(LOSE_MESSAGE.subSequence(0, 
 										LOSE_MESSAGE.length())))
 			return true;
 		return false;
 	}
 	
+	/**
+	 * Gets child of node by child number
+	 * @param slot -
+	 * Child number, from 1 to MAX_CHILDREN
+	 * @return
+	 * Child at slot, or null if there is none
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to MAX_CHILDREN
+	 */
+	public StoryTreeNode getChild(int slot) throws IllegalArgumentException{
+		checkSlot(slot);
+		return slot <= children.length ? children[slot - 1] : null;
+	}
+	
+	/**
+	 * Sets child of node by child number, making room for it if the node
+	 * had no child that far along
+	 * @param slot -
+	 * Child number, from 1 to MAX_CHILDREN
+	 * @param child -
+	 * Node to set as child, or null to remove it
+	 * @throws IllegalArgumentException
+	 * slot is not from 1 to MAX_CHILDREN
+	 */
+	public void setChild(int slot, StoryTreeNode child)
+			throws IllegalArgumentException{
+		checkSlot(slot);
+		if(slot > children.length){
+			if(child == null)
+				return;
+			children = Arrays.copyOf(children, slot);
+		}
+		children[slot - 1] = child;
+		if(child == null && slot == children.length){
+			int length = slot - 1;
+			while(length > 0 && children[length - 1] == null)
+				length--;
+			children = length == 0 ? NO_CHILDREN
+					: Arrays.copyOf(children, length);
+		}
+		prompt = null;
+		updateCounts();
+	}
+	
+	/**
+	 * Gets highest child number in use, so the children can be walked
+	 * with getChild without building a list of them. Lower child numbers
+	 * may have no child.
+	 * @return
+	 * Highest child number with a child, or 0 for a leaf
+	 */
+	public int getChildSlots(){
+		return children.length;
+	}
+	
+	/**
+	 * Gets number of children of node
+	 * @return
+	 * Number of child numbers with a child
+	 */
+	public int getChildCount(){
+		int count = 0;
+		for(int slot = 1; slot <= getChildSlots(); slot++){
+			if(getChild(slot) != null)
+				count++;
+		}
+		return count;
+	}
+	
 	/**
 	 * Gets left child of node
 	 * @return
 	 * Left child of node
 	 */
 	public StoryTreeNode getLeftChild(){
-		return leftChild;
+		return getChild(1);
 	}
 	
 	/**
@@ -97,7 +186,7 @@ public class StoryTreeNode {
 	 * Right child of node
 	 */
 	public StoryTreeNode getRightChild(){
-		return rightChild;
+		return getChild(3);
 	}
 	
 	/**
@@ -106,7 +195,7 @@ public class StoryTreeNode {
 	 * Middle child of node
 	 */
 	public StoryTreeNode getMiddleChild(){
-		return middleChild;
+		return getChild(2);
 	}
 	
 	/**
@@ -115,7 +204,7 @@ public class StoryTreeNode {
 	 * Node to set as left child
 	 */
 	public void setLeft(StoryTreeNode left){
-		leftChild = left;
+		setChild(1, left);
 	}
 	
 	/**
@@ -124,7 +213,7 @@ public class StoryTreeNode {
 	 * Node to set as middle child
 	 */
 	public void setMiddle(StoryTreeNode middle){
-		middleChild = middle;
+		setChild(2, middle);
 	}
 	
 	/**
@@ -133,16 +222,7 @@ public class StoryTreeNode {
 	 * Node to set as right child
 	 */
 	public void setRight(StoryTreeNode right){
-		rightChild = right;
-	}
-	
-	/**
-	 * Get position of node
-	 * @return
-	 * Position of node
-	 */
-	public String getPosition(){
-		return position;
+		setChild(3, right);
 	}
 	
 	/**
@@ -174,6 +254,8 @@ public class StoryTreeNode {
 		if(message == null || message == "")
 			throw new IllegalArgumentException();
 		this.message = message;
+		prompt = null;
+		updateCounts();
 	}
 	
 	/**
@@ -190,15 +272,181 @@ public class StoryTreeNode {
 	}
 	
 	/**
-	 * Sets position of node
-	 * @param position -
-	 * Position to set node
+	 * Gets message of node and the numbered options of its children as
+	 * they are shown to a player, encoded in the default charset. The
+	 * bytes are encoded once and kept until the message or the children
+	 * change, a parent whose child's option changes is told through
+	 * clearPrompt.
+	 * @return
+	 * Read only view of the prompt, positioned at its start
+	 */
+	public ByteBuffer getPrompt(){
+		ByteBuffer bytes = prompt;
+		if(bytes == null){
+			String[][] options = new String[getChildSlots()][2];
+			for(int slot = 1; slot <= options.length; slot++){
+				StoryTreeNode child = getChild(slot);
+				if(child != null)
+					options[slot - 1][1] = child.getOption();
+			}
+			bytes = renderPrompt(getMessage(), options);
+			prompt = bytes;
+		}
+		// Each caller gets its own position in the same bytes
+		return bytes.duplicate();
+	}
+	
+	/**
+	 * Drops the prompt kept for this node, after the option of one of its
+	 * children changed
+	 */
+	void clearPrompt(){
+		prompt = null;
+	}
+	
+	/**
+	 * Encodes a message and numbered options as they are shown to a player,
+	 * each line ending in \n as ZorkServer sends them
+	 * @param message -
+	 * Message of the node
+	 * @param options -
+	 * Options as returned by getOptions, an option is left out when it is
+	 * null
+	 * @return
+	 * Read only buffer of the prompt
+	 */
+	static ByteBuffer renderPrompt(String message, String[][] options){
+		StringBuilder text = new StringBuilder(message).append('\n');
+		for(int i = 0; i < options.length; i++){
+			if(options[i][1] != null)
+				text.append(i + 1).append(") ").append(options[i][1])
+					.append('\n');
+		}
+		return Charset.defaultCharset().encode(CharBuffer.wrap(text))
+				.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Gets number of nodes in the subtree rooted at this node
+	 * @return
+	 * Number of nodes including this node
+	 */
+	public int getNodeCount(){
+		return nodeCount;
+	}
+	
+	/**
+	 * Gets number of leaves in the subtree rooted at this node
+	 * @return
+	 * Number of leaves
+	 */
+	public int getLeafCount(){
+		return leafCount;
+	}
+	
+	/**
+	 * Gets number of winning leaves in the subtree rooted at this node
+	 * @return
+	 * Number of winning leaves
+	 */
+	public int getWinningLeafCount(){
+		return winningLeafCount;
+	}
+	
+	/**
+	 * Gets number of losing leaves in the subtree rooted at this node
+	 * @return
+	 * Number of losing leaves
+	 */
+	public int getLosingLeafCount(){
+		return losingLeafCount;
+	}
+	
+	/**
+	 * Makes a node with the same option, message, children and counts, to
+	 * be changed in place of this one while older versions of a tree still
+	 * use this one
+	 * @return
+	 * Copy of this node sharing its children
+	 */
+	StoryTreeNode copy(){
+		StoryTreeNode copy = new StoryTreeNode(option, message);
+		// The copy is changed in place, so it can not share the array
+		copy.children = children.length == 0 ? NO_CHILDREN
+				: children.clone();
+		copy.nodeCount = nodeCount;
+		copy.leafCount = leafCount;
+		copy.winningLeafCount = winningLeafCount;
+		copy.losingLeafCount = losingLeafCount;
+		return copy;
+	}
+	
+	/**
+	 * Recomputes the subtree counts of this node from the counts of its
+	 * children. Ancestors are not updated, that is left to StoryTree which
+	 * knows the path to this node.
+	 */
+	void updateCounts(){
+		if(isLeaf()){
+			nodeCount = 1;
+			leafCount = 1;
+			winningLeafCount = isWinningNode() ? 1 : 0;
+			losingLeafCount = isLosingNode() ? 1 : 0;
+			return;
+		}
+		nodeCount = 1;
+		leafCount = winningLeafCount = losingLeafCount = 0;
+		for(StoryTreeNode child : children)
+			addCounts(child);
+	}
+	
+	/**
+	 * Checks the subtree counts of this node against those of its children
+	 * @return
+	 * True if the counts match what updateCounts would compute
+	 */
+	boolean hasConsistentCounts(){
+		// Added up apart from the fields, which other threads may be reading
+		int nodes = 1;
+		int leaves = 0;
+		int wins = 0;
+		int losses = 0;
+		if(isLeaf()){
+			leaves = 1;
+			wins = isWinningNode() ? 1 : 0;
+			losses = isLosingNode() ? 1 : 0;
+		}
+		for(StoryTreeNode child : children){
+			if(child == null)
+				continue;
+			nodes += child.nodeCount;
+			leaves += child.leafCount;
+			wins += child.winningLeafCount;
+			losses += child.losingLeafCount;
+		}
+		return nodes == nodeCount && leaves == leafCount
+				&& wins == winningLeafCount && losses == losingLeafCount;
+	}
+	
+	/**
+	 * Checks a child number
+	 * @param slot -
+	 * Child number to check
 	 * @throws IllegalArgumentException
-	 * position is null or empty string
+	 * slot is not from 1 to MAX_CHILDREN
 	 */
-	public void setPosition(String position)throws IllegalArgumentException{
-		if(option == null || option == "")
-			throw new IllegalArgumentException();
-		this.position = position;
+	static void checkSlot(int slot) throws IllegalArgumentException{
+		if(slot < 1 || slot > MAX_CHILDREN)
+			throw new IllegalArgumentException("Did not select a child from "
+					+ "1 to " + MAX_CHILDREN);
+	}
+	
+	private void addCounts(StoryTreeNode child){
+		if(child == null)
+			return;
+		nodeCount += child.nodeCount;
+		leafCount += child.leafCount;
+		winningLeafCount += child.winningLeafCount;
+		losingLeafCount += child.losingLeafCount;
 	}
 }
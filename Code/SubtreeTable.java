@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The SubtreeTable hash-conses a story: every subtree is replaced by the
+ * one node kept for all subtrees equal to it, and every option and message
+ * by the one String kept for equal text. Subtrees are equal when their
+ * roots have the same option and message and the same shared children, so
+ * each node is looked up once, after its children. A story which repeats
+ * parts of itself then holds each part once, and its nodes form a graph in
+ * which a node is reached by as many paths as there were copies of it.
+ * The nodes shared are new, the tree given is never changed.
+ * @author Tejas
+ */
+class SubtreeTable {
+	private HashMap<Key, StoryTreeNode> nodes;
+	private HashMap<String, String> strings;
+
+	/**
+	 * Default Constructor
+	 */
+	SubtreeTable(){
+		nodes = new HashMap<Key, StoryTreeNode>();
+		strings = new HashMap<String, String>();
+	}
+
+	/**
+	 * Gets number of distinct subtrees kept
+	 * @return
+	 * Number of nodes shared so far
+	 */
+	int getNodeCount(){
+		return nodes.size();
+	}
+
+	/**
+	 * Gets number of distinct options and messages kept
+	 * @return
+	 * Number of Strings shared so far
+	 */
+	int getStringCount(){
+		return strings.size();
+	}
+
+	/**
+	 * Shares a tree, or a graph which already shares some nodes, with every
+	 * subtree shared before through this table
+	 * @param root -
+	 * Root of the tree to share
+	 * @return
+	 * Shared node equal to root
+	 */
+	StoryTreeNode share(StoryTreeNode root){
+		// Maps each node of the tree given to its shared node, so a node
+		// reached by more than one path is only shared once
+		IdentityHashMap<StoryTreeNode, StoryTreeNode> shared =
+			new IdentityHashMap<StoryTreeNode, StoryTreeNode>();
+		ArrayList<StoryTreeNode> stack = new ArrayList<StoryTreeNode>();
+		stack.add(root);
+		while(!stack.isEmpty()){
+			StoryTreeNode node = stack.get(stack.size() - 1);
+			if(shared.containsKey(node)){
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+			int pending = stack.size();
+			for(int slot = 1; slot <= node.getChildSlots(); slot++){
+				StoryTreeNode child = node.getChild(slot);
+				if(child != null && !shared.containsKey(child))
+					stack.add(child);
+			}
+			if(stack.size() > pending)
+				continue;
+
+			stack.remove(stack.size() - 1);
+			StoryTreeNode copy = new StoryTreeNode(intern(node.getOption()),
+					intern(node.getMessage()));
+			for(int slot = 1; slot <= node.getChildSlots(); slot++){
+				StoryTreeNode child = node.getChild(slot);
+				if(child != null)
+					copy.setChild(slot, shared.get(child));
+			}
+			Key key = new Key(copy);
+			StoryTreeNode existing = nodes.get(key);
+			if(existing == null){
+				copy.updateCounts();
+				nodes.put(key, copy);
+				existing = copy;
+			}
+			shared.put(node, existing);
+		}
+		return shared.get(root);
+	}
+
+	private String intern(String text){
+		String existing = strings.get(text);
+		if(existing != null)
+			return existing;
+		strings.put(text, text);
+		return text;
+	}
+
+	/**
+	 * The Key compares nodes by their text and by the identity of their
+	 * children, which are already shared when the node is looked up
+	 */
+	private static class Key {
+		private StoryTreeNode node;
+		private int hash;
+
+		private Key(StoryTreeNode node){
+			this.node = node;
+			hash = node.getOption().hashCode() * 31
+					+ node.getMessage().hashCode();
+			for(int slot = 1; slot <= node.getChildSlots(); slot++)
+				hash = hash * 31
+						+ System.identityHashCode(node.getChild(slot));
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+
+		public boolean equals(Object other){
+			if(!(other instanceof Key))
+				return false;
+			StoryTreeNode that = ((Key)other).node;
+			if(node.getChildSlots() != that.getChildSlots())
+				return false;
+			for(int slot = 1; slot <= node.getChildSlots(); slot++){
+				if(node.getChild(slot) != that.getChild(slot))
+					return false;
+			}
+			return node.getOption().equals(that.getOption())
+					&& node.getMessage().equals(that.getMessage());
+		}
+	}
+}
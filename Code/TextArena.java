@@ -0,0 +1,185 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The TextArena stores many strings in one growing ByteBuffer, each as its
+ * length followed by its UTF-8 bytes, and refers to them by offset. The
+ * buffer can live on or off the Java heap. Strings are only ever appended,
+ * so replacing a string leaves its old bytes behind until the arena is
+ * rebuilt.
+ * @author Tejas
+ */
+public class TextArena {
+	private ByteBuffer buffer;
+	private boolean offHeap;
+
+	/**
+	 * Constructor with specific parameters for member variables
+	 * @param capacity -
+	 * Initial capacity in bytes
+	 * @param offHeap -
+	 * True to keep the bytes in a direct buffer outside the Java heap
+	 * @throws IllegalArgumentException
+	 * capacity is not positive
+	 */
+	public TextArena(int capacity, boolean offHeap)
+			throws IllegalArgumentException{
+		if(capacity <= 0)
+			throw new IllegalArgumentException();
+		this.offHeap = offHeap;
+		buffer = allocate(capacity);
+	}
+
+	/**
+	 * Appends a string to the arena
+	 * @param text -
+	 * String to append
+	 * @return
+	 * Offset of the string
+	 * @throws IllegalStateException
+	 * Arena would grow past 2 GB
+	 */
+	public int add(String text) throws IllegalStateException{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ensureRemaining(bytes.length + 5);
+		int offset = buffer.position();
+		int length = bytes.length;
+		while((length & ~0x7F) != 0){
+			buffer.put((byte)((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		buffer.put((byte)length);
+		buffer.put(bytes);
+		return offset;
+	}
+
+	/**
+	 * Reads a string from the arena
+	 * @param offset -
+	 * Offset returned by add
+	 * @return
+	 * String stored at offset
+	 */
+	public String get(int offset){
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do{
+			b = buffer.get(offset++);
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		}while((b & 0x80) != 0);
+
+		if(buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset,
+							  length, StandardCharsets.UTF_8);
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++)
+			bytes[i] = buffer.get(offset + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Gets number of bytes a string takes in the arena
+	 * @param offset -
+	 * Offset returned by add
+	 * @return
+	 * Bytes of the string and its length
+	 */
+	public int sizeOf(int offset){
+		int length = 0;
+		int shift = 0;
+		int at = offset;
+		byte b;
+		do{
+			b = buffer.get(at++);
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		}while((b & 0x80) != 0);
+		return at - offset + length;
+	}
+
+	/**
+	 * Appends a string held by another arena, copying its bytes without
+	 * decoding them
+	 * @param from -
+	 * Arena holding the string
+	 * @param offset -
+	 * Offset of the string in from
+	 * @return
+	 * Offset of the string in this arena
+	 * @throws IllegalStateException
+	 * Arena would grow past 2 GB
+	 */
+	public int copy(TextArena from, int offset) throws IllegalStateException{
+		int size = from.sizeOf(offset);
+		ensureRemaining(size);
+		int start = buffer.position();
+		ByteBuffer source = from.buffer.duplicate();
+		source.limit(offset + size);
+		source.position(offset);
+		buffer.put(source);
+		return start;
+	}
+
+	/**
+	 * Gets number of bytes used
+	 * @return
+	 * Bytes holding strings
+	 */
+	public int getBytesUsed(){
+		return buffer.position();
+	}
+
+	/**
+	 * Gets number of bytes reserved
+	 * @return
+	 * Capacity of the buffer
+	 */
+	public int getCapacity(){
+		return buffer.capacity();
+	}
+
+	/**
+	 * Check if the arena lives outside the Java heap
+	 * @return
+	 * True if the buffer is direct
+	 */
+	public boolean isOffHeap(){
+		return offHeap;
+	}
+
+	/**
+	 * Shrinks the buffer to the bytes in use
+	 */
+	public void trimToSize(){
+		if(buffer.position() == buffer.capacity())
+			return;
+		ByteBuffer smaller = allocate(Math.max(1, buffer.position()));
+		buffer.flip();
+		smaller.put(buffer);
+		buffer = smaller;
+	}
+
+	private void ensureRemaining(int needed) throws IllegalStateException{
+		if(buffer.remaining() >= needed)
+			return;
+		long capacity = Math.max((long)buffer.capacity() * 2,
+								 (long)buffer.position() + needed);
+		if(capacity > Integer.MAX_VALUE){
+			capacity = Integer.MAX_VALUE;
+			if(buffer.position() + (long)needed > capacity)
+				throw new IllegalStateException("Text arena is full");
+		}
+		ByteBuffer bigger = allocate((int)capacity);
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+
+	private ByteBuffer allocate(int capacity){
+		if(offHeap)
+			return ByteBuffer.allocateDirect(capacity);
+		return ByteBuffer.allocate(capacity);
+	}
+}
@@ -1,7 +1,11 @@
 /**
  * Created By: Tejas Prasad
  */
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 import java.util.zip.DataFormatException;
@@ -11,16 +15,44 @@ import java.util.zip.DataFormatException;
  * @author Tejas
  */
 public class Zork {
+	private static final int FIND_LIMIT = 10;
+	// Prompts kept by the nodes end their lines in \n, as ZorkServer sends
+	// them, which is only the console's line separator on some platforms
+	private static final boolean UNIX_LINES =
+			System.lineSeparator().equals("\n");
+	
 	private static Scanner input;
+	private static Story searched;
+	private static StorySearchIndex search;
 	
 	/**
 	 * Asks the user for a file and creates the game from that file.
 	 * Asks user then to play the game, edit or exit the program and save
 	 * the tree to the file.
-	 * @param args
+	 * @param args -
+	 * --compact to keep the story in a CompactStoryTree, --index to keep
+	 * a PositionIndex for a StoryTree, --lazy to read nodes from the file
+	 * only as they are reached, --share to keep repeated parts of a
+	 * StoryTree once, --server followed by the arguments of ZorkServer
+	 * to serve the game over TCP, or --replay followed by the arguments of
+	 * ScriptedReplay to check scripted games without a console
 	 */
 	public static void main(String[] args){
-		StoryTree story = null;
+		if(args.length > 0 && args[0].equals("--server")){
+			ZorkServer.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--replay")){
+			ScriptedReplay.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		boolean compact = Arrays.asList(args).contains("--compact");
+		boolean indexed = Arrays.asList(args).contains("--index");
+		boolean lazy = Arrays.asList(args).contains("--lazy");
+		boolean share = Arrays.asList(args).contains("--share");
+		StoryMetrics.register();
+		Story story = null;
+		StoryJournal journal = null;
 		boolean firstRun = true;
 		input = new Scanner(System.in);
 		String fileName, userInput = null;
@@ -31,7 +63,23 @@ public class Zork {
 			try{
 				if(firstRun){
 					System.out.println("Loading game from file...\n");
-					story = StoryTree.readTree(fileName);
+					if(BinaryStoryFormat.isBinary(fileName))
+						story = BinaryStoryFormat.load(fileName);
+					else if(lazy)
+						story = StoryTree.readTreeLazily(fileName);
+					else if(compact)
+						story = CompactStoryTree.readTree(fileName, false);
+					else
+						story = StoryTreeLoader.load(fileName);
+					if(!lazy || BinaryStoryFormat.isBinary(fileName))
+						journal = StoryJournal.open(fileName, story);
+					if(share && !lazy && story instanceof StoryTree)
+						shareSubtrees((StoryTree)story);
+					if(indexed && story instanceof StoryTree)
+						((StoryTree)story).enableIndex();
+					if(!lazy && story instanceof StoryTree)
+						((StoryTree)story).enableHistory(
+								Runtime.getRuntime().maxMemory() / 8);
 					System.out.println("\nFile loaded!\n");
 					firstRun = false;
 				}
@@ -46,10 +94,13 @@ public class Zork {
 					playTree(story);
 					break;
 				case "Q":
-					System.out.println("\nGame being saved to " 
-							+ fileName + "...\n");
-					StoryTree.saveTree(fileName, story);
-					System.out.println("\nSave successful!\n");
+					// Every edit is already in the journal, which is folded
+					// into the story file in the background as it grows
+					if(journal != null){
+						journal.close();
+						System.out.println("\nEdits saved to " + fileName
+								+ StoryJournal.EXTENSION + ".\n");
+					}
 					System.out.println("\nProgram terminating normally.");
 					return;
 				default:
@@ -62,28 +113,36 @@ public class Zork {
 			catch(IllegalArgumentException e){
 				System.out.println(e.getMessage());
 			}
-			catch(FileNotFoundException e){
+			catch(IOException e){
 				System.out.println(e.getMessage());
 			}
-			catch(NodeNotPresentException e){
-				System.out.println("\nError with node\n");
-			}
-			catch(TreeFullException e){
-				System.out.println("\nTree is full\n");
-			}
 			catch(DataFormatException e){
 				System.out.println(e.getMessage());
 			}
 		}while(userInput.charAt(0) != 'Q');
 	}
 	
+	/**
+	 * Shares the repeated parts of a story and tells the user how much
+	 * smaller it became
+	 * @param tree -
+	 * Story to share
+	 */
+	private static void shareSubtrees(StoryTree tree){
+		int nodes = tree.getRoot().getNodeCount();
+		int kept = tree.shareSubtrees();
+		System.out.println("Repeated parts shared, " + kept + " of " + nodes
+				+ " nodes kept.");
+	}
+	
 	/**
 	 * Displays an editor menu for the user to edit the game.
 	 * @param tree -
-	 * StoryTree to edit
+	 * Story to edit
 	 */
-	public static void editTree(StoryTree tree){
+	public static void editTree(Story tree){
 		String userInput = null;
+		StoryMetrics.get().addEditSessions(1);
 
 		do{
 			try{
@@ -119,6 +178,21 @@ public class Zork {
 				case "R":
 					tree.resetCursor();
 					break;
+				case "F":
+					find(tree);
+					break;
+				case "Z":
+				case "Y":
+					undoRedo(tree, userInput.equals("Z"));
+					break;
+				case "I":
+					if(tree instanceof StoryTree)
+						System.out.println("\n" + StoryAnalytics.analyze(
+								(StoryTree)tree) + "\n");
+					else
+						System.out.println("Statistics are only available "
+								+ "for a StoryTree.\n");
+					break;
 				case "Q":
 					System.out.println("\nExiting editor\n");
 					break;
@@ -138,50 +212,53 @@ public class Zork {
 			catch(TreeFullException e){
 				System.out.println("Tree is full at the cursor.\n");
 			}
+			catch(UnsupportedOperationException e){
+				System.out.println(e.getMessage() + ".\n");
+			}
+			catch(UncheckedIOException e){
+				System.out.println("Edit could not be saved: "
+						+ e.getCause().getMessage() + "\n");
+			}
 			catch(Exception e){
 				
 			}
 		}while(userInput != "Q");
+		StoryMetrics.get().addEditSessions(-1);
 	}
 
 	/**
-	 * Plays the Zork game stored in the StoryTree
+	 * Plays the Zork game stored in the Story in a new PlaySession
 	 * @param tree -
-	 * StoryTree which has the Zork game
+	 * Story which has the Zork game
 	 */
-	public static void playTree(StoryTree tree){
+	public static void playTree(Story tree){
+		PlaySession session = new MeteredPlaySession(tree.newSession());
+		WritableByteChannel console = Channels.newChannel(System.out);
 		String userInput = null;
-		String[][] options = new String[3][2];
-		System.out.println(tree.getCursorOption() + "\n");
+		StoryMetrics.get().addPlaySessions(1);
+		System.out.println(session.getOption() + "\n");
 
 		do{
 			try{
-				System.out.println(tree.getCursorMessage());
-
-				options = tree.getOptions();
-				
-				for(int i = 0; i < 3; i++){
-					if(options[i][0] == null || options[i][1] == null)
-						continue;
-					System.out.println((i + 1) + ") " + options[i][1]);
-				}
-
+				// Message and options as encoded when the node was first
+				// shown, written to System.out as they are where their
+				// line ends match the console's
+				if(UNIX_LINES)
+					console.write(session.getPrompt());
+				else
+					printPrompt(session);
 				System.out.print("Please make a choice: ");
 				userInput = input.next();
 				System.out.println();
 				
 				if(userInput.toUpperCase().charAt(0) == 'C'){
 					System.out.printf("\nProbability of a win at this point:"
-							+ " %2.2f", tree.winProbability());
+							+ " %2.2f", session.winProbability());
 					System.out.println("%\n");
 					continue;
 				}
 				
-				tree.selectChild(userInput);
-				if(tree.getCursor().isWinningNode())
-					break;
-				if(tree.getCursor().isLosingNode())
-					break;
+				session.selectChild(userInput);
 			}
 			catch(IllegalArgumentException e){
 				System.out.println(e.getMessage());
@@ -189,10 +266,13 @@ public class Zork {
 			catch(NodeNotPresentException e){
 				System.out.println("Error. Child does not exist.\n");
 			}
-		}while(!tree.getCursor().isWinningNode() 
-				|| !tree.getCursor().isLosingNode());
+			catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+		}while(session.getGameState() == GameState.GAME_NOT_OVER);
 
-		System.out.println(tree.getCursorMessage() + "\n");
+		StoryMetrics.get().addPlaySessions(-1);
+		System.out.println(session.getMessage() + "\n");
 		System.out.println("Thanks for playing.");
 	}
 
@@ -210,13 +290,17 @@ public class Zork {
 	private static String displayMenu() {
 		System.out.print("Zork Editor:\n"
 				+ "V) View Cursor's position, option, and message.\n"
-				+ "S) Select a child of this cursor(options are 1, 2, 3)\n"
+				+ "S) Select a child of this cursor by its number\n"
 				+ "O) Set the option of the cursor\n"
 				+ "M) Set the message of the cursor\n"
 				+ "P) Return the cursor to its parent node\n"
 				+ "A) Add a child StoryNode to the cursor\n"
 				+ "D) Delete one of the cursor's children and its subtree\n"
 				+ "R) Move the cursor to the root of the tree\n"
+				+ "F) Find nodes by their text and move the cursor to one\n"
+				+ "I) Show statistics of the subtree at the cursor\n"
+				+ "Z) Undo the last edit\n"
+				+ "Y) Redo the last edit undone\n"
 				+ "Q) Remove slide at cursor\n\n"
 				+ "Select a menu option:");
 		
@@ -228,45 +312,75 @@ public class Zork {
 		return temp.toUpperCase();
 	}
 	
-	private static void selectChild(StoryTree tree)
+	private static void undoRedo(Story tree, boolean undo){
+		if(!(tree instanceof StoryTree) 
+				|| ((StoryTree)tree).getHistory() == null){
+			System.out.println("Undo is only available for a StoryTree "
+					+ "which can be edited.\n");
+			return;
+		}
+		StoryTree story = (StoryTree)tree;
+		if(undo ? story.undo() : story.redo())
+			System.out.println("\n" + (undo ? "Undid" : "Redid") 
+					+ " edit at " + story.getCursorPosition() + ".\n");
+		else
+			System.out.println("\nNothing to " + (undo ? "undo" : "redo")
+					+ ".\n");
+	}
+	
+	private static void find(Story tree)
+			throws IllegalArgumentException, NodeNotPresentException{
+		if(searched != tree){
+			if(searched != null)
+				searched.removeListener(search);
+			System.out.println("\nIndexing story...");
+			search = new StorySearchIndex(tree);
+			tree.addListener(search);
+			searched = tree;
+		}
+		System.out.print("Search for words, prefixes ending in * or "
+				+ "\"phrases\": ");
+		String[] hits = search.search(input.nextLine(), FIND_LIMIT);
+		if(hits.length == 0){
+			System.out.println("\nNo matches.\n");
+			return;
+		}
+		System.out.println();
+		for(int i = 0; i < hits.length; i++)
+			System.out.println((i + 1) + ") " + hits[i] + " | " 
+					+ search.getOption(hits[i]));
+		System.out.print("Please select a match, or press enter to stay: ");
+		String userInput = input.nextLine().trim();
+		if(userInput.isEmpty()){
+			System.out.println();
+			return;
+		}
+		int hit = Integer.parseInt(userInput);
+		if(hit < 1 || hit > hits.length)
+			throw new IllegalArgumentException("Did not select a match\n");
+		tree.selectChildStartRoot(hits[hit - 1]);
+		System.out.println("\nCursor moved to " + hits[hit - 1] + ".\n");
+	}
+	
+	private static void selectChild(Story tree)
 			throws IllegalArgumentException, NodeNotPresentException{
-		int children = tree.getNumberChildren();
-		switch(children){
-		case 0:
+		if(tree.getNumberChildren() == 0){
 			System.out.println("The node has no children. ");
 			return;
-		case 1:
-			System.out.print("Please select a child[1]: ");
-			break;
-		case 2:
-			System.out.print("Please select a child[1, 2]: ");
-			break;
-		case 3:
-			System.out.print("Please select a child[1, 2, 3]: ");
-			break;
 		}
+		System.out.print("Please select a child" + childList(tree) + ": ");
 		String userInput = input.next();
 		input.nextLine();
 		tree.selectChild(userInput);
 	}
 	
-	private static void deleteChild(StoryTree tree) 
+	private static void deleteChild(Story tree) 
 			throws IllegalArgumentException, NodeNotPresentException{
-		int children = tree.getNumberChildren();
-		switch(children){
-		case 0:
+		if(tree.getNumberChildren() == 0){
 			System.out.print("The node has no children");
 			return;
-		case 1:
-			System.out.print("Please select a child[1]: ");
-			break;
-		case 2:
-			System.out.print("Please select a child[1, 2]: ");
-			break;
-		case 3:
-			System.out.print("Please select a child[1, 2, 3]: ");
-			break;
 		}
+		System.out.print("Please select a child" + childList(tree) + ": ");
 		String userInput = input.next();
 		input.nextLine();
 		tree.removeChild(userInput);
@@ -274,8 +388,36 @@ public class Zork {
 		System.out.println("\nSubtree deleted.\n");
 	}
 	
-	private static void addChild(StoryTree tree) throws TreeFullException{
-		if(tree.getCursor().isLeaf())
+	/**
+	 * Prints the message and options of a session line by line, for
+	 * consoles whose lines do not end in \n alone
+	 */
+	private static void printPrompt(PlaySession session){
+		System.out.println(session.getMessage());
+		for(int slot = 1; slot <= session.getChildSlots(); slot++){
+			String option = session.getChildOption(slot);
+			if(option != null)
+				System.out.println(slot + ") " + option);
+		}
+	}
+	
+	/**
+	 * Lists the child numbers in use at the cursor, such as "[1, 3]"
+	 */
+	private static String childList(Story tree){
+		StringBuilder list = new StringBuilder("[");
+		for(int slot = 1; slot <= tree.getChildSlots(); slot++){
+			if(tree.getChildOption(slot) != null){
+				if(list.length() > 1)
+					list.append(", ");
+				list.append(slot);
+			}
+		}
+		return list.append(']').toString();
+	}
+	
+	private static void addChild(Story tree) throws TreeFullException{
+		if(tree.isCursorLeaf())
 			throw new TreeFullException();
 		else{
 			String option, message;
@@ -290,7 +432,7 @@ public class Zork {
 		}
 	}
 	
-	private static void editCursor(StoryTree tree, boolean editOption){
+	private static void editCursor(Story tree, boolean editOption){
 		if(editOption){
 			System.out.print("Please enter a new option: ");
 			String userInput = input.nextLine();
@@ -0,0 +1,861 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * The ZorkServer runs a Zork game for every client connected over TCP on
+ * localhost. All clients share one loaded Story and each plays in its own
+ * PlaySession. A single thread serves every connection through one
+ * Selector, reading a choice per line and writing the game back as text.
+ * A client which stops reading has its input paused until its output
+ * drains, clients which stay quiet too long are disconnected, and
+ * connections past the configured cap are turned away. Serving a
+ * StoryLibrary instead, each client first names the story it wants, which
+ * is opened on a loader thread so other clients keep playing meanwhile.
+ * @author Tejas
+ */
+public class ZorkServer implements Runnable, Closeable {
+	/**
+	 * Port used when none is given
+	 */
+	public static final int DEFAULT_PORT = 4000;
+
+	private static final int MAX_LINE = 1024;
+	private static final int PAUSE_OUTPUT = 64 * 1024;
+	private static final int RESUME_OUTPUT = 16 * 1024;
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final long HEATMAP_SECONDS = 10;
+	private static final ByteBuffer CHOICE_PROMPT =
+		CHARSET.encode("Please make a choice: ").asReadOnlyBuffer();
+	private static final String STORY_PROMPT =
+		"Which story would you like to play (Q to quit)? ";
+	private static final int LOADER_THREADS = 4;
+
+	private Story story;
+	private LiveStory live;
+	private LiveStory.Policy policy;
+	private StoryLibrary library;
+	private File directory;
+	private ExecutorService loader;
+	private ConcurrentLinkedQueue<Connection> opened;
+	private volatile StoryTelemetry telemetry;
+	private int maxConnections;
+	private long idleTimeoutNanos;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private volatile boolean running;
+	private volatile int connections;
+	private volatile long accepted;
+	private volatile long rejected;
+	private volatile long timedOut;
+
+	/**
+	 * Constructor binding the server to a port on localhost
+	 * @param story -
+	 * Story played by every client, which must not be edited while the
+	 * server is running, serve a LiveStory for a story which changes
+	 * @param port -
+	 * Port to listen on, 0 for any free port
+	 * @param maxConnections -
+	 * Most clients connected at once
+	 * @param idleTimeoutMillis -
+	 * Time a client may send nothing before it is disconnected
+	 * @throws IllegalArgumentException
+	 * story is null or a limit is not positive
+	 * @throws IOException
+	 * Port could not be bound
+	 */
+	public ZorkServer(Story story, int port, int maxConnections,
+			long idleTimeoutMillis)
+			throws IllegalArgumentException, IOException{
+		this(story, null, null, null, null, port, maxConnections,
+			 idleTimeoutMillis);
+	}
+
+	/**
+	 * Constructor binding the server to a port on localhost, serving the
+	 * newest version of a story which may change while it runs
+	 * @param live -
+	 * Story played by every client
+	 * @param policy -
+	 * What a game does when a new version is published while it is played
+	 * @param port -
+	 * Port to listen on, 0 for any free port
+	 * @param maxConnections -
+	 * Most clients connected at once
+	 * @param idleTimeoutMillis -
+	 * Time a client may send nothing before it is disconnected
+	 * @throws IllegalArgumentException
+	 * live or policy is null or a limit is not positive
+	 * @throws IOException
+	 * Port could not be bound
+	 */
+	public ZorkServer(LiveStory live, LiveStory.Policy policy, int port,
+			int maxConnections, long idleTimeoutMillis)
+			throws IllegalArgumentException, IOException{
+		this(null, live, policy, null, null, port, maxConnections,
+			 idleTimeoutMillis);
+	}
+
+	/**
+	 * Constructor binding the server to a port on localhost, letting each
+	 * client choose which story of a directory to play
+	 * @param library -
+	 * Library the stories are opened through, a story stays open while a
+	 * client plays it
+	 * @param directory -
+	 * Directory holding the story files
+	 * @param port -
+	 * Port to listen on, 0 for any free port
+	 * @param maxConnections -
+	 * Most clients connected at once
+	 * @param idleTimeoutMillis -
+	 * Time a client may send nothing before it is disconnected
+	 * @throws IllegalArgumentException
+	 * library or directory is null or a limit is not positive
+	 * @throws IOException
+	 * Port could not be bound
+	 */
+	public ZorkServer(StoryLibrary library, String directory, int port,
+			int maxConnections, long idleTimeoutMillis)
+			throws IllegalArgumentException, IOException{
+		this(null, null, null, library, directory, port, maxConnections,
+			 idleTimeoutMillis);
+	}
+
+	private ZorkServer(Story story, LiveStory live, LiveStory.Policy policy,
+			StoryLibrary library, String directory, int port,
+			int maxConnections, long idleTimeoutMillis)
+			throws IllegalArgumentException, IOException{
+		if((story == null && (live == null || policy == null)
+				&& (library == null || directory == null))
+				|| maxConnections <= 0 || idleTimeoutMillis <= 0)
+			throw new IllegalArgumentException();
+		this.story = story;
+		this.live = live;
+		this.policy = policy;
+		this.library = library;
+		if(library != null){
+			this.directory = new File(directory);
+			opened = new ConcurrentLinkedQueue<Connection>();
+		}
+		this.maxConnections = maxConnections;
+		this.idleTimeoutNanos = idleTimeoutMillis * 1000000L;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try{
+			server.configureBlocking(false);
+			server.bind(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), port), 1024);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch(IOException e){
+			server.close();
+			selector.close();
+			throw e;
+		}
+		if(library != null)
+			loader = Executors.newFixedThreadPool(LOADER_THREADS,
+					new ThreadFactory(){
+						public Thread newThread(Runnable task){
+							Thread thread = new Thread(task, "story-loader");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		running = true;
+	}
+
+	/**
+	 * Gets port the server listens on
+	 * @return
+	 * Local port
+	 */
+	public int getPort(){
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Gets number of clients connected
+	 * @return
+	 * Open connections
+	 */
+	public int getConnectionCount(){
+		return connections;
+	}
+
+	/**
+	 * Gets number of clients accepted since the server started
+	 * @return
+	 * Accepted connections
+	 */
+	public long getAcceptedCount(){
+		return accepted;
+	}
+
+	/**
+	 * Gets number of clients turned away because the server was full
+	 * @return
+	 * Rejected connections
+	 */
+	public long getRejectedCount(){
+		return rejected;
+	}
+
+	/**
+	 * Gets number of clients disconnected for being idle
+	 * @return
+	 * Timed out connections
+	 */
+	public long getTimedOutCount(){
+		return timedOut;
+	}
+
+	/**
+	 * Sets counters the games of clients connecting from now on record
+	 * their visits, choices and endings in
+	 * @param telemetry -
+	 * Counters to record in, or null to stop recording
+	 */
+	public void setTelemetry(StoryTelemetry telemetry){
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Serves clients until the server is closed
+	 */
+	public void run(){
+		long tick = Math.max(10, Math.min(1000,
+										  idleTimeoutNanos / 4000000L));
+		long nextIdleCheck = System.nanoTime() + tick * 1000000L;
+		try{
+			while(running){
+				selector.select(tick);
+				Iterator<SelectionKey> keys =
+						selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(!key.isValid())
+						continue;
+					if(key.isAcceptable())
+						accept();
+					else
+						handle(key);
+				}
+				if(opened != null)
+					startOpened();
+				long now = System.nanoTime();
+				if(now - nextIdleCheck >= 0){
+					closeIdle(now);
+					nextIdleCheck = now + tick * 1000000L;
+				}
+			}
+		}
+		catch(IOException e){
+			System.out.println("Server stopped: " + e.getMessage());
+		}
+		finally{
+			for(SelectionKey key : selector.keys()){
+				closeQuietly(key.channel());
+				Object attachment = key.attachment();
+				if(attachment instanceof Connection
+						&& !((Connection)attachment).opening)
+					((Connection)attachment).release();
+			}
+			closeQuietly(selector);
+			if(loader != null)
+				loader.shutdownNow();
+			StoryMetrics.get().addPlaySessions(-connections);
+			connections = 0;
+		}
+	}
+
+	/**
+	 * Stops the server and disconnects every client
+	 */
+	public void close(){
+		running = false;
+		selector.wakeup();
+	}
+
+	private void accept(){
+		while(true){
+			SocketChannel channel;
+			try{
+				channel = server.accept();
+			}
+			catch(IOException e){
+				// Usually out of file descriptors, try again later
+				return;
+			}
+			if(channel == null)
+				return;
+			if(connections >= maxConnections){
+				rejected++;
+				try{
+					channel.configureBlocking(false);
+					channel.write(CHARSET.encode("Server is full, please "
+							+ "try again later.\n"));
+				}
+				catch(IOException e){
+				}
+				closeQuietly(channel);
+				continue;
+			}
+			Connection connection;
+			try{
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				PlaySession session = null;
+				if(live != null)
+					session = new MeteredPlaySession(live.newSession(policy),
+													 telemetry);
+				else if(story != null)
+					session = new MeteredPlaySession(story.newSession(),
+													 telemetry);
+				connection = new Connection(channel, session,
+											System.nanoTime());
+				connection.key = channel.register(selector,
+						SelectionKey.OP_READ, connection);
+				connections++;
+				accepted++;
+				StoryMetrics.get().addPlaySessions(1);
+			}
+			catch(IOException e){
+				closeQuietly(channel);
+				continue;
+			}
+			if(connection.session != null)
+				connection.startGame();
+			else
+				connection.write(STORY_PROMPT);
+			try{
+				flush(connection);
+			}
+			catch(IOException e){
+				disconnect(connection);
+			}
+		}
+	}
+
+	private void handle(SelectionKey key){
+		Connection connection = (Connection)key.attachment();
+		try{
+			if(key.isWritable())
+				flush(connection);
+			if(key.isValid() && key.isReadable())
+				read(connection);
+		}
+		catch(IOException e){
+			disconnect(connection);
+		}
+	}
+
+	private void read(Connection connection) throws IOException{
+		int read = connection.channel.read(connection.in);
+		if(read < 0){
+			disconnect(connection);
+			return;
+		}
+		connection.lastActive = System.nanoTime();
+		play(connection);
+	}
+
+	/**
+	 * Plays the whole lines read from a client, leaving any after the
+	 * choice of a story until the story is open
+	 */
+	private void play(Connection connection) throws IOException{
+		ByteBuffer in = connection.in;
+		in.flip();
+		int start = 0;
+		for(int i = 0; i < in.limit() && !connection.opening; i++){
+			if(in.get(i) != '\n')
+				continue;
+			int end = i;
+			if(end > start && in.get(end - 1) == '\r')
+				end--;
+			byte[] line = new byte[end - start];
+			for(int j = 0; j < line.length; j++)
+				line[j] = in.get(start + j);
+			start = i + 1;
+			String text = new String(line, CHARSET).trim();
+			if(connection.session == null ? !choose(connection, text)
+					: !connection.play(text)){
+				connection.closing = true;
+				break;
+			}
+		}
+		in.position(start);
+		in.compact();
+		if(!in.hasRemaining() && !connection.closing
+				&& !connection.opening){
+			connection.write("Line too long.\n");
+			connection.closing = true;
+		}
+		flush(connection);
+	}
+
+	private void flush(Connection connection) throws IOException{
+		ArrayDeque<ByteBuffer> out = connection.out;
+		while(!out.isEmpty()){
+			ByteBuffer next = out.peek();
+			connection.pending -= connection.channel.write(next);
+			if(next.hasRemaining())
+				break;
+			out.poll();
+		}
+
+		if(out.isEmpty() && connection.closing){
+			disconnect(connection);
+			return;
+		}
+		int interest = out.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+		// Stop reading from a client which is not reading its output
+		// until most of what is queued has been sent
+		if(connection.pending >= PAUSE_OUTPUT)
+			connection.paused = true;
+		else if(connection.pending <= RESUME_OUTPUT)
+			connection.paused = false;
+		if(!connection.paused && !connection.closing && !connection.opening)
+			interest |= SelectionKey.OP_READ;
+		connection.key.interestOps(interest);
+	}
+
+	/**
+	 * Opens the story a client named on a loader thread
+	 * @return
+	 * False if the client asked to quit
+	 */
+	private boolean choose(final Connection connection, String name){
+		if(name.equalsIgnoreCase("Q")){
+			connection.write("Goodbye.\n");
+			return false;
+		}
+		final File file = new File(directory, name);
+		// Only files directly in the directory may be opened
+		if(name.isEmpty() || name.startsWith(".") || name.indexOf('/') >= 0
+				|| name.indexOf(File.separatorChar) >= 0 || !file.isFile()){
+			connection.write("No story named " + name + ".\n" + STORY_PROMPT);
+			return true;
+		}
+		connection.opening = true;
+		loader.execute(new Runnable(){
+			public void run(){
+				try{
+					connection.lease = library.open(file.getPath());
+				}
+				catch(IOException e){
+					connection.failure = e.getMessage();
+				}
+				catch(DataFormatException e){
+					connection.failure = e.getMessage();
+				}
+				catch(RuntimeException e){
+					connection.failure = e.toString();
+				}
+				opened.add(connection);
+				selector.wakeup();
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Starts the games of clients whose stories were opened, and plays any
+	 * lines they sent while waiting
+	 */
+	private void startOpened(){
+		Connection connection;
+		while((connection = opened.poll()) != null){
+			connection.opening = false;
+			if(!connection.key.isValid()){
+				// Disconnected while the story was being opened
+				connection.release();
+				continue;
+			}
+			if(connection.lease == null)
+				connection.write("Could not open the story: "
+						+ connection.failure + "\n" + STORY_PROMPT);
+			else{
+				connection.session = new MeteredPlaySession(
+						connection.lease.newSession(), telemetry);
+				connection.startGame();
+			}
+			try{
+				play(connection);
+			}
+			catch(IOException e){
+				disconnect(connection);
+			}
+		}
+	}
+
+	private void closeIdle(long now){
+		ArrayList<Connection> idle = new ArrayList<Connection>();
+		for(SelectionKey key : selector.keys()){
+			Object attachment = key.attachment();
+			if(attachment instanceof Connection && now
+					- ((Connection)attachment).lastActive > idleTimeoutNanos)
+				idle.add((Connection)attachment);
+		}
+		for(Connection connection : idle){
+			timedOut++;
+			connection.write("\nDisconnected for being idle.\n");
+			connection.closing = true;
+			try{
+				flush(connection);
+			}
+			catch(IOException e){
+				disconnect(connection);
+			}
+			// A client which is not reading will never drain its output
+			if(connection.key.isValid())
+				disconnect(connection);
+		}
+	}
+
+	private void disconnect(Connection connection){
+		if(!connection.key.isValid())
+			return;
+		connection.key.cancel();
+		closeQuietly(connection.channel);
+		if(!connection.opening)
+			connection.release();
+		connections--;
+		StoryMetrics.get().addPlaySessions(-1);
+	}
+
+	private static void closeQuietly(Closeable closeable){
+		try{
+			closeable.close();
+		}
+		catch(IOException e){
+		}
+	}
+
+	/**
+	 * Starts a server for a story file and serves until the process ends
+	 * @param args -
+	 * Optionally --lazy to read nodes from the file as players reach them,
+	 * --share, --reload with --migrate, and --heatmap followed by a file to
+	 * write the choices players make to every few seconds, then the file
+	 * name, then optionally the port, the connection cap and the idle
+	 * timeout in seconds. With --library followed by a budget in megabytes
+	 * and no other option, the file name is a directory of stories players
+	 * choose from.
+	 */
+	public static void main(String[] args){
+		boolean lazy = false;
+		boolean share = false;
+		boolean migrate = false;
+		long reloadSeconds = 0;
+		String heatmap = null;
+		long libraryMegabytes = 0;
+		int first = 0;
+		try{
+			for(; first < args.length && args[first].startsWith("--");
+					first++){
+				if(args[first].equals("--lazy"))
+					lazy = true;
+				else if(args[first].equals("--share"))
+					share = true;
+				else if(args[first].equals("--migrate"))
+					migrate = true;
+				else if(args[first].equals("--reload")
+						&& first + 1 < args.length)
+					reloadSeconds = Long.parseLong(args[++first]);
+				else if(args[first].equals("--heatmap")
+						&& first + 1 < args.length)
+					heatmap = args[++first];
+				else if(args[first].equals("--library")
+						&& first + 1 < args.length)
+					libraryMegabytes = Long.parseLong(args[++first]);
+				else
+					throw new IllegalArgumentException(args[first]);
+			}
+		}
+		catch(IllegalArgumentException e){
+			System.out.println("Invalid argument: " + e.getMessage());
+			return;
+		}
+		args = Arrays.copyOfRange(args, first, args.length);
+		if(args.length < 1){
+			System.out.println("Usage: java ZorkServer [--lazy | --share] "
+					+ "[--reload <seconds> [--migrate]] [--heatmap <file>] "
+					+ "<story file> [port] [max connections] "
+					+ "[idle timeout seconds]\n"
+					+ "       java ZorkServer --library <megabytes> "
+					+ "<directory> [port] [max connections] "
+					+ "[idle timeout seconds]");
+			return;
+		}
+		try{
+			int port = args.length > 1 ? Integer.parseInt(args[1])
+					: DEFAULT_PORT;
+			int maxConnections = args.length > 2 ? Integer.parseInt(args[2])
+					: 10000;
+			long idleSeconds = args.length > 3 ? Long.parseLong(args[3]) : 300;
+			if(reloadSeconds < 0)
+				throw new IllegalArgumentException("--reload " + reloadSeconds);
+			if(libraryMegabytes != 0){
+				if(lazy || share || migrate || reloadSeconds > 0
+						|| heatmap != null)
+					throw new IllegalArgumentException("--library with "
+							+ "another option");
+				StoryMetrics.register();
+				StoryLibrary library = new StoryLibrary(
+						libraryMegabytes * 1024 * 1024);
+				ZorkServer server = new ZorkServer(library, args[0], port,
+						maxConnections, idleSeconds * 1000);
+				System.out.println("Serving the stories in " + args[0]
+						+ " on localhost:" + server.getPort());
+				server.run();
+				return;
+			}
+			StoryMetrics.register();
+			String stamp = stamp(args[0]);
+			StoryTree story = load(args[0], lazy, share);
+			ZorkServer server;
+			PlaySession structure;
+			if(reloadSeconds > 0){
+				LiveStory live = new LiveStory(story);
+				server = new ZorkServer(live, migrate ? LiveStory.Policy.MIGRATE
+						: LiveStory.Policy.FINISH, port, maxConnections,
+						idleSeconds * 1000);
+				watch(args[0], lazy, share, live, stamp, reloadSeconds);
+				structure = live.newSession(LiveStory.Policy.FINISH);
+			}
+			else{
+				server = new ZorkServer(story, port, maxConnections,
+										idleSeconds * 1000);
+				structure = story.newSession();
+			}
+			if(heatmap != null){
+				StoryTelemetry telemetry = new StoryTelemetry();
+				server.setTelemetry(telemetry);
+				telemetry.startExporter(heatmap, structure, HEATMAP_SECONDS);
+			}
+			System.out.println("Serving " + args[0] + " on localhost:"
+					+ server.getPort());
+			server.run();
+		}
+		catch(IllegalArgumentException e){
+			System.out.println("Invalid argument: " + e.getMessage());
+		}
+		catch(IOException e){
+			System.out.println(e.getMessage());
+		}
+		catch(DataFormatException e){
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Loads the story to serve, with the edits in its journals applied
+	 * unless it is opened lazily
+	 */
+	private static StoryTree load(String filename, boolean lazy,
+			boolean share) throws IOException, DataFormatException{
+		if(lazy && !BinaryStoryFormat.isBinary(filename))
+			return StoryTree.readTreeLazily(filename);
+		StoryTree story = StoryJournal.load(filename);
+		if(share)
+			story.shareSubtrees();
+		return story;
+	}
+
+	/**
+	 * Gets the sizes and modification times of a story file and its
+	 * journals, which change whenever the story is saved or edited
+	 */
+	private static String stamp(String filename){
+		StringBuilder stamp = new StringBuilder();
+		for(String name : new String[] {filename,
+				filename + StoryJournal.EXTENSION,
+				filename + StoryJournal.ROTATED_EXTENSION}){
+			File file = new File(name);
+			stamp.append(file.lastModified()).append(':')
+				.append(file.length()).append(' ');
+		}
+		return stamp.toString();
+	}
+
+	/**
+	 * Checks the story file and its journals every few seconds, publishing
+	 * the story again whenever they change. Games are never paused, a game
+	 * keeps its version until it moves to the new one or restarts. A story
+	 * which fails to load leaves the version being served in place.
+	 */
+	private static void watch(final String filename, final boolean lazy,
+			final boolean share, final LiveStory live, final String stamp,
+			long seconds){
+		ScheduledExecutorService watcher =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task, "story-reload");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		watcher.scheduleWithFixedDelay(new Runnable(){
+			private String loaded = stamp;
+
+			public void run(){
+				String current = stamp(filename);
+				if(current.equals(loaded))
+					return;
+				try{
+					// Stamped before loading, so a change made while loading
+					// is loaded again on the next check
+					long version = live.publish(load(filename, lazy, share));
+					loaded = current;
+					System.out.println("Reloaded " + filename + " as version "
+							+ version);
+				}
+				catch(Exception e){
+					loaded = current;
+					System.out.println("Could not reload " + filename + ": "
+							+ e.getMessage());
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The Connection holds the game and buffers of one client
+	 */
+	private static class Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private PlaySession session;
+		private StoryLibrary.Lease lease;
+		private String failure;
+		private ByteBuffer in;
+		private ArrayDeque<ByteBuffer> out;
+		private int pending;
+		private long lastActive;
+		private boolean paused;
+		private boolean closing;
+		// A loader thread is opening the story, the lease and failure
+		// belong to it until the connection is handed back
+		private boolean opening;
+
+		private Connection(SocketChannel channel, PlaySession session,
+				long now){
+			this.channel = channel;
+			this.session = session;
+			in = ByteBuffer.allocate(MAX_LINE);
+			out = new ArrayDeque<ByteBuffer>();
+			lastActive = now;
+		}
+
+		/**
+		 * Closes the lease on the story played, if any
+		 */
+		private void release(){
+			if(lease != null)
+				lease.close();
+			lease = null;
+		}
+
+		private void startGame(){
+			session.restart();
+			write(session.getOption() + "\n\n");
+			prompt();
+		}
+
+		private void prompt(){
+			// Both are encoded once and only viewed here
+			write(session.getPrompt());
+			write(CHOICE_PROMPT.duplicate());
+		}
+
+		/**
+		 * Plays one line sent by the client
+		 * @return
+		 * False if the client asked to quit
+		 */
+		private boolean play(String line){
+			if(session.getGameState() != GameState.GAME_NOT_OVER){
+				if(line.equalsIgnoreCase("Q")){
+					write("Goodbye.\n");
+					return false;
+				}
+				if(line.equalsIgnoreCase("R"))
+					startGame();
+				else
+					write("Play again (R) or quit (Q)? ");
+				return true;
+			}
+			if(line.isEmpty()){
+				write(CHOICE_PROMPT.duplicate());
+				return true;
+			}
+
+			switch(Character.toUpperCase(line.charAt(0))){
+			case 'C':
+				write(String.format("\nProbability of a win at this point:"
+						+ " %2.2f%%\n\n", session.winProbability()));
+				write(CHOICE_PROMPT.duplicate());
+				return true;
+			case 'Q':
+				write("Goodbye.\n");
+				return false;
+			case 'R':
+				write("\n");
+				startGame();
+				return true;
+			default:
+			}
+
+			try{
+				session.selectChild(line);
+				write("\n");
+				if(session.getGameState() == GameState.GAME_NOT_OVER){
+					prompt();
+					return true;
+				}
+				write(session.getMessage() + "\n\nThanks for playing.\n"
+						+ "Play again (R) or quit (Q)? ");
+			}
+			catch(IllegalArgumentException e){
+				write(e.getMessage() + "\nPlease make a choice: ");
+			}
+			catch(NodeNotPresentException e){
+				write("Error. Child does not exist.\n\nPlease make a choice: ");
+			}
+			return true;
+		}
+
+		private void write(CharSequence text){
+			write(CHARSET.encode(CharBuffer.wrap(text)));
+		}
+
+		private void write(ByteBuffer bytes){
+			pending += bytes.remaining();
+			out.add(bytes);
+		}
+	}
+}